@@ -15,6 +15,7 @@ SET COMPILER_FLAGS=-Xlint:all -Xlint:deprecation -Xdiags:verbose -Xmaxerrs 3 -g
 SET ENTRY_POINT=Main
 SET EXE_NAME=Game
 SET LIBS=
+SET CDS_TRAINING_FRAMES=120
 
 SET "VERBOSE="
 
@@ -43,7 +44,7 @@ REM ===========================================================================
 :help
 
 ECHO build:          Compiles your source tree.
-ECHO build release:  Compiles and builds an executable jar out of your source tree.
+ECHO build release:  Compiles and builds an executable jar (plus class data sharing archive) out of your source tree.
 ECHO build run:      Runs the compiled output. It will run the executable jar if available.
 ECHO build doc:      Generates javadoc out of your source tree.
 ECHO build bytecode: Creates human readable versions of the compiled .class files.
@@ -225,6 +226,15 @@ IF %ERRORLEVEL% EQU 0 (
         COPY %RES_DIR%\*.* %BUILD_DIR%\%RES_DIR% >nul 2>&1
     )
 
+    REM Training run: starts the game, quits after a couple of frames and dumps every class it loaded
+    REM into a class data sharing archive. 'build run' maps that archive instead of loading and
+    REM verifying the classes again, which takes a good chunk off the startup time.
+    ECHO Generating class data sharing archive...
+    PUSHD %BUILD_DIR%
+    java %JVM_FLAGS% -XX:ArchiveClassesAtExit=%EXE_NAME%.jsa -Dgame.exitAfterFrames=%CDS_TRAINING_FRAMES% -jar %EXE_NAME%.jar >nul 2>&1
+    IF NOT EXIST %EXE_NAME%.jsa ECHO Training run failed, continuing without class data sharing archive.
+    POPD
+
     ECHO Compilation successful.
     EXIT /B 0
 ) ELSE (
@@ -244,7 +254,11 @@ IF %ERRORLEVEL% NEQ 0 (
 
 IF EXIST %BUILD_DIR%\%EXE_NAME%.jar (
     PUSHD %BUILD_DIR%
-    java %JVM_FLAGS% -jar %EXE_NAME%.jar
+    IF EXIST %EXE_NAME%.jsa (
+        java %JVM_FLAGS% -XX:SharedArchiveFile=%EXE_NAME%.jsa -Xshare:auto -jar %EXE_NAME%.jar
+    ) ELSE (
+        java %JVM_FLAGS% -jar %EXE_NAME%.jar
+    )
     POPD
 ) ELSE (
     IF NOT EXIST %BUILD_DIR% (
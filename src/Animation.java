@@ -0,0 +1,35 @@
+// A sequence of sprites with a fixed duration (in ticks) per frame.
+//
+// The frame table is expanded once at construction to hold one sprite id per tick, so looking up the
+// current frame is a single array access and advancing an animation is a single integer increment
+// (see EntityStore.animTick).
+public final class Animation {
+
+    private final int[] table;
+    private final boolean loop;
+
+    public Animation(final int[] frames, final int ticksPerFrame, final boolean loop) {
+        assert frames != null && frames.length > 0;
+        assert ticksPerFrame > 0;
+
+        this.loop  = loop;
+        this.table = new int[frames.length * ticksPerFrame];
+        for (int i = 0; i < table.length; ++i) {
+            assert frames[i / ticksPerFrame] != EntityStore.NO_SPRITE;
+            table[i] = frames[i / ticksPerFrame];
+        }
+    }
+
+    public int spriteAt(final int tick) {
+        assert tick >= 0;
+
+        if (loop) {
+            return table[tick % table.length];
+        }
+        return tick < table.length ? table[tick] : table[table.length - 1];
+    }
+
+    public int lengthInTicks() {
+        return table.length;
+    }
+}
@@ -0,0 +1,61 @@
+import java.util.*;
+
+// Maps small integer ids to animations, so the entity store only has to keep an int per entity.
+public final class AnimationTable {
+
+    public static final int NO_ANIMATION = -1;
+
+    private final HashMap<String, Integer> ids = new HashMap<>();
+    private Animation[] animations = new Animation[16];
+    private String[] names = new String[16];
+    private int count = 0;
+
+    public int register(final String name, final Animation animation) {
+        assert name      != null;
+        assert animation != null;
+        assert !ids.containsKey(name) : "Animation registered twice!";
+
+        if (count == animations.length) {
+            animations = Arrays.copyOf(animations, count * 2);
+            names = Arrays.copyOf(names, count * 2);
+        }
+
+        final int id = count;
+        animations[id] = animation;
+        names[id] = name;
+        ids.put(name, id);
+        count += 1;
+        return id;
+    }
+
+    // returns NO_ANIMATION if there is no animation with that name
+    public int idOf(final String name) {
+        assert name != null;
+
+        final Integer id = ids.get(name);
+        return id == null ? NO_ANIMATION : id;
+    }
+
+    public String nameOf(final int id) {
+        assert id >= 0 && id < count;
+        return names[id];
+    }
+
+    public Animation get(final int id) {
+        assert id >= 0 && id < count;
+        return animations[id];
+    }
+
+    // resolves the sprite to draw for an entity, works for animated and static entities alike
+    public int spriteOf(final EntityStore store, final int id) {
+        final int anim = store.anim[id];
+        if (anim == NO_ANIMATION) {
+            return store.sprite[id];
+        }
+        return animations[anim].spriteAt(store.animTick[id]);
+    }
+
+    public int size() {
+        return count;
+    }
+}
@@ -0,0 +1,210 @@
+import java.awt.*;
+import java.awt.image.*;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import javax.imageio.*;
+
+// Decoded images by file name, kept within a byte budget.
+//
+// The size of an entry is what the decoded image occupies on the heap (width * height * bytes per
+// pixel), not the size of the file. When an insert pushes the cache over its budget, the least recently
+// used entries are evicted until it fits again. Pinned entries (see pin(), SpriteTable pins whatever is
+// on screen) are never evicted, so the budget is a soft limit: if everything is pinned we go over it
+// rather than pull an image from under the renderer.
+//
+// Evicting only drops the reference held here, the SpriteTable lets go of its copy once the main
+// thread calls poll(). A sprite that is needed again afterwards is decoded on the loader thread (see
+// requestLoad()), the main thread never waits for the disk once the game is running.
+//
+// Images are converted to the indexed colors of the palette right after decoding (see Palette), so an
+// entry is a byte per pixel.
+public final class AssetCache {
+
+    private static final class Entry {
+        Image image;
+        long bytes;
+        int pins = 0;
+    }
+
+    private final long budgetBytes;
+    private final Palette palette;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(64, 0.75f, true); // iterates least recently used first
+    private long usedBytes = 0;
+
+    private final LinkedBlockingQueue<String> loadRequests = new LinkedBlockingQueue<>();
+    private final Set<String> loading = ConcurrentHashMap.newKeySet();
+    private final ConcurrentLinkedQueue<String> evicted = new ConcurrentLinkedQueue<>();
+
+    // stats for the debug overlay
+    public volatile long hits = 0;
+    public volatile long misses = 0;
+    public volatile long evictions = 0;
+    public volatile long asyncLoads = 0;
+
+    public AssetCache(final long budgetBytes, final Palette palette) {
+        assert budgetBytes > 0;
+        assert palette != null;
+
+        this.budgetBytes = budgetBytes;
+        this.palette = palette;
+
+        final Thread thread = new Thread(this::load);
+        thread.setName("asset_loader_thread");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    // Returns the image, decoding it on the calling thread if it is not cached (loading screens,
+    // prefetching). Gameplay code uses getIfLoaded() and requestLoad() instead.
+    public Image get(final String file) throws IOException {
+        assert file != null;
+
+        synchronized (this) {
+            final Entry entry = entries.get(file);
+            if (entry != null) {
+                hits += 1;
+                return entry.image;
+            }
+            misses += 1;
+        }
+
+        final Image image = decode(file);
+        put(file, image);
+        return image;
+    }
+
+    // null if the image is not in the cache, does not count as a miss
+    public synchronized Image getIfLoaded(final String file) {
+        final Entry entry = entries.get(file);
+        return entry == null ? null : entry.image;
+    }
+
+    // Decodes the image on the loader thread, getIfLoaded() returns it once that is done.
+    public void requestLoad(final String file) {
+        assert file != null;
+
+        if (loading.add(file)) {
+            misses += 1;
+            loadRequests.offer(file);
+        }
+    }
+
+    // Adds or replaces an image (hot reloading keeps the pins of the old one).
+    public void put(final String file, final Image image) {
+        assert file != null && image != null;
+
+        synchronized (this) {
+            Entry entry = entries.get(file);
+            if (entry == null) {
+                entry = new Entry();
+                entries.put(file, entry);
+            } else {
+                usedBytes -= entry.bytes;
+            }
+            entry.image = image;
+            entry.bytes = bytesOf(image);
+            usedBytes += entry.bytes;
+
+            trim();
+        }
+    }
+
+    // Pinned entries are never evicted. Pins are counted, every successful pin() needs an unpin().
+    // Returns false (and pins nothing) if the image is not in the cache.
+    public synchronized boolean pin(final String file) {
+        final Entry entry = entries.get(file);
+        if (entry == null) return false;
+
+        entry.pins += 1;
+        return true;
+    }
+
+    public synchronized void unpin(final String file) {
+        final Entry entry = entries.get(file);
+        if (entry != null) {
+            assert entry.pins > 0 : "Unpinned more often than pinned!";
+            entry.pins -= 1;
+            if (entry.pins == 0) {
+                trim(); // it may have been the only thing keeping us over budget
+            }
+        }
+    }
+
+    // Main thread, between two ticks. Lets the sprite table drop the images evicted since the last call.
+    public void poll(final SpriteTable sprites) {
+        String file;
+        while ((file = evicted.poll()) != null) {
+            sprites.drop(file); // even if it is back already, the sprite picks up the new copy then
+        }
+    }
+
+    public synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    public long getBudgetBytes() {
+        return budgetBytes;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    private void trim() {
+        assert Thread.holdsLock(this);
+        if (usedBytes <= budgetBytes) return;
+
+        final Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (usedBytes > budgetBytes && it.hasNext()) {
+            final Map.Entry<String, Entry> e = it.next();
+            if (e.getValue().pins > 0) continue;
+
+            usedBytes -= e.getValue().bytes;
+            it.remove();
+            evicted.offer(e.getKey());
+            evictions += 1;
+        }
+    }
+
+    private void load() {
+        while (true) {
+            final String file;
+            try {
+                file = loadRequests.take();
+            } catch (final InterruptedException ex) {
+                return;
+            }
+
+            try {
+                if (getIfLoaded(file) == null) {
+                    put(file, decode(file));
+                    asyncLoads += 1;
+                }
+            } catch (final IOException ex) {
+                System.err.printf("Failed to load asset '%s'!%n", file);
+            } finally {
+                loading.remove(file);
+            }
+        }
+    }
+
+    private Image decode(final String file) throws IOException {
+        final BufferedImage image = ImageIO.read(new File(file));
+        if (image == null) {
+            throw new IOException("Unsupported image format: " + file);
+        }
+        return palette.index(image);
+    }
+
+    // what the decoded pixels occupy on the heap
+    private static long bytesOf(final Image image) {
+        if (image instanceof BufferedImage) {
+            final BufferedImage bi = (BufferedImage) image;
+            final int bitsPerPixel = bi.getColorModel().getPixelSize();
+            return (long) bi.getWidth() * bi.getHeight() * ((bitsPerPixel + 7) / 8);
+        }
+        return (long) Math.max(image.getWidth(null), 0) * Math.max(image.getHeight(null), 0) * 4;
+    }
+}
@@ -0,0 +1,121 @@
+import java.awt.image.*;
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import javax.imageio.*;
+
+// Watches the resource directory and hands changed files to the game, so assets can be edited while
+// the game is running.
+//
+// Everything slow happens on the watcher thread: waiting for the editor to finish writing the file
+// and decoding it. The main thread only picks up the finished results between two ticks (see poll()).
+public final class AssetWatcher {
+
+    // Editors tend to write a file in several steps (truncate, write, rename ...). We only load a file
+    // once it has not been touched for this long.
+    private static final long SETTLE_NANOS = 100_000_000L;
+    private static final int MAX_ATTEMPTS = 5;
+
+    private static final class Change {
+        final String file;
+        final BufferedImage image; // null for anything that is not an image
+
+        Change(final String file, final BufferedImage image) {
+            this.file  = file;
+            this.image = image;
+        }
+    }
+
+    private final Path dir;
+    private final String prefix; // cache keys look like 'res/grass.png'
+    private final ConcurrentLinkedQueue<Change> changes = new ConcurrentLinkedQueue<>();
+
+    // watcher thread only
+    private final HashMap<String, Long> pending = new HashMap<>();
+    private final HashMap<String, Integer> attempts = new HashMap<>();
+
+    public AssetWatcher(final Path dir) {
+        assert dir != null;
+
+        this.dir = dir;
+        this.prefix = dir.toString().replace('\\', '/') + "/";
+    }
+
+    public void start() throws IOException {
+        final WatchService watchService = dir.getFileSystem().newWatchService();
+        dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+
+        final Thread thread = new Thread(() -> watch(watchService));
+        thread.setName("asset_watcher_thread");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    // Main thread, between two ticks. Applies every change that has been fully loaded so far.
+    public void poll(final Game game) {
+        Change change;
+        while ((change = changes.poll()) != null) {
+            game.onAssetChanged(change.file, change.image);
+        }
+    }
+
+    private void watch(final WatchService watchService) {
+        while (true) {
+            final WatchKey key;
+            try {
+                key = watchService.poll(50, TimeUnit.MILLISECONDS);
+            } catch (final InterruptedException ex) {
+                return;
+            }
+
+            if (key != null) {
+                final long now = System.nanoTime();
+                for (final WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) continue;
+
+                    pending.put(prefix + event.context(), now);
+                }
+                key.reset();
+            }
+
+            loadSettledFiles();
+        }
+    }
+
+    private void loadSettledFiles() {
+        final long now = System.nanoTime();
+        final Iterator<Map.Entry<String, Long>> it = pending.entrySet().iterator();
+        while (it.hasNext()) {
+            final Map.Entry<String, Long> entry = it.next();
+            if (now - entry.getValue() < SETTLE_NANOS) continue;
+
+            final String file = entry.getKey();
+            if (!file.endsWith(".png")) {
+                changes.add(new Change(file, null));
+                it.remove();
+                continue;
+            }
+
+            BufferedImage image = null;
+            try {
+                image = ImageIO.read(new File(file));
+            } catch (final IOException ex) {
+                // most likely still being written
+            }
+
+            if (image != null) {
+                changes.add(new Change(file, image));
+                attempts.remove(file);
+                it.remove();
+            } else if (attempts.merge(file, 1, Integer::sum) >= MAX_ATTEMPTS) {
+                System.err.printf("Failed to reload asset '%s'!%n", file);
+                attempts.remove(file);
+                it.remove();
+            } else {
+                entry.setValue(now); // try again once it settled
+            }
+        }
+    }
+}
@@ -0,0 +1,89 @@
+// A view into the world. Several cameras can look at the same world at once (split view), each one
+// has its own size and does its own culling.
+public final class Camera {
+
+    public float xCam;
+    public float yCam;
+    private float xCamPrev;
+    private float yCamPrev;
+
+    private int width;
+    private int height;
+    private int mapWidth;
+    private int mapHeight;
+
+    public Camera(final int width, final int height) {
+        resize(width, height);
+    }
+
+    public void reset(final int mapWidth, final int mapHeight) {
+        this.mapWidth  = mapWidth;
+        this.mapHeight = mapHeight;
+        xCam = yCam = xCamPrev = yCamPrev = 0;
+    }
+
+    // Keeps looking at the same center (clamped to the map), without interpolating from the old view.
+    public void resize(final int width, final int height) {
+        assert width > 0 && height > 0;
+
+        final float xCenter = xCam + this.width  * 0.5f;
+        final float yCenter = yCam + this.height * 0.5f;
+        this.width  = width;
+        this.height = height;
+        centerOn(xCenter, yCenter, 0, 0);
+        snapTo(xCam, yCam);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public void centerOnEntity(final Entity e) {
+        assert e != null;
+        centerOn(e.x(), e.y(), e.w(), e.h());
+    }
+
+    // Puts the target into the center of the view, as far as the map allows: at its edges the camera stops
+    // at the border and the target moves off center instead. A map smaller than the view is centered.
+    public void centerOn(final float x, final float y, final int w, final int h) {
+        xCam = clamp((x - width  * 0.5f) + (w * 0.5f), mapWidth  - width);
+        yCam = clamp((y - height * 0.5f) + (h * 0.5f), mapHeight - height);
+    }
+
+    private static float clamp(final float cam, final int max) {
+        if (max < 0) return max * 0.5f;
+        return Math.max(0, Math.min(cam, max));
+    }
+
+    // moves the camera without interpolating from the old position
+    public void snapTo(final float x, final float y) {
+        xCam = xCamPrev = x;
+        yCam = yCamPrev = y;
+    }
+
+    public void savePreviousPosition() {
+        xCamPrev = xCam;
+        yCamPrev = yCam;
+    }
+
+    public int renderX(final float alpha) {
+        return Math.round(xCamPrev + (xCam - xCamPrev) * alpha);
+    }
+
+    public int renderY(final float alpha) {
+        return Math.round(yCamPrev + (yCam - yCamPrev) * alpha);
+    }
+
+    public boolean isInsideViewPort(final EntityStore s, final int id) {
+        if (s.x[id] + s.w[id] < xCam)  return false;
+        if (s.y[id] + s.h[id] < yCam)  return false;
+        if (s.x[id] > xCam + width)    return false;
+        if (s.y[id] > yCam + height)   return false;
+
+        return true;
+    }
+}
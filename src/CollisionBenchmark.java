@@ -0,0 +1,121 @@
+// Headless benchmark for the CollisionGrid.
+//
+// Fills the overworld with free moving bodies of random size and speed (most of them solid, some only
+// sensors that pass through everything but the tiles) and lets them bounce around for the given amount
+// of ticks. Every tick moves every body and collects all overlapping pairs. Reports the time per tick,
+// how many bodies the narrow phase looked at compared to testing every pair, and checks the result
+// against the brute force version: the same pairs, no solid bodies inside each other or inside a wall.
+//
+//     java -cp build Main bench-collide [bodies] [ticks]
+public final class CollisionBenchmark {
+
+    private CollisionBenchmark() {
+    }
+
+    public static void run(final int amount, final int ticks) {
+        assert amount > 0 && ticks > 0;
+
+        final Game game = Game.createHeadless();
+        final CollisionGrid collisions = game.getCollisions();
+        final TileGrid tiles = game.getTileGrid();
+        final int worldW = tiles.getWidth()  * Game.TILE_SIZE;
+        final int worldH = tiles.getHeight() * Game.TILE_SIZE;
+
+        final int[] ids = new int[amount];
+        final float[] w = new float[amount];
+        final float[] h = new float[amount];
+        final float[] vx = new float[amount];
+        final float[] vy = new float[amount];
+        final boolean[] solid = new boolean[amount];
+        final int[] found = new int[64];
+        int seed = 1;
+        int bodies = 0;
+        for (int attempt = 0; attempt < amount * 8 && bodies < amount; ++attempt) {
+            seed = next(seed);
+            final int r = seed;
+            seed = next(seed);
+            final float bw = (r & 255) == 0 ? CollisionGrid.CELL_SIZE * 1.5f : 4 + Math.floorMod(r >>> 8, 17) + Math.floorMod(r >>> 16, 8) / 8.0f;
+            final float bh = (r & 255) == 0 ? CollisionGrid.CELL_SIZE * 1.5f : 4 + Math.floorMod(r >>> 12, 17) + Math.floorMod(r >>> 20, 8) / 8.0f;
+            final float bx = Math.floorMod(seed, worldW * 8) / 8.0f;
+            final float by = Math.floorMod(seed >>> 3, worldH * 8) / 8.0f;
+            final boolean bSolid = Math.floorMod(r >>> 24, 8) != 0;
+
+            if (collisions.isBlocked(bx, by, bw, bh)) continue;
+            if (bSolid && collisions.query(bx, by, bw, bh, CollisionGrid.NO_BODY, found) > 0) continue;
+
+            ids[bodies]   = collisions.add(bx, by, bw, bh, bSolid, bodies);
+            w[bodies]     = bw;
+            h[bodies]     = bh;
+            solid[bodies] = bSolid;
+            vx[bodies]    = (Math.floorMod(r >>> 4, 33) - 16) / 8.0f; // up to 2 pixels per tick
+            vy[bodies]    = (Math.floorMod(r >>> 18, 33) - 16) / 8.0f;
+            bodies += 1;
+        }
+        System.out.printf("%s bodies in a %sx%s world, %s ticks%n", bodies, worldW, worldH, ticks);
+
+        // the first half warms up the jit and is not measured
+        final int[] pairs = new int[bodies * 8];
+        long pairTotal = 0;
+        long testsBefore = 0;
+        long start = 0;
+        for (int tick = 0; tick < ticks; ++tick) {
+            if (tick == ticks / 2) {
+                start = System.nanoTime();
+                testsBefore = collisions.tests;
+                pairTotal = 0;
+            }
+
+            for (int i = 0; i < bodies; ++i) {
+                final int hits = collisions.move(ids[i], vx[i], vy[i]);
+                if ((hits & CollisionGrid.HIT_X) != 0) vx[i] = -vx[i];
+                if ((hits & CollisionGrid.HIT_Y) != 0) vy[i] = -vy[i];
+            }
+            pairTotal += collisions.findPairs(pairs);
+        }
+        final int measured = ticks - ticks / 2;
+        final double millis = (System.nanoTime() - start) / 1000000.0d / measured;
+        final double tests = (collisions.tests - testsBefore) / (double) measured;
+        System.out.printf("grid:        %7.3f ms per tick, %10.0f narrow phase tests per tick, %6.1f overlapping pairs%n", millis, tests, pairTotal / (double) measured);
+
+        // the same pairs by testing everything against everything
+        final long bruteStart = System.nanoTime();
+        int brutePairs = 0;
+        int mismatches = 0;
+        int stuck = 0;
+        final int gridPairs = collisions.findPairs(pairs);
+        for (int a = 0; a < bodies; ++a) {
+            final float ax = collisions.x(ids[a]);
+            final float ay = collisions.y(ids[a]);
+            if (collisions.isBlocked(ax, ay, w[a], h[a])) stuck += 1;
+
+            for (int b = a + 1; b < bodies; ++b) {
+                final float bx = collisions.x(ids[b]);
+                final float by = collisions.y(ids[b]);
+                if (bx >= ax + w[a] || bx + w[b] <= ax || by >= ay + h[a] || by + h[b] <= ay) continue;
+
+                brutePairs += 1;
+                if (solid[a] && solid[b]) stuck += 1;
+                if (!containsPair(pairs, gridPairs, ids[a], ids[b])) mismatches += 1;
+            }
+        }
+        final double bruteMillis = (System.nanoTime() - bruteStart) / 1000000.0d;
+        System.out.printf("brute force: %7.3f ms for the pairs alone, %10d tests%n", bruteMillis, (long) bodies * (bodies - 1) / 2);
+        System.out.printf("check: %s pairs (brute force %s), %s missed, %s solid bodies overlapping a wall or each other%n", gridPairs, brutePairs, mismatches, stuck);
+    }
+
+    private static boolean containsPair(final int[] pairs, final int count, final int a, final int b) {
+        final int lo = Math.min(a, b);
+        final int hi = Math.max(a, b);
+        for (int i = 0; i < Math.min(count, pairs.length / 2); ++i) {
+            if (pairs[i * 2] == lo && pairs[i * 2 + 1] == hi) return true;
+        }
+        return false;
+    }
+
+    private static int next(int seed) {
+        seed ^= seed << 13;
+        seed ^= seed >>> 17;
+        seed ^= seed << 5;
+        return seed;
+    }
+}
@@ -0,0 +1,460 @@
+import java.util.*;
+
+// Collision for bodies that move freely, at any size and with sub pixel positions (unlike the player
+// and the npcs, which step from tile to tile).
+//
+// Broad phase: a uniform grid over the world with cells of CELL_SIZE (2 * 2 tiles). Every body is in
+// exactly one cell, the one its upper left corner is in, kept in an intrusive doubly linked list per
+// cell. Since no body is bigger than a cell, everything overlapping a box is found in the cells the box
+// covers plus one column to the left and one row above. Moving a body only relinks it when it crosses
+// into another cell. Bodies bigger than a cell go into one extra list that every query looks at, there
+// should only ever be a few of them.
+//
+// Narrow phase: axis aligned boxes. move() sweeps one axis at a time and stops the body at the first
+// thing in its way, so it slides along walls and cannot tunnel through anything, however fast it is.
+//
+// The static part of the world is not copied in here: whether a cell is solid comes straight from the
+// passability bitmap of the TileGrid, so tiles that change (hot reloading, cooked chunks) need no extra
+// bookkeeping. Everything outside the grid is solid.
+//
+// Nothing in the game moves freely yet, so for now only CollisionBenchmark creates bodies. The player
+// and the npcs keep stepping from tile to tile and are checked by Game.canMoveToTile() and the
+// WanderSystem, whatever moves freely later (projectiles, vehicles ...) goes through here.
+public final class CollisionGrid {
+
+    public static final int CELL_SIZE = Game.TILE_SIZE * 2;
+    public static final int NO_BODY = -1;
+
+    // returned by move()
+    public static final int HIT_X = 1;
+    public static final int HIT_Y = 1 << 1;
+
+    // Positions are floats that pile up rounding errors, a body that was stopped at an edge may end up a
+    // tiny bit past it. Anything closer than this counts as touching, not overlapping.
+    private static final float EPSILON = 1.0f / 256.0f;
+
+    private static final int FLAG_ALIVE = 1;
+    private static final int FLAG_SOLID = 1 << 1; // blocks and is blocked by other solid bodies, otherwise it is a
+                                                  // sensor that only shows up in queries (tiles block both)
+
+    private final TileGrid tiles;
+
+    // per body
+    private int count = 0; // high water mark, see EntityStore
+    private float[] x = new float[64];
+    private float[] y = new float[64];
+    private float[] w = new float[64];
+    private float[] h = new float[64];
+    private int[] flags = new int[64];
+    private int[] owner = new int[64]; // whatever the caller wants to find again (a row of the EntityStore)
+    private int[] list = new int[64];  // cell the body is listed in, bigList for the oversized ones
+    private int[] next = new int[64];
+    private int[] prev = new int[64];
+    private int[] freeIds = new int[64];
+    private int freeCount = 0;
+
+    // per cell, plus one for the oversized bodies
+    private int columns = 0;
+    private int rows = 0;
+    private int[] heads = new int[1];
+    private int bigList = 0;
+
+    // bodies looked at by the narrow phase, for benchmarks
+    public long tests = 0;
+
+    public CollisionGrid(final TileGrid tiles) {
+        assert tiles != null;
+
+        this.tiles = tiles;
+        heads[0] = NO_BODY;
+    }
+
+    // Removes every body and sizes the grid for a world of w * h tiles.
+    public void reset(final int w, final int h) {
+        assert w > 0 && h > 0;
+
+        columns = (w * Game.TILE_SIZE + CELL_SIZE - 1) / CELL_SIZE;
+        rows    = (h * Game.TILE_SIZE + CELL_SIZE - 1) / CELL_SIZE;
+        bigList = columns * rows;
+        if (heads.length < bigList + 1) {
+            heads = new int[bigList + 1];
+        }
+        Arrays.fill(heads, 0, bigList + 1, NO_BODY);
+        count = 0;
+        freeCount = 0;
+    }
+
+    public int add(final float x, final float y, final float w, final float h, final boolean solid, final int owner) {
+        assert w > 0 && h > 0;
+
+        final int id;
+        if (freeCount > 0) {
+            freeCount -= 1;
+            id = freeIds[freeCount];
+        } else {
+            if (count == this.x.length) {
+                grow(count * 2);
+            }
+            id = count;
+            count += 1;
+        }
+
+        this.x[id] = x;
+        this.y[id] = y;
+        this.w[id] = w;
+        this.h[id] = h;
+        this.flags[id] = FLAG_ALIVE | (solid ? FLAG_SOLID : 0);
+        this.owner[id] = owner;
+        link(id, listOf(id));
+        return id;
+    }
+
+    public void remove(final int id) {
+        assert isAlive(id) : "Body removed twice!";
+
+        unlink(id);
+        flags[id] = 0;
+        freeIds[freeCount++] = id;
+    }
+
+    public boolean isAlive(final int id) {
+        return id >= 0 && id < count && (flags[id] & FLAG_ALIVE) != 0;
+    }
+
+    public float x(final int id) {
+        return x[id];
+    }
+
+    public float y(final int id) {
+        return y[id];
+    }
+
+    public int ownerOf(final int id) {
+        return owner[id];
+    }
+
+    // Puts the body somewhere else without looking at what is there (spawning, warps).
+    public void teleport(final int id, final float x, final float y) {
+        assert isAlive(id);
+
+        this.x[id] = x;
+        this.y[id] = y;
+        relink(id);
+    }
+
+    // Moves the body by up to (dx, dy), stopping at solid tiles and solid bodies. x is resolved before y,
+    // so a blocked body slides along what blocks it. Returns which axes were cut short (HIT_X, HIT_Y).
+    // Things the body already overlaps do not block it, so bodies that got stuck in each other can
+    // separate again.
+    public int move(final int id, final float dx, final float dy) {
+        assert isAlive(id);
+
+        int hits = 0;
+        if (dx != 0) {
+            final float allowed = sweepX(id, dx);
+            if (allowed != dx) hits |= HIT_X;
+            x[id] += allowed;
+        }
+        if (dy != 0) {
+            final float allowed = sweepY(id, dy);
+            if (allowed != dy) hits |= HIT_Y;
+            y[id] += allowed;
+        }
+        relink(id);
+        return hits;
+    }
+
+    // Bodies overlapping the box (except 'exclude'), written into 'result'. Returns how many there are,
+    // which may be more than fit into 'result'.
+    public int query(final float qx, final float qy, final float qw, final float qh, final int exclude, final int[] result) {
+        assert result != null;
+
+        int found = 0;
+        final int cx0 = clampColumn(cellOf(qx) - 1);
+        final int cy0 = clampRow(cellOf(qy) - 1);
+        final int cx1 = clampColumn(cellOf(qx + qw));
+        final int cy1 = clampRow(cellOf(qy + qh));
+        for (int cy = cy0; cy <= cy1; ++cy) {
+            for (int cx = cx0; cx <= cx1; ++cx) {
+                found = collect(heads[cy * columns + cx], qx, qy, qw, qh, exclude, result, found);
+            }
+        }
+        return collect(heads[bigList], qx, qy, qw, qh, exclude, result, found);
+    }
+
+    // Every pair of overlapping bodies, once, as (a, b) with a < b written into 'result'. Returns the
+    // number of pairs, which may be more than fit into 'result'.
+    public int findPairs(final int[] result) {
+        assert result != null && result.length % 2 == 0;
+
+        int pairs = 0;
+        for (int a = 0; a < count; ++a) {
+            if ((flags[a] & FLAG_ALIVE) == 0) continue;
+
+            final float ax = x[a];
+            final float ay = y[a];
+            final int cx0 = clampColumn(cellOf(ax) - 1);
+            final int cy0 = clampRow(cellOf(ay) - 1);
+            final int cx1 = clampColumn(cellOf(ax + w[a]));
+            final int cy1 = clampRow(cellOf(ay + h[a]));
+            for (int cy = cy0; cy <= cy1; ++cy) {
+                for (int cx = cx0; cx <= cx1; ++cx) {
+                    pairs = collectPairs(a, heads[cy * columns + cx], result, pairs);
+                }
+            }
+            pairs = collectPairs(a, heads[bigList], result, pairs);
+        }
+        return pairs;
+    }
+
+    // true if any tile in the box is solid
+    public boolean isBlocked(final float bx, final float by, final float bw, final float bh) {
+        final int cx0 = tileOf(bx + EPSILON);
+        final int cy0 = tileOf(by + EPSILON);
+        final int cx1 = tileOf(bx + bw - EPSILON);
+        final int cy1 = tileOf(by + bh - EPSILON);
+        for (int cy = cy0; cy <= cy1; ++cy) {
+            for (int cx = cx0; cx <= cx1; ++cx) {
+                if (!tiles.isPassable(cx, cy)) return true;
+            }
+        }
+        return false;
+    }
+
+    public int size() {
+        return count - freeCount;
+    }
+
+    private float sweepX(final int id, final float dx) {
+        float allowed = dx;
+        final float top    = y[id];
+        final float bottom = y[id] + h[id];
+
+        // tiles: the first column of cells in the way that has a solid one in our rows
+        final int cy0 = tileOf(top + EPSILON);
+        final int cy1 = tileOf(bottom - EPSILON);
+        if (dx > 0) {
+            final float front = x[id] + w[id];
+            for (int cx = tileOf(front - EPSILON) + 1; cx * Game.TILE_SIZE < front + allowed; ++cx) {
+                if (isColumnBlocked(cx, cy0, cy1)) {
+                    allowed = cx * Game.TILE_SIZE - front;
+                    break;
+                }
+            }
+        } else {
+            final float back = x[id];
+            for (int cx = tileOf(back + EPSILON) - 1; (cx + 1) * Game.TILE_SIZE > back + allowed; --cx) {
+                if (isColumnBlocked(cx, cy0, cy1)) {
+                    allowed = (cx + 1) * Game.TILE_SIZE - back;
+                    break;
+                }
+            }
+        }
+
+        // bodies: everything in the swept box that we are not already overlapping (sensors go through them)
+        if ((flags[id] & FLAG_SOLID) == 0) return allowed;
+        final float sx = dx > 0 ? x[id] : x[id] + allowed;
+        final float sw = w[id] + Math.abs(allowed);
+        final int cx0 = clampColumn(cellOf(sx) - 1);
+        final int cx1 = clampColumn(cellOf(sx + sw));
+        final int ry0 = clampRow(cellOf(top) - 1);
+        final int ry1 = clampRow(cellOf(bottom));
+        for (int cy = ry0; cy <= ry1; ++cy) {
+            for (int cx = cx0; cx <= cx1; ++cx) {
+                allowed = clipX(id, heads[cy * columns + cx], allowed);
+            }
+        }
+        return clipX(id, heads[bigList], allowed);
+    }
+
+    private float sweepY(final int id, final float dy) {
+        float allowed = dy;
+        final float left  = x[id];
+        final float right = x[id] + w[id];
+
+        final int cx0 = tileOf(left + EPSILON);
+        final int cx1 = tileOf(right - EPSILON);
+        if (dy > 0) {
+            final float front = y[id] + h[id];
+            for (int cy = tileOf(front - EPSILON) + 1; cy * Game.TILE_SIZE < front + allowed; ++cy) {
+                if (isRowBlocked(cy, cx0, cx1)) {
+                    allowed = cy * Game.TILE_SIZE - front;
+                    break;
+                }
+            }
+        } else {
+            final float back = y[id];
+            for (int cy = tileOf(back + EPSILON) - 1; (cy + 1) * Game.TILE_SIZE > back + allowed; --cy) {
+                if (isRowBlocked(cy, cx0, cx1)) {
+                    allowed = (cy + 1) * Game.TILE_SIZE - back;
+                    break;
+                }
+            }
+        }
+
+        if ((flags[id] & FLAG_SOLID) == 0) return allowed;
+        final float sy = dy > 0 ? y[id] : y[id] + allowed;
+        final float sh = h[id] + Math.abs(allowed);
+        final int cy0 = clampRow(cellOf(sy) - 1);
+        final int cy1 = clampRow(cellOf(sy + sh));
+        final int rx0 = clampColumn(cellOf(left) - 1);
+        final int rx1 = clampColumn(cellOf(right));
+        for (int cy = cy0; cy <= cy1; ++cy) {
+            for (int cx = rx0; cx <= rx1; ++cx) {
+                allowed = clipY(id, heads[cy * columns + cx], allowed);
+            }
+        }
+        return clipY(id, heads[bigList], allowed);
+    }
+
+    // how far the body can go along x before it runs into one of the bodies of the list
+    private float clipX(final int id, int other, float allowed) {
+        final float top    = y[id];
+        final float bottom = y[id] + h[id];
+        final float left   = x[id];
+        final float right  = x[id] + w[id];
+        for (; other != NO_BODY; other = next[other]) {
+            tests += 1;
+            if (other == id || (flags[other] & FLAG_SOLID) == 0) continue;
+            if (y[other] >= bottom - EPSILON || y[other] + h[other] <= top + EPSILON) continue; // not in our rows
+
+            if (allowed > 0) {
+                if (x[other] >= right - EPSILON && x[other] - right < allowed) allowed = x[other] - right;
+            } else {
+                final float otherRight = x[other] + w[other];
+                if (otherRight <= left + EPSILON && otherRight - left > allowed) allowed = otherRight - left;
+            }
+        }
+        return allowed;
+    }
+
+    private float clipY(final int id, int other, float allowed) {
+        final float left   = x[id];
+        final float right  = x[id] + w[id];
+        final float top    = y[id];
+        final float bottom = y[id] + h[id];
+        for (; other != NO_BODY; other = next[other]) {
+            tests += 1;
+            if (other == id || (flags[other] & FLAG_SOLID) == 0) continue;
+            if (x[other] >= right - EPSILON || x[other] + w[other] <= left + EPSILON) continue; // not in our columns
+
+            if (allowed > 0) {
+                if (y[other] >= bottom - EPSILON && y[other] - bottom < allowed) allowed = y[other] - bottom;
+            } else {
+                final float otherBottom = y[other] + h[other];
+                if (otherBottom <= top + EPSILON && otherBottom - top > allowed) allowed = otherBottom - top;
+            }
+        }
+        return allowed;
+    }
+
+    private int collect(int other, final float qx, final float qy, final float qw, final float qh, final int exclude, final int[] result, int found) {
+        for (; other != NO_BODY; other = next[other]) {
+            tests += 1;
+            if (other == exclude) continue;
+            if (x[other] >= qx + qw || x[other] + w[other] <= qx) continue;
+            if (y[other] >= qy + qh || y[other] + h[other] <= qy) continue;
+
+            if (found < result.length) result[found] = other;
+            found += 1;
+        }
+        return found;
+    }
+
+    private int collectPairs(final int a, int b, final int[] result, int pairs) {
+        final float left   = x[a];
+        final float right  = x[a] + w[a];
+        final float top    = y[a];
+        final float bottom = y[a] + h[a];
+        for (; b != NO_BODY; b = next[b]) {
+            if (b <= a) continue; // the pair is found from the other side
+            tests += 1;
+            if (x[b] >= right || x[b] + w[b] <= left) continue;
+            if (y[b] >= bottom || y[b] + h[b] <= top) continue;
+
+            if (pairs * 2 < result.length) {
+                result[pairs * 2]     = a;
+                result[pairs * 2 + 1] = b;
+            }
+            pairs += 1;
+        }
+        return pairs;
+    }
+
+    private boolean isColumnBlocked(final int cx, final int cy0, final int cy1) {
+        for (int cy = cy0; cy <= cy1; ++cy) {
+            if (!tiles.isPassable(cx, cy)) return true;
+        }
+        return false;
+    }
+
+    private boolean isRowBlocked(final int cy, final int cx0, final int cx1) {
+        for (int cx = cx0; cx <= cx1; ++cx) {
+            if (!tiles.isPassable(cx, cy)) return true;
+        }
+        return false;
+    }
+
+    private int listOf(final int id) {
+        if (w[id] > CELL_SIZE || h[id] > CELL_SIZE) return bigList;
+        return clampRow(cellOf(y[id])) * columns + clampColumn(cellOf(x[id]));
+    }
+
+    private void relink(final int id) {
+        final int target = listOf(id);
+        if (target != list[id]) {
+            unlink(id);
+            link(id, target);
+        }
+    }
+
+    private void link(final int id, final int target) {
+        list[id] = target;
+        prev[id] = NO_BODY;
+        next[id] = heads[target];
+        if (heads[target] != NO_BODY) {
+            prev[heads[target]] = id;
+        }
+        heads[target] = id;
+    }
+
+    private void unlink(final int id) {
+        if (prev[id] != NO_BODY) {
+            next[prev[id]] = next[id];
+        } else {
+            heads[list[id]] = next[id];
+        }
+        if (next[id] != NO_BODY) {
+            prev[next[id]] = prev[id];
+        }
+    }
+
+    private static int cellOf(final float v) {
+        return (int) Math.floor(v / CELL_SIZE);
+    }
+
+    private static int tileOf(final float v) {
+        return (int) Math.floor(v / Game.TILE_SIZE);
+    }
+
+    private int clampColumn(final int cx) {
+        return Math.max(0, Math.min(columns - 1, cx));
+    }
+
+    private int clampRow(final int cy) {
+        return Math.max(0, Math.min(rows - 1, cy));
+    }
+
+    private void grow(final int capacity) {
+        x       = Arrays.copyOf(x, capacity);
+        y       = Arrays.copyOf(y, capacity);
+        w       = Arrays.copyOf(w, capacity);
+        h       = Arrays.copyOf(h, capacity);
+        flags   = Arrays.copyOf(flags, capacity);
+        owner   = Arrays.copyOf(owner, capacity);
+        list    = Arrays.copyOf(list, capacity);
+        next    = Arrays.copyOf(next, capacity);
+        prev    = Arrays.copyOf(prev, capacity);
+        freeIds = Arrays.copyOf(freeIds, capacity);
+    }
+}
@@ -10,14 +10,17 @@ public final class Display {
 
     private final Game game;
     private final MainLoop mainLoop;
-    private final double hz;
-    private final InputHandler input;
+    private final double hz; // fixed simulation rate, the render rate is decoupled (see frameCap)
+    private final FramePacer pacer;
+    private final Input input;
+    private final InputHandler inputHandler;
     private final Frame frame;
     private final Canvas canvas;
     private final BufferedImage backBuffer;
     private final BufferStrategy bufferStrategy;
     private final HashMap<RenderingHints.Key, Object> renderingHints;
     private final Graphics2D g;
+    private final FrameCapture capture;
 
     private double xScale  = 1;
     private double yScale  = 1;
@@ -35,6 +38,14 @@ public final class Display {
 
     private DebugLevel debug = DebugLevel.EXTENDED;
 
+    private static final double[] FRAME_CAPS = { 30.0d, 60.0d, 120.0d, 144.0d, Double.POSITIVE_INFINITY };
+    private volatile double frameCap;
+
+    private final long tickNanos;
+    private long tickAccumulatorNanos = 0;
+    private long lastTickNanos        = 0;
+    private long totalTicks           = 0;
+
     public Display(final Game game, final int width, final int height, final double hz) {
         assert game != null;
         assert width > 0 && height > 0 && hz > 0;
@@ -43,18 +54,22 @@ public final class Display {
         this.height = height;
         this.game   = game;
         this.hz     = hz;
+        this.pacer  = new FramePacer(hz);
+
+        frameCap  = hz;
+        tickNanos = (long) (1_000_000_000.0d / hz);
 
         create_frame: {
             canvas = new Canvas();
             canvas.setSize(width * 6, height * 4); // TODO(nschultz): Clamp according to screen resolution
-            input = new InputHandler();
-            canvas.addKeyListener(input);
+            input = new Input();
+            inputHandler = new InputHandler();
+            canvas.addKeyListener(inputHandler);
             canvas.setIgnoreRepaint(true);
             canvas.setFocusable(true);
 
             frame = new Frame("untitled game");
-            final var icon = new javax.swing.ImageIcon(new javax.swing.ImageIcon("res/player.png").getImage().getScaledInstance(32, 32, Image.SCALE_DEFAULT));
-            frame.setIconImage(icon.getImage());
+            frame.setIconImage(Toolkit.getDefaultToolkit().getImage("res/player.png")); // loaded asynchronously, the frame scales it
             frame.addWindowListener(new CustomWindowAdapter());
             frame.addComponentListener(new CustomComponentAdapter());
             frame.add(canvas);
@@ -62,6 +77,7 @@ public final class Display {
             frame.setLocationRelativeTo(null);
 
             frame.setVisible(true);
+            StartupTimer.mark("window");
         }
 
         add_render_hints: {
@@ -86,6 +102,10 @@ public final class Display {
 
             canvas.createBufferStrategy(2); // two buffers are always supported TODO(nschultz): Check if we can use 3
             bufferStrategy = canvas.getBufferStrategy();
+            StartupTimer.mark("backbuffer");
+
+            // F1 takes a screenshot, shift + F1 starts/stops recording (see FrameCapture)
+            capture = new FrameCapture(width, height, java.nio.file.Paths.get("captures"), Integer.getInteger("game.captureBuffers", 4));
         }
 
         hack_scheduler_granularity: {
@@ -99,9 +119,15 @@ public final class Display {
             // minimising the effect on the system clock, and setting the sleep granularity to 1ms even
             // where the default interrupt period isn't 15ms."
             //
+            // The FramePacer parks, and a park on the default ~15.6 ms Windows timer would miss every frame.
+            //
             final Thread thread = new Thread(() -> {
                 while (true) {
-                    sleepMillis(Long.MAX_VALUE);
+                    try {
+                        Thread.sleep(Long.MAX_VALUE);
+                    } catch (final InterruptedException ex) {
+                        return;
+                    }
                 }
             });
             thread.setName("granularity_hack_thread");
@@ -122,8 +148,31 @@ public final class Display {
     private void nextFrame() {
         // TODO(nschultz): reset graphics object for the game
 
-        game.onNextFrame(g, input);
-        input.update(); // must be called *after* game.nextFrame()
+        // Fixed timestep: the simulation always advances in steps of 1/hz no matter how often we render.
+        // Whatever time is left over is used to interpolate between the last two simulation states.
+        final long now = System.nanoTime();
+        if (lastTickNanos == 0) {
+            tickAccumulatorNanos = tickNanos; // run the very first tick right away
+        } else {
+            tickAccumulatorNanos += now - lastTickNanos;
+        }
+        lastTickNanos = now;
+
+        // do not try to catch up forever after a long stall (debugger, window drag ...)
+        if (tickAccumulatorNanos > tickNanos * 5) {
+            tickAccumulatorNanos = tickNanos * 5;
+        }
+
+        while (tickAccumulatorNanos >= tickNanos) {
+            game.onNextTick(input);
+            input.update(); // must be called *after* game.onNextTick()
+            tickAccumulatorNanos -= tickNanos;
+            totalTicks += 1;
+        }
+
+        final float alpha = (float) tickAccumulatorNanos / tickNanos;
+        game.onNextFrame(g, alpha);
+        capture.onFrame(backBuffer);
 
         // I use a bufferstrategy so I can render stuff independent of the scaled backbuffer. For example
         // the debug information.
@@ -155,6 +204,7 @@ public final class Display {
     }
 
     private final Font mainFont = new Font("SansSerif", Font.PLAIN, 24);
+    private final OperatingSystemMXBean osBean = ManagementFactory.getOperatingSystemMXBean();
 
     public void renderDebugInfo(final Graphics2D g) {
         g.setFont(mainFont);
@@ -210,7 +260,7 @@ public final class Display {
 
         frame_count: {
             g.setColor(Color.WHITE);
-            final String frameCountStr = mainLoop.totalFramesRendered + " (frames)";
+            final String frameCountStr = mainLoop.totalFramesRendered + "/" + totalTicks + " (frames/ticks)";
             final int sw = g.getFontMetrics().stringWidth(frameCountStr);
             g.drawString(frameCountStr, canvas.getWidth() - (sw + 24), 160);
         }
@@ -221,22 +271,93 @@ public final class Display {
             final int sw = g.getFontMetrics().stringWidth(threadStr);
             g.drawString(threadStr, canvas.getWidth() - (sw + 24), 192);
         }
+
+        pacing: {
+            g.setColor(Color.WHITE);
+            final String capStr    = Double.isInfinite(frameCap) ? "uncapped" : String.format("%.0f hz", frameCap);
+            final String pacingStr = String.format("%.3f ms/%.1f%% %s %s (pacing)", pacer.pacingErrorMillis, pacer.yieldRatio * 100.0d, pacer.getMode(), capStr);
+            final int sw = g.getFontMetrics().stringWidth(pacingStr);
+            g.drawString(pacingStr, canvas.getWidth() - (sw + 24), 224);
+        }
+
+        cpu_usage: {
+            // only the hotspot specific bean knows about the process cpu load
+            if (osBean instanceof com.sun.management.OperatingSystemMXBean) {
+                final double load = ((com.sun.management.OperatingSystemMXBean) osBean).getProcessCpuLoad();
+                if (load >= 0) {
+                    g.setColor(Color.WHITE);
+                    final String cpuStr = String.format("%.1f%% (cpu)", load * 100.0d);
+                    final int sw = g.getFontMetrics().stringWidth(cpuStr);
+                    g.drawString(cpuStr, canvas.getWidth() - (sw + 24), 256);
+                }
+            }
+        }
+
+        startup: {
+            g.setColor(Color.WHITE);
+            final String startupStr = String.format("%.1f ms (first frame)", StartupTimer.getFirstFrameMillis());
+            final int sw = g.getFontMetrics().stringWidth(startupStr);
+            g.drawString(startupStr, canvas.getWidth() - (sw + 24), 288);
+        }
+
+        replay: {
+            final ReplaySystem.Mode mode = game.getReplay().getMode();
+            if (mode != ReplaySystem.Mode.IDLE) {
+                g.setColor(mode == ReplaySystem.Mode.RECORDING ? Color.RED : Color.GREEN);
+                final String replayStr = String.format("%s (replay)", mode);
+                final int sw = g.getFontMetrics().stringWidth(replayStr);
+                g.drawString(replayStr, canvas.getWidth() - (sw + 24), 320);
+            }
+        }
+
+        capture: {
+            if (capture.isRecording() || capture.framesWritten > 0 || capture.framesDropped > 0) {
+                g.setColor(capture.isRecording() ? Color.RED : Color.WHITE);
+                final String captureStr = String.format("%s/%s/%s %.1f ms (captured/dropped/queued lag)", capture.framesWritten, capture.framesDropped, capture.getQueuedFrames(), capture.encoderLagMillis);
+                final int sw = g.getFontMetrics().stringWidth(captureStr);
+                g.drawString(captureStr, canvas.getWidth() - (sw + 24), 352);
+            }
+        }
+
+        assets: {
+            final AssetCache assets = game.getAssets();
+            g.setColor(assets.getUsedBytes() > assets.getBudgetBytes() ? Color.YELLOW : Color.WHITE);
+            final String assetStr = String.format("%.1f/%.1f kb %s/%s/%s (asset hit/miss/evict)", assets.getUsedBytes() / 1024.0d, assets.getBudgetBytes() / 1024.0d, assets.hits, assets.misses, assets.evictions);
+            final int sw = g.getFontMetrics().stringWidth(assetStr);
+            g.drawString(assetStr, canvas.getWidth() - (sw + 24), 384);
+        }
+
+        hot_reload: {
+            final String reload = game.getLastReload();
+            if (reload != null) {
+                g.setColor(Color.WHITE);
+                final String reloadStr = String.format("%s (reloaded)", reload);
+                final int sw = g.getFontMetrics().stringWidth(reloadStr);
+                g.drawString(reloadStr, canvas.getWidth() - (sw + 24), 416);
+            }
+        }
     }
 
-    private void sleepMillis(final long millis) {
-        assert millis > 0;
+    public void bringToFront() {
+        assert EventQueue.isDispatchThread();
+
+        frame.setState(Frame.NORMAL); // un-minimize
+        frame.toFront();
+        canvas.requestFocus();
+    }
 
-        try {
-            Thread.sleep(millis, 0);
-        } catch (final InterruptedException ex) {
-            Thread.currentThread().interrupt();
-            throw new RuntimeException(ex);
+    private double getRefreshRate() {
+        final int refreshRate = frame.getGraphicsConfiguration().getDevice().getDisplayMode().getRefreshRate();
+        if (refreshRate == DisplayMode.REFRESH_RATE_UNKNOWN) {
+            return hz;
         }
+        return refreshRate;
     }
 
     public void free() {
         game.destroy();
         mainLoop.running = false;
+        capture.close();
         g.dispose();
         frame.dispose();
         Runtime.getRuntime().gc();
@@ -272,20 +393,20 @@ public final class Display {
 
         public volatile boolean running = false;
 
+        // -Dgame.exitAfterFrames=n quits after n frames, used for the class data sharing training run
+        private final long exitAfterFrames = Long.getLong("game.exitAfterFrames", 0);
+
         public long totalFramesRendered     = 0;
         public double cookedFrameTimeMillis = 0;
         public double rawFrameTimeMillis    = 0;
 
-        private final double targetTimeMillis = 1000.0d / hz;
-        private final long OVERSLEEP_GUARD = estimateSchedulerGranularity();
-
         @Override
         public void run() {
             running = true;
 
             game.init();
             while (running) {
-                double startTimeMillis = now();
+                final long startTimeNanos = System.nanoTime();
 
                 try {
                     EventQueue.invokeAndWait(() -> {
@@ -307,81 +428,31 @@ public final class Display {
                     assert false : "Not supposed to interrupt this thread!";
                 }
 
-                double workTimeMillis = now() - startTimeMillis;
-                rawFrameTimeMillis = workTimeMillis;
-                if (workTimeMillis < targetTimeMillis) {
-                    assert !EventQueue.isDispatchThread() : "Must not sleep on UI thread!";
+                rawFrameTimeMillis = (System.nanoTime() - startTimeNanos) / 1000000.0d;
 
-                    // We still have time, so we have to artifically wait to reach the target time
-                    final long waitTime = (long) (targetTimeMillis - workTimeMillis);
-                    if (waitTime - OVERSLEEP_GUARD > 0) {
-                        sleepMillis(waitTime - OVERSLEEP_GUARD);
-                    }
-
-                    // busy wait the rest of time
-                    while (workTimeMillis < targetTimeMillis) {
-                        workTimeMillis = now() - startTimeMillis;
-                    }
-
-                } else {
-                    // We have missed our target time :(
+                if (totalFramesRendered == 1) {
+                    StartupTimer.firstFrame();
+                    game.warmUpAudio();
                 }
-
-                cookedFrameTimeMillis = now() - startTimeMillis;
-            }
-        }
-
-        private boolean isLagging() {
-            return rawFrameTimeMillis > targetTimeMillis;
-        }
-
-        private double now() {
-            return System.nanoTime() / 1000000.0d;
-        }
-
-        private long estimateSchedulerGranularity() {
-            final long[] result = new long[50];
-            for (int i = 0, l = result.length; i < l; ++i) {
-                final double beforeSleep = now();
-                sleepMillis(1);
-                long deltaTime = (long) (now() - beforeSleep);
-                if (deltaTime == 0) {
-                    deltaTime = 1;
+                if (totalFramesRendered == exitAfterFrames) {
+                    System.exit(0);
                 }
-                result[i] = deltaTime;
-            }
-
-            Arrays.sort(result);
-            return result[0];
-        }
-    }
 
-    public final class InputHandler extends KeyAdapter {
+                assert !EventQueue.isDispatchThread() : "Must not sleep on UI thread!";
+                pacer.sync(startTimeNanos);
 
-        private final boolean[] keys = new boolean[Short.MAX_VALUE / 2]; // pressed in current frame
-        private final boolean[] lastKeys = new boolean[keys.length];     // pressed in last frame
-        {
-            assert keys.length == lastKeys.length;
-        }
-
-        // gets called every frame
-        public void update() {
-            for (int i = 0; i < keys.length; ++i) {
-                lastKeys[i] = keys[i];
+                cookedFrameTimeMillis = (System.nanoTime() - startTimeNanos) / 1000000.0d;
             }
         }
 
-        public boolean isKeyPressed(final int code) {
-            return keys[code];
-        }
-
-        public boolean isKeyUp(final int code) {
-            return !keys[code] && lastKeys[code];
+        private boolean isLagging() {
+            // uncapped has no target, so we are only lagging when we can not even keep up with the simulation
+            final double targetMillis = Double.isInfinite(frameCap) ? tickNanos / 1000000.0d : pacer.getTargetMillis();
+            return rawFrameTimeMillis > targetMillis;
         }
+    }
 
-        public boolean isKeyDown(final int code) {
-            return keys[code] && !lastKeys[code];
-        }
+    private final class InputHandler extends KeyAdapter {
 
         @Override
         public void keyPressed(final KeyEvent evt) {
@@ -405,6 +476,58 @@ public final class Display {
                     frame.setCursor(frame.getToolkit().createCustomCursor(new BufferedImage(1, 1, BufferedImage.TYPE_INT_ARGB), new Point(), null));
                     frame.setVisible(true);
                 }
+            } else if (evt.getKeyCode() == KeyEvent.VK_F1) {
+                if (evt.isShiftDown()) {
+                    capture.toggleRecording();
+                } else {
+                    capture.requestScreenshot();
+                }
+            } else if (evt.getKeyCode() == KeyEvent.VK_F7) {
+                // not part of the input of a tick: a replay would run into the key that stopped its own
+                // recording and start a new one
+                final ReplaySystem replay = game.getReplay();
+                if (replay.getMode() == ReplaySystem.Mode.RECORDING) {
+                    replay.requestStop();
+                } else {
+                    replay.requestRecording(java.nio.file.Paths.get("replay.bin"));
+                }
+            } else if (evt.getKeyCode() == KeyEvent.VK_F8) {
+                game.getReplay().requestReplay(java.nio.file.Paths.get("replay.bin"));
+            } else if (evt.getKeyCode() == KeyEvent.VK_F9) {
+                int next = 0;
+                for (int i = 0; i < FRAME_CAPS.length; ++i) {
+                    if (FRAME_CAPS[i] == frameCap) {
+                        next = (i + 1) % FRAME_CAPS.length;
+                        break;
+                    }
+                }
+                frameCap = FRAME_CAPS[next];
+
+                // vsync mode is bound to the monitor, the cap only applies to the other modes
+                if (pacer.getMode() != FramePacer.Mode.VSYNC) {
+                    pacer.setTargetHz(frameCap);
+                }
+            } else if (evt.getKeyCode() == KeyEvent.VK_F10) {
+                switch (pacer.getMode()) {
+                    case PRECISE: {
+                        pacer.setMode(FramePacer.Mode.VSYNC);
+                        pacer.setTargetHz(getRefreshRate());
+                    } break;
+
+                    case VSYNC: {
+                        pacer.setMode(FramePacer.Mode.POWER_SAVER);
+                        pacer.setTargetHz(frameCap);
+                    } break;
+
+                    case POWER_SAVER: {
+                        pacer.setMode(FramePacer.Mode.PRECISE);
+                        pacer.setTargetHz(frameCap);
+                    } break;
+
+                    default: {
+                        assert false;
+                    }
+                }
             } else if (evt.getKeyCode() == KeyEvent.VK_F12) {
                 switch (debug) {
                     case NONE: {
@@ -425,12 +548,12 @@ public final class Display {
                 }
             }
 
-            keys[evt.getKeyCode()] = true;
+            input.setKeyFromDevice(evt.getKeyCode(), true);
         }
 
         @Override
         public void keyReleased(final KeyEvent evt) {
-            keys[evt.getKeyCode()] = false;
+            input.setKeyFromDevice(evt.getKeyCode(), false);
         }
     }
 }
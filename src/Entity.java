@@ -1,30 +1,161 @@
 import java.awt.*;
 
+// Thin handle onto a row of the EntityStore. The actual data lives in the store, this class only exists
+// for entities which carry behaviour code (like the Player), so that code can keep reading naturally.
+//
+// Handles are meant to be pooled: constructing one does not put it into the world, spawn() does. After
+// despawn() the same object can be spawned again somewhere else.
+//
+// Position and size are not bound to the tile grid. Entities that move freely call enableCollision()
+// (in onSpawn()) and then move with moveAndCollide(), see CollisionGrid.
 public abstract class Entity {
 
     public final Game game;
-    public final Vector2f v2;
-    public final int w;
-    public final int h;
 
-    public boolean passable = true;
+    private final EntityStore store;
+    private final int width;
+    private final int height;
+    private int id = -1;
+    private int body = CollisionGrid.NO_BODY;
 
-    public Entity(final Game game, final Vector2f v2, final int w, final int h) {
+    public Entity(final Game game, final int w, final int h) {
         assert game != null;
-        assert v2 != null && v2.x % Game.TILE_SIZE == 0 && v2.y % Game.TILE_SIZE == 0;
-        assert w % Game.TILE_SIZE == 0;
-        assert h % Game.TILE_SIZE == 0;
+        assert w > 0 && h > 0;
 
-        this.game = game;
-        this.v2   = v2;
-        this.w    = w;
-        this.h    = h;
+        this.game   = game;
+        this.store  = game.getEntityStore();
+        this.width  = w;
+        this.height = h;
     }
 
-    public void input(final Display.InputHandler input) {
+    public void spawn(final Vector2f v2) {
+        assert v2 != null;
+        assert id == -1 : "Entity is already spawned!";
+
+        id = store.create(v2.x, v2.y, width, height, EntityStore.NO_SPRITE, EntityStore.FLAG_PASSABLE | EntityStore.FLAG_ACTOR);
+        store.handles[id] = this;
+        onSpawn();
+    }
+
+    public void despawn() {
+        assert id != -1 : "Entity is not spawned!";
+
+        if (body != CollisionGrid.NO_BODY) {
+            game.getCollisions().remove(body);
+            body = CollisionGrid.NO_BODY;
+        }
+        store.release(id);
+        id = -1;
+    }
+
+    // override by subclasses which have to reset their state when they are (re)spawned
+    protected void onSpawn() {
+    }
+
+    public int id() {
+        return id;
+    }
+
+    public float x() {
+        return store.x[id];
+    }
+
+    public float y() {
+        return store.y[id];
+    }
+
+    public int w() {
+        return store.w[id];
+    }
+
+    public int h() {
+        return store.h[id];
+    }
+
+    // Moves without looking at what is in the way.
+    public void moveBy(final float dx, final float dy) {
+        store.x[id] += dx;
+        store.y[id] += dy;
+        if (body != CollisionGrid.NO_BODY) {
+            game.getCollisions().teleport(body, store.x[id], store.y[id]);
+        }
+    }
+
+    // Jumps to a new position. Unlike moveBy() the previous position moves along, so there is no
+    // interpolation between the old and the new place.
+    public void warpTo(final float x, final float y) {
+        store.x[id] = store.xPrev[id] = x;
+        store.y[id] = store.yPrev[id] = y;
+        if (body != CollisionGrid.NO_BODY) {
+            game.getCollisions().teleport(body, x, y);
+        }
+    }
+
+    // Makes the entity a body of the CollisionGrid until it is despawned. A solid one blocks the other
+    // bodies, otherwise it only shows up in their queries.
+    protected void enableCollision(final boolean solid) {
+        assert id != -1 : "Entity is not spawned!";
+        assert body == CollisionGrid.NO_BODY : "Collision is already enabled!";
+
+        body = game.getCollisions().add(store.x[id], store.y[id], store.w[id], store.h[id], solid, id);
+    }
+
+    // Moves by up to (dx, dy), stopping at solid tiles and solid bodies. Returns which axes were cut
+    // short (CollisionGrid.HIT_X, HIT_Y).
+    public int moveAndCollide(final float dx, final float dy) {
+        assert body != CollisionGrid.NO_BODY : "Collision is not enabled!";
+
+        final CollisionGrid collisions = game.getCollisions();
+        final int hits = collisions.move(body, dx, dy);
+        store.x[id] = collisions.x(body);
+        store.y[id] = collisions.y(body);
+        return hits;
+    }
+
+    public int body() {
+        return body;
+    }
+
+    public boolean isPassable() {
+        return store.hasFlag(id, EntityStore.FLAG_PASSABLE);
+    }
+
+    public void setPassable(final boolean passable) {
+        if (passable) {
+            store.flags[id] |= EntityStore.FLAG_PASSABLE;
+        } else {
+            store.flags[id] &= ~EntityStore.FLAG_PASSABLE;
+        }
+    }
+
+    public void setSprite(final int sprite) {
+        store.sprite[id] = sprite;
+        store.anim[id]   = AnimationTable.NO_ANIMATION;
+    }
+
+    // restarts the animation only if it is not already playing
+    public void setAnimation(final int animation) {
+        store.setAnimation(id, animation);
+    }
+
+    public int renderX(final float alpha) {
+        return Math.round(store.xPrev[id] + (store.x[id] - store.xPrev[id]) * alpha);
+    }
+
+    public int renderY(final float alpha) {
+        return Math.round(store.yPrev[id] + (store.y[id] - store.yPrev[id]) * alpha);
+    }
+
+    public void input(final Input input) {
         // override by subclasses who are interested in input
     }
 
     public abstract void update();
-    public abstract void render(final Graphics2D g);
+
+    public void render(final Graphics2D g, final float alpha) {
+        final int sprite = game.getAnimations().spriteOf(store, id);
+        if (sprite == EntityStore.NO_SPRITE) return;
+
+        game.drawImage(g, game.getSprites().get(sprite), renderX(alpha), renderY(alpha), w(), h());
+    }
 }
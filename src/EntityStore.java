@@ -0,0 +1,170 @@
+import java.util.*;
+
+// Structure-of-arrays storage for every entity in the world.
+//
+// An entity is nothing but an index into the arrays below. Systems that touch every entity each frame
+// (culling, rendering, the previous position snapshot) sweep linearly over primitive arrays instead of
+// chasing one heap object (plus its Vector2f) per entity. Entities with behaviour code (see Entity)
+// are flagged as ACTOR and have their handle stored alongside.
+public final class EntityStore {
+
+    public static final int FLAG_ALIVE    = 1 << 0; // cleared when the row is released, dead rows are skipped by every sweep
+    public static final int FLAG_PASSABLE = 1 << 1;
+    public static final int FLAG_ACTOR    = 1 << 2; // not part of the tile layer, may move. Either has an Entity handle
+                                                    // with input/update logic attached or is driven by a system (npcs)
+
+    // (flags & KIND_MASK) == FLAG_ALIVE is a live tile, == KIND_MASK is a live actor
+    public static final int KIND_MASK = FLAG_ALIVE | FLAG_ACTOR;
+
+    public static final int NO_SPRITE = -1;
+
+    public int count = 0; // high water mark, rows below it may be dead (see FLAG_ALIVE)
+
+    public float[] x;
+    public float[] y;
+    public float[] xPrev; // position at the start of the current tick, used to interpolate when rendering
+    public float[] yPrev;
+    public int[] w;
+    public int[] h;
+    public int[] flags;
+    public int[] sprite;  // index into the SpriteTable, used when anim is NO_ANIMATION
+    public int[] anim;    // index into the AnimationTable
+    public int[] animTick;
+    public Entity[] handles;
+
+    // released rows are recycled before the arrays grow
+    private int[] freeIds;
+    private int freeCount = 0;
+
+    public EntityStore(final int initialCapacity) {
+        assert initialCapacity > 0;
+
+        x       = new float[initialCapacity];
+        y       = new float[initialCapacity];
+        xPrev   = new float[initialCapacity];
+        yPrev   = new float[initialCapacity];
+        w       = new int[initialCapacity];
+        h       = new int[initialCapacity];
+        flags   = new int[initialCapacity];
+        sprite  = new int[initialCapacity];
+        anim     = new int[initialCapacity];
+        animTick = new int[initialCapacity];
+        handles = new Entity[initialCapacity];
+        freeIds = new int[initialCapacity];
+    }
+
+    // Tiles are aligned to the grid, actors can be anywhere and of any size.
+    public int create(final float x, final float y, final int w, final int h, final int sprite, final int flags) {
+        assert (flags & FLAG_ACTOR) != 0 || (x % Game.TILE_SIZE == 0 && y % Game.TILE_SIZE == 0);
+        assert (flags & FLAG_ACTOR) != 0 || (w % Game.TILE_SIZE == 0 && h % Game.TILE_SIZE == 0);
+        assert w > 0 && h > 0;
+
+        final int id;
+        if (freeCount > 0) {
+            freeCount -= 1;
+            id = freeIds[freeCount];
+        } else {
+            if (count == this.x.length) {
+                grow(count * 2);
+            }
+            id = count;
+            count += 1;
+        }
+
+        this.x[id]     = x;
+        this.y[id]     = y;
+        this.xPrev[id] = x;
+        this.yPrev[id] = y;
+        this.w[id]      = w;
+        this.h[id]      = h;
+        this.flags[id]  = flags | FLAG_ALIVE;
+        this.sprite[id] = sprite;
+        this.anim[id]     = AnimationTable.NO_ANIMATION;
+        this.animTick[id] = 0;
+        this.handles[id] = null;
+
+        return id;
+    }
+
+    public void release(final int id) {
+        assert id >= 0 && id < count;
+        assert hasFlag(id, FLAG_ALIVE) : "Entity released twice!";
+
+        flags[id]   = 0;
+        anim[id]    = AnimationTable.NO_ANIMATION;
+        handles[id] = null;
+        freeIds[freeCount++] = id;
+    }
+
+    // Exchanges the data of two rows. Only for rows without a handle, a handle knows its row id.
+    public void swap(final int a, final int b) {
+        assert a >= 0 && a < count;
+        assert b >= 0 && b < count;
+        assert handles[a] == null && handles[b] == null;
+
+        float f;
+        int i;
+        f = x[a];        x[a]        = x[b];        x[b]        = f;
+        f = y[a];        y[a]        = y[b];        y[b]        = f;
+        f = xPrev[a];    xPrev[a]    = xPrev[b];    xPrev[b]    = f;
+        f = yPrev[a];    yPrev[a]    = yPrev[b];    yPrev[b]    = f;
+        i = w[a];        w[a]        = w[b];        w[b]        = i;
+        i = h[a];        h[a]        = h[b];        h[b]        = i;
+        i = flags[a];    flags[a]    = flags[b];    flags[b]    = i;
+        i = sprite[a];   sprite[a]   = sprite[b];   sprite[b]   = i;
+        i = anim[a];     anim[a]     = anim[b];     anim[b]     = i;
+        i = animTick[a]; animTick[a] = animTick[b]; animTick[b] = i;
+    }
+
+    public boolean hasFlag(final int id, final int flag) {
+        assert id >= 0 && id < count;
+        return (flags[id] & flag) != 0;
+    }
+
+    public void setAnimation(final int id, final int animation) {
+        assert id >= 0 && id < count;
+
+        if (anim[id] != animation) {
+            anim[id]     = animation;
+            animTick[id] = 0;
+        }
+    }
+
+    // one increment per animated entity and tick, the frame is looked up when rendering
+    public void advanceAnimations() {
+        final int[] anim = this.anim;
+        final int[] animTick = this.animTick;
+        for (int i = 0, l = count; i < l; ++i) {
+            if (anim[i] != AnimationTable.NO_ANIMATION) {
+                animTick[i] += 1;
+            }
+        }
+    }
+
+    public void savePreviousPositions() {
+        System.arraycopy(x, 0, xPrev, 0, count);
+        System.arraycopy(y, 0, yPrev, 0, count);
+    }
+
+    // keeps the arrays around, so reloading a world of the same size does not allocate
+    public void clear() {
+        Arrays.fill(handles, 0, count, null);
+        count = 0;
+        freeCount = 0;
+    }
+
+    private void grow(final int capacity) {
+        x       = Arrays.copyOf(x, capacity);
+        y       = Arrays.copyOf(y, capacity);
+        xPrev   = Arrays.copyOf(xPrev, capacity);
+        yPrev   = Arrays.copyOf(yPrev, capacity);
+        w       = Arrays.copyOf(w, capacity);
+        h       = Arrays.copyOf(h, capacity);
+        flags   = Arrays.copyOf(flags, capacity);
+        sprite  = Arrays.copyOf(sprite, capacity);
+        anim     = Arrays.copyOf(anim, capacity);
+        animTick = Arrays.copyOf(animTick, capacity);
+        handles = Arrays.copyOf(handles, capacity);
+        freeIds = Arrays.copyOf(freeIds, capacity);
+    }
+}
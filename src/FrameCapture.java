@@ -0,0 +1,312 @@
+import java.awt.image.*;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import javax.imageio.*;
+
+// Captures the back buffer for bug reports (png screenshots) and trailers (raw video).
+//
+// The render thread only copies the pixels into one of a few preallocated buffers and queues it, the
+// encoder thread does everything slow (png compression, file io). If the encoder falls behind and no
+// buffer is free, the frame is dropped instead of stalling the game; drops and the encoder lag are
+// shown in the debug overlay.
+//
+// Recordings are written as headerless rgb24 frames (width and height are part of the file name), one
+// per rendered frame, which is exactly what ffmpeg's rawvideo demuxer expects:
+//
+//     ffmpeg -f rawvideo -pixel_format rgb24 -video_size 320x240 -framerate 60 -i <file> out.mp4
+public final class FrameCapture {
+
+    private static final int KIND_SCREENSHOT = 0;
+    private static final int KIND_VIDEO      = 1;
+    private static final int KIND_END_VIDEO  = 2;
+
+    private static final class Slot {
+        final int[] pixels;
+        int kind;
+        long frame;
+        long capturedNanos;
+
+        Slot(final int pixels) {
+            this.pixels = new int[pixels];
+        }
+    }
+
+    private final int width;
+    private final int height;
+    private final Path dir;
+    private final int bufferCount;
+
+    // both queues hand slots between the render thread and the encoder thread
+    private ArrayBlockingQueue<Slot> free   = null;
+    private ArrayBlockingQueue<Slot> queued = null;
+    private final Slot endVideo = new Slot(0);
+
+    // set by the input (event dispatch thread), consumed by onFrame() on the render thread, so only the
+    // render thread starts and stops recordings
+    private final AtomicBoolean screenshotRequested = new AtomicBoolean(false);
+    private final AtomicInteger toggleRequests      = new AtomicInteger(0);
+
+    // render thread only (and close(), both under the lock of this)
+    private volatile boolean recording = false; // volatile for isRecording()
+    private boolean closed = false;
+    private boolean videoQueued = false; // a frame of the current recording is queued, it needs an end
+    private long frame = 0;
+
+    // stats for the debug overlay (drops are counted by the render thread, the rest by the encoder thread)
+    public volatile long framesDropped = 0;
+    public volatile long framesWritten = 0;
+    public volatile double encoderLagMillis = 0; // smoothed time from capture until the frame is on disk
+    public volatile String lastFile = null;
+
+    // encoder thread only
+    private BufferedImage screenshotImage = null;
+    private FileChannel videoChannel = null;
+    private ByteBuffer videoBuffer = null;
+    private volatile boolean videoOpen = false; // read by close()
+
+    public FrameCapture(final int width, final int height, final Path dir, final int bufferCount) {
+        assert width > 0 && height > 0;
+        assert dir != null;
+        assert bufferCount > 0;
+
+        this.width  = width;
+        this.height = height;
+        this.dir    = dir;
+        this.bufferCount = bufferCount;
+        endVideo.kind = KIND_END_VIDEO;
+    }
+
+    public void requestScreenshot() {
+        screenshotRequested.set(true);
+    }
+
+    // Starts or stops the recording with the next frame.
+    public void toggleRecording() {
+        toggleRequests.incrementAndGet(); // pressing twice before a frame cancels out
+    }
+
+    private void stopRecording() {
+        recording = false;
+        if (!videoQueued) return;
+
+        // There is room for it: every queued end but the first has a video frame in front of it, so there
+        // are at most bufferCount + 1 of them.
+        videoQueued = false;
+        final boolean offered = queued.offer(endVideo);
+        assert offered;
+    }
+
+    public boolean isRecording() {
+        return recording;
+    }
+
+    public int getQueuedFrames() {
+        return queued == null ? 0 : queued.size();
+    }
+
+    // Render thread, once per frame right after the frame has been drawn into 'image'.
+    public synchronized void onFrame(final BufferedImage image) {
+        assert image.getWidth() == width && image.getHeight() == height;
+
+        if (closed) return;
+
+        frame += 1;
+        if ((toggleRequests.getAndSet(0) & 1) != 0) {
+            if (recording) {
+                stopRecording();
+            } else {
+                recording = true;
+            }
+        }
+        final boolean screenshot = screenshotRequested.getAndSet(false);
+        if (!screenshot && !recording) return;
+
+        if (free == null) {
+            start(); // the buffers only cost memory once capturing is used
+        }
+
+        if (screenshot) {
+            capture(image, KIND_SCREENSHOT);
+        }
+        if (recording) {
+            capture(image, KIND_VIDEO);
+        }
+    }
+
+    private void capture(final BufferedImage image, final int kind) {
+        final Slot slot = free.poll();
+        if (slot == null) {
+            framesDropped += 1;
+            return;
+        }
+
+        // getDataElements() copies, unlike DataBufferInt.getData() it does not stop the image from being
+        // cached in video memory
+        final int type = image.getType();
+        if (type == BufferedImage.TYPE_INT_ARGB || type == BufferedImage.TYPE_INT_ARGB_PRE || type == BufferedImage.TYPE_INT_RGB) {
+            image.getRaster().getDataElements(0, 0, width, height, slot.pixels); // the frame is opaque, premultiplied or not does not matter
+        } else {
+            image.getRGB(0, 0, width, height, slot.pixels, 0, width);
+        }
+        slot.kind = kind;
+        slot.frame = frame;
+        slot.capturedNanos = System.nanoTime();
+        queued.offer(slot);
+        if (kind == KIND_VIDEO) {
+            videoQueued = true;
+        }
+    }
+
+    private void start() {
+        free   = new ArrayBlockingQueue<>(bufferCount);
+        queued = new ArrayBlockingQueue<>(bufferCount * 2 + 1); // see stopRecording()
+        for (int i = 0; i < bufferCount; ++i) {
+            free.offer(new Slot(width * height));
+        }
+
+        final Thread thread = new Thread(this::encode);
+        thread.setName("frame_capture_thread");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    // Stops a running recording and gives the encoder a moment to write what is still queued.
+    public void close() {
+        synchronized (this) {
+            closed = true; // a frame that is still being rendered must not queue anything after the end
+            if (free == null) return;
+
+            if (recording) {
+                stopRecording();
+            }
+        }
+        final long deadline = System.nanoTime() + 2_000_000_000L;
+        while (free.size() < bufferCount || !queued.isEmpty() || videoOpen) {
+            if (System.nanoTime() - deadline > 0) {
+                System.err.println("Frame capture did not finish in time, the last frames are lost!");
+                return;
+            }
+            try {
+                Thread.sleep(10);
+            } catch (final InterruptedException ex) {
+                return;
+            }
+        }
+    }
+
+    private void encode() {
+        while (true) {
+            final Slot slot;
+            try {
+                slot = queued.take();
+            } catch (final InterruptedException ex) {
+                return;
+            }
+
+            try {
+                switch (slot.kind) {
+                    case KIND_SCREENSHOT: {
+                        writeScreenshot(slot);
+                    } break;
+
+                    case KIND_VIDEO: {
+                        writeVideoFrame(slot);
+                    } break;
+
+                    case KIND_END_VIDEO: {
+                        closeVideo();
+                    } break;
+
+                    default: {
+                        assert false;
+                    }
+                }
+            } catch (final IOException ex) {
+                System.err.printf("Failed to write captured frame: %s%n", ex.getMessage());
+                if (slot.kind == KIND_VIDEO) {
+                    closeVideo(); // the next frame starts a new file
+                }
+            }
+
+            if (slot != endVideo) {
+                encoderLagMillis = encoderLagMillis + ((System.nanoTime() - slot.capturedNanos) / 1_000_000.0d - encoderLagMillis) * 0.1d;
+                free.offer(slot);
+            }
+        }
+    }
+
+    private void writeScreenshot(final Slot slot) throws IOException {
+        if (screenshotImage == null) {
+            screenshotImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        }
+        screenshotImage.setRGB(0, 0, width, height, slot.pixels, 0, width);
+
+        try (final OutputStream out = Channels.newOutputStream(createFile(String.format("screenshot_%s_%s", timestamp(), slot.frame), ".png"))) {
+            ImageIO.write(screenshotImage, "png", out);
+        }
+        framesWritten += 1;
+    }
+
+    private void writeVideoFrame(final Slot slot) throws IOException {
+        if (videoChannel == null) {
+            videoChannel = createFile(String.format("video_%s_%s_%sx%s_rgb24", timestamp(), slot.frame, width, height), ".raw");
+            if (videoBuffer == null) {
+                videoBuffer = ByteBuffer.allocateDirect(width * height * 3);
+            }
+            videoOpen = true;
+        }
+
+        final ByteBuffer buf = videoBuffer;
+        buf.clear();
+        final int[] pixels = slot.pixels;
+        for (int i = 0, l = width * height; i < l; ++i) {
+            final int argb = pixels[i];
+            buf.put((byte) (argb >> 16));
+            buf.put((byte) (argb >>  8));
+            buf.put((byte) (argb      ));
+        }
+        buf.flip();
+        while (buf.hasRemaining()) {
+            videoChannel.write(buf);
+        }
+        framesWritten += 1;
+    }
+
+    private void closeVideo() {
+        if (videoChannel == null) return;
+
+        try {
+            videoChannel.close();
+        } catch (final IOException ex) {
+            System.err.printf("Failed to close recording: %s%n", ex.getMessage());
+        }
+        videoChannel = null;
+        videoOpen = false;
+        System.out.printf("Recording saved to '%s'.%n", lastFile);
+    }
+
+    // Never opens the file of an earlier capture, the name of one from the same second of another run is
+    // taken and gets a counter.
+    private FileChannel createFile(final String name, final String extension) throws IOException {
+        Files.createDirectories(dir);
+        for (int attempt = 0;; ++attempt) {
+            final Path file = dir.resolve(attempt == 0 ? name + extension : String.format("%s_%s%s", name, attempt, extension));
+            try {
+                final FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+                lastFile = file.toString();
+                return channel;
+            } catch (final FileAlreadyExistsException ex) {
+                continue;
+            }
+        }
+    }
+
+    private static String timestamp() {
+        return java.time.LocalDateTime.now().format(java.time.format.DateTimeFormatter.ofPattern("yyyyMMdd_HHmmss"));
+    }
+}
@@ -0,0 +1,117 @@
+import java.util.concurrent.locks.*;
+
+// Waits out the remainder of a frame without burning a core.
+//
+// LockSupport.parkNanos() almost always oversleeps by a platform dependent amount (timer resolution,
+// scheduler latency). Instead of guessing that amount once at startup we measure it after every park
+// and keep a running estimate (mean + 2 * mean deviation). We then park for the remaining time minus
+// that estimate and only yield for the last tiny bit.
+//
+// The estimate is capped at half the frame time, so the yield tail never takes over the whole frame.
+// A frame whose remainder is already covered by the estimate does not park and so gives no sample; on
+// those the estimate decays toward MIN_OVERSLEEP_NANOS instead, otherwise a single spike (a gc pause
+// during a park, a high frame rate cap) would keep the pacer yield spinning for the rest of the session.
+// With a coarse timer (Windows without the granularity hack in Display) parks oversleep by ~15 ms, more
+// than the cap at high frame rates, those frames come late rather than burning a core.
+public final class FramePacer {
+
+    public enum Mode {
+        PRECISE,     // park + short yield tail, best frame time accuracy
+        VSYNC,       // paces to the refresh rate of the monitor, the buffer flip does the fine tuning
+        POWER_SAVER; // park only, accepts some jitter in exchange for (almost) zero cpu usage while waiting
+    }
+
+    private static final long MIN_OVERSLEEP_NANOS = 50_000L;
+
+    // written by the ui thread (debug keys), read by the pacing thread
+    private volatile Mode mode = Mode.PRECISE;
+    private volatile long targetNanos;
+
+    private double oversleepMeanNanos = 1_000_000.0d;
+    private double oversleepDevNanos  = 0.0d;
+
+    // stats for the debug overlay (written by the pacing thread only)
+    public volatile double pacingErrorMillis = 0; // smoothed |actual frame time - target frame time|
+    public volatile double yieldRatio        = 0; // smoothed fraction of the frame spent in the yield tail
+
+    public FramePacer(final double hz) {
+        setTargetHz(hz);
+    }
+
+    // Double.POSITIVE_INFINITY means uncapped, sync() will then return immediately.
+    public void setTargetHz(final double hz) {
+        assert hz > 0;
+        targetNanos = (long) (1_000_000_000.0d / hz);
+    }
+
+    public void setMode(final Mode mode) {
+        assert mode != null;
+        this.mode = mode;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public double getTargetMillis() {
+        return targetNanos / 1_000_000.0d;
+    }
+
+    public long getOversleepEstimateNanos() {
+        final long estimate = (long) (oversleepMeanNanos + 2.0d * oversleepDevNanos);
+        if (estimate < MIN_OVERSLEEP_NANOS) return MIN_OVERSLEEP_NANOS;
+        if (estimate > targetNanos / 2) return targetNanos / 2;
+        return estimate;
+    }
+
+    // Blocks until 'frameStartNanos + target' has been reached. Returns immediately if we are already late.
+    public void sync(final long frameStartNanos) {
+        final long deadline = frameStartNanos + targetNanos;
+
+        long remaining = deadline - System.nanoTime();
+        if (remaining > 0) {
+            final boolean parkOnly = mode != Mode.PRECISE;
+            final long guard = parkOnly ? 0 : getOversleepEstimateNanos();
+
+            boolean parked = false;
+            while (remaining > guard) {
+                final long request = remaining - guard;
+                final long before  = System.nanoTime();
+                LockSupport.parkNanos(request);
+                final long after   = System.nanoTime();
+
+                recordOversleep((after - before) - request);
+                remaining = deadline - after;
+                parked = true;
+            }
+            if (!parkOnly && !parked) {
+                decayOversleep();
+            }
+
+            final long yieldStart = System.nanoTime();
+            while (!parkOnly && deadline - System.nanoTime() > 0) {
+                Thread.yield();
+            }
+            yieldRatio = smooth(yieldRatio, (double) (System.nanoTime() - yieldStart) / targetNanos);
+        }
+
+        final double errorMillis = Math.abs((System.nanoTime() - frameStartNanos) - targetNanos) / 1_000_000.0d;
+        pacingErrorMillis = smooth(pacingErrorMillis, errorMillis);
+    }
+
+    private void recordOversleep(final long sample) {
+        // park can return early (spurious wakeup), which must not drag the estimate below zero
+        final double s = sample < 0 ? 0 : sample;
+        oversleepDevNanos  = smooth(oversleepDevNanos, Math.abs(s - oversleepMeanNanos));
+        oversleepMeanNanos = smooth(oversleepMeanNanos, s);
+    }
+
+    private void decayOversleep() {
+        oversleepDevNanos  = smooth(oversleepDevNanos, 0);
+        oversleepMeanNanos = smooth(oversleepMeanNanos, MIN_OVERSLEEP_NANOS);
+    }
+
+    private static double smooth(final double old, final double sample) {
+        return old + (sample - old) * 0.05d;
+    }
+}
@@ -16,39 +16,195 @@ public final class Game {
     public static final int HEIGHT = 240;
     public static final int TILE_SIZE = 16;
 
+    // the simulation always runs at this rate, the render rate is independent of it (see Display)
+    public static final double TICK_RATE = 60.0d;
+
+    private static final String TRIGGERS_FILE = "res/overworld_triggers.txt";
+    private static final String NPCS_FILE     = "res/overworld_npcs.txt";
+
     static {
         assert WIDTH  % TILE_SIZE == 0;
         assert HEIGHT % TILE_SIZE == 0;
     }
 
     private HashMap<RenderingHints.Key, Object> renderingHints = null;
-    private HashMap<String, Image> imageCache = null;
+    private Graphics2D hintedGraphics = null; // the last graphics render() set the hints on
+    private AssetCache assets = null; // also filled by the prefetch thread
+    private Palette palette = null;    // every sprite is drawn with it, see Palette
+    private final Map<String, byte[]> soundCache = new java.util.concurrent.ConcurrentHashMap<>();
+    private Thread soundThread = null;
+    private volatile String soundRequest = null;
+    private float soundDecibel = 0;   // written before soundRequest, read after it
+    private boolean soundLoop = false;
 
     private Font mainFont = null;
-    private ArrayList<Entity> entities = null;
+    private Font titleFont = null;    // mainFont at the sizes the states draw with, deriving allocates
+    private Font menuFont = null;
+    private Font dialogueFont = null;
+    private final Dimension stringSize = new Dimension(); // result of calcStringSize(), render thread only
+    private EntityStore entities = null;
+    private SpriteTable sprites = null;
+    private AnimationTable animations = null;
+    private TileGrid tileGrid = null;
+    private CollisionGrid collisions = null; // free moving bodies, see Entity.enableCollision()
+    private Pathfinder pathfinder = null;
+    private WanderSystem wanderers = null;
+    private SaveSystem saveSystem = null;
+    private TriggerSystem triggers = null;
+    private TriggerHandler triggerHandler = null;
+    private String dialogueText = null; // shown by the DIALOGUE state
+    private final HashMap<String, Script> scripts = new HashMap<>(); // compiled once, see fetchScript()
+    private Script[] triggerScripts = new Script[0]; // by trigger, null if it does not run a script
+    private int[][] triggerRegisters = new int[0][];
+    private final java.util.function.Function<String, Script> scriptsByName = this::fetchScript; // saves, see WanderSystem.read()
+    private int triggerSeed = 1; // rand() of trigger scripts
+    private AssetWatcher assetWatcher = null; // null when hot reloading is off (headless, -Dgame.hotReload=false)
+    private volatile String lastReload = null; // what the watcher changed last, shown by the debug info (F12)
+    private ReplaySystem replay = null;
+    private int spawnSeed = 1;
     private Player player = null;
-    private Camera camera = null;
+    private Camera camera = null;      // follows the player, the only camera unless the view is split
+    private Camera watchCamera = null; // right half of the split view, follows an npc
+    private boolean splitView = false;
+    private int watchRow = -1;         // npc followed by the watch camera
+    private Minimap minimap = null;
+    private ParticleSystem particles = null;
+    private ParticleSurface particleSurface = null;
+    private BufferedImage particleLayer = null;
+    private int[] particlePixels = null;
+    private int maxParticles = Integer.getInteger("game.maxParticles", 32768);
+    private boolean raining = false;
+    private boolean showMinimap = false;
+
+    // Color effects, done by changing the palette (see applyPaletteEffects()). The day/night cycle (N in
+    // the overworld) only advances while the overworld does, a flash fades out over FLASH_TICKS.
+    private static final int DAY_LENGTH_TICKS = Integer.getInteger("game.dayLengthSeconds", 120) * (int) TICK_RATE;
+    private static final int FLASH_TICKS = 12;
+    private static final int NIGHT_R = 70;
+    private static final int NIGHT_G = 80;
+    private static final int NIGHT_B = 150;
+    private boolean dayNight = false;
+    private int dayTick = 0;
+    private int flashTicks = 0;
+
+    // actor rows collected once per frame, shared by every viewport
+    private int[] visibleActors = new int[64];
+    private int visibleActorCount = 0;
 
     public enum State {
         MENU,
         OVER_WORLD,
-        TRANSITION;
+        TRANSITION,
+        PAUSE,
+        DIALOGUE;
     }
-    private State state = State.MENU;
 
-    private GameState menuState = null;
-    private GameState overworldState = null;
-    private GameState transitionState = null;
+    // Every state is created once in init() and lives as long as the game. The stack holds the active
+    // ones, only the top one receives input and updates. Overlays (see GameState.isOverlay()) are drawn
+    // on top of a frozen frame of the state beneath them instead of rendering that state again.
+    private static final State[] STATES = State.values();
+    private final GameState[] states = new GameState[STATES.length];
+    private final State[] stateStack = new State[8];
+    private int stateStackSize = 0;
+    private BufferedImage frozenFrame = null;
+    private boolean frozenFrameValid = false;
+    private int frozenFrameVersion = 0; // of the palette
+    private StateTransitionState transitionState = null;
+
+    // assets of the state we transition into are loaded on this thread while the transition plays
+    private Thread prefetchThread = null;
+    private volatile State prefetchRequest = null;
+    private volatile boolean prefetchDone = true;
+
+    // The game must not produce garbage, the heap is only a few mb (see build.bat). Run with
+    // -Dgame.allocCheck=true to check that the ticks and frames after the warm-up allocate zero bytes on
+    // the thread running them, the menu included. The warm-up is ALLOC_CHECK_WARMUP_SECONDS of normal
+    // ticks and frames, which gives the JIT the time to compile the hot paths.
+    //
+    // The only frames that are not checked are the ones that rebuild something on purpose (a palette
+    // change, the first view of a sprite, the frozen frame under an overlay), see frameRebuilds. Everything
+    // else that allocates is reported. The JIT itself allocates now and then: when a branch is taken for
+    // the first time, the compiled code is thrown away and the objects it had optimized away are put onto
+    // the heap. So up to ALLOC_CHECK_TOLERANCE reported ticks and frames are let through in every window of
+    // ALLOC_CHECK_WINDOW_TICKS, garbage made by the game shows up more often than that.
+    //
+    // What Java2D allocates inside drawImage() is counted on its own and reported once per window, see
+    // drawImage().
+    private static final boolean ALLOC_CHECK = Boolean.getBoolean("game.allocCheck");
+    private static final int ALLOC_CHECK_WARMUP_SECONDS = Integer.getInteger("game.allocCheckWarmupSeconds", 30);
+    private static final int ALLOC_CHECK_WINDOW_TICKS = 10 * (int) TICK_RATE;
+    private static final int ALLOC_CHECK_TOLERANCE = 4;
+    private com.sun.management.ThreadMXBean threadBean = null;
+    private long ticksChecked = 0; // counts the warm-up too
+    private long framesChecked = 0;
+    private int allocationsInWindow = 0; // reported ticks and frames since the window started
+    private long drawAllocated = 0;      // by drawImage() in the current frame
+    private long drawAllocatedInWindow = 0;
+    private int drawFramesInWindow = 0;
+    private boolean frameRebuilds = false; // set by render() when it allocates on purpose
+    private int framePaletteVersion = 0;
+
+    private Pool<Vector2f> vectorPool = null;
+    private BufferedImage worldImage = null;
+    private int[] worldPixels = null; // getRGB(x, y) allocates for indexed images, so we fetch all pixels once per image
+    private Pool<Player> playerPool = null;
+
+    // tile sprites of the overworld, resolved once per loadOverworld()
+    private int grassSprite    = EntityStore.NO_SPRITE;
+    private int waterSprite    = EntityStore.NO_SPRITE;
+    private int treeSprite     = EntityStore.NO_SPRITE;
+    private int mountainSprite = EntityStore.NO_SPRITE;
+    private int waterAnim      = AnimationTable.NO_ANIMATION;
+
+    // Procedural worlds (G in the overworld), 0 means the world comes from res/overworld.png. Chunks
+    // are cooked into tiles once a camera gets close, everything further away is still empty.
+    private static final int GEN_COOK_MARGIN_CELLS     = 8;
+    private static final int GEN_PREFETCH_MARGIN_CELLS = WorldGenerator.CHUNK_SIZE * 2;
+    private WorldGenerator worldGen = null;
+    private long worldSeed = 0;
+    private long nextWorldSeed = 1;
+
+    // -Dgame.connect=port (Main connect) makes this a client of a GameServer. The server simulates every
+    // player including ours, we only send our keys and put the players where the server says they are.
+    private GameClient netClient = null;
+    private Player[] netPlayers = new Player[0]; // the other players, by net id
+    private static final Dir[] DIRS = Dir.values();
+
+    // rows spawned by the last spawnCell() call
+    private int cookedTile    = TileGrid.NO_TILE;
+    private int cookedOverlay = TileGrid.NO_TILE;
 
     private int selectedMenuItem = 0;
     private String[] menuItems = new String[] {
         "Start",
         "Exit"
     };
+    private String[] selectedMenuItems = new String[] { // built once, concatenating per frame allocates
+        "> Start <",
+        "> Exit <"
+    };
 
     public Game() {
         assert EventQueue.isDispatchThread();
-        display = new Display(this, WIDTH, HEIGHT, 60.0d);
+        display = new Display(this, WIDTH, HEIGHT, TICK_RATE);
+    }
+
+    private Game(final Display display) {
+        this.display = display;
+    }
+
+    // A game without a window for benchmarks and tools. Nothing is rendered, the caller drives the ticks.
+    public static Game createHeadless() {
+        return createHeadless(Integer.getInteger("game.maxParticles", 32768));
+    }
+
+    // 'maxParticles' may be tiny for a game whose overworld never updates (GameServer), the particles are
+    // the biggest thing a game allocates.
+    public static Game createHeadless(final int maxParticles) {
+        final Game game = new Game(null);
+        game.maxParticles = maxParticles;
+        game.init();
+        return game;
     }
 
     public void init() {
@@ -64,79 +220,575 @@ public final class Game {
         renderingHints.put(RenderingHints.KEY_TEXT_ANTIALIASING,   RenderingHints.VALUE_TEXT_ANTIALIAS_OFF);
 
         mainFont = new Font("Monospaced", Font.BOLD, 14);
-        imageCache = new HashMap<>();
-
+        titleFont    = mainFont.deriveFont((float) 32);
+        menuFont     = mainFont.deriveFont((float) 18);
+        dialogueFont = mainFont.deriveFont((float) 14);
+        // -Dgame.assetBudgetKb sets how much decoded image data stays cached, see AssetCache
+        palette = new Palette();
+        assets = new AssetCache(Long.getLong("game.assetBudgetKb", 1024) * 1024, palette);
+        sprites = new SpriteTable(assets, palette);
+        animations = new AnimationTable();
+        tileGrid = new TileGrid();
+        collisions = new CollisionGrid(tileGrid);
+        pathfinder = new Pathfinder(tileGrid, 2048, 256);
+        saveSystem = new SaveSystem(this, java.nio.file.Paths.get("save.bin"));
+        replay = new ReplaySystem(this);
+        triggers = new TriggerSystem();
+        particles = new ParticleSystem(maxParticles);
+        particleSurface = new ParticleSurface();
+        particleLayer = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_ARGB);
+        particlePixels = ((DataBufferInt) particleLayer.getRaster().getDataBuffer()).getData();
+        triggerHandler = new TriggerHandler();
+        // -Dgame.genThreads=1 generates the chunks of procedural worlds on a single worker
+        worldGen = new WorldGenerator(Integer.getInteger("game.genThreads", Runtime.getRuntime().availableProcessors()));
+
+        vectorPool = new Pool<>(4, () -> new Vector2f(0, 0));
+        StartupTimer.mark("game_init");
+
+        loadAnimations();
+        StartupTimer.mark("game_animations");
         loadOverworld();
+        StartupTimer.mark("game_overworld");
+
+        // -Dgame.npcThreads=1 forces the npcs to be updated serially
+        wanderers = new WanderSystem(entities, tileGrid, Integer.getInteger("game.npcThreads", Runtime.getRuntime().availableProcessors()));
+        loadNpcs(); // the overworld was loaded before there was anyone to place them
+
+        transitionState = new StateTransitionState();
+        states[State.MENU.ordinal()]       = new MenuState();
+        states[State.OVER_WORLD.ordinal()] = new OverWorldState();
+        states[State.TRANSITION.ordinal()] = transitionState;
+        states[State.PAUSE.ordinal()]      = new PauseState();
+        states[State.DIALOGUE.ordinal()]   = new DialogueState();
+        frozenFrame = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_ARGB); // see drawImage()
+        startPrefetchThread();
+        setState(State.MENU);
+
+        final int connectPort = Integer.getInteger("game.connect", 0);
+        if (connectPort != 0) {
+            try {
+                netClient = GameClient.connect(connectPort);
+            } catch (final IOException ex) {
+                System.err.printf("Failed to connect to port %s, playing alone!%n", connectPort);
+            }
+        }
 
-        menuState = new MenuState();
-        overworldState = new OverWorldState();
+        if (display != null && Boolean.parseBoolean(System.getProperty("game.hotReload", "true"))) {
+            assetWatcher = new AssetWatcher(java.nio.file.Paths.get("res"));
+            try {
+                assetWatcher.start();
+            } catch (final IOException ex) {
+                System.err.println("Failed to watch the asset directory, hot reloading is off!");
+                assetWatcher = null;
+            }
+        }
+
+        if (ALLOC_CHECK) {
+            threadBean = (com.sun.management.ThreadMXBean) java.lang.management.ManagementFactory.getThreadMXBean();
+            assert threadBean.isThreadAllocatedMemorySupported() : "Allocation check not supported by this JVM!";
+        }
 
         // TODO(nschultz): Play this when it is less obnoxious!
         // playSoundFile("res/retro_bg.wav", 0, true);
 
-        Runtime.getRuntime().gc();
-        Runtime.getRuntime().runFinalization();
+        // No explicit gc() here anymore: gameplay does not allocate (see ALLOC_CHECK) and a full collection
+        // on an 8 mb heap only delays the first frame.
+        StartupTimer.mark("game_systems");
+    }
+
+    // javax.sound needs a long time to find its mixers. We do that on a background thread once the window
+    // is up, so neither the startup nor the first sound played on the ui thread has to pay for it. The
+    // same thread plays the sounds afterwards, see playSoundFile().
+    public void warmUpAudio() {
+        soundThread = new Thread(() -> {
+            try {
+                AudioSystem.getLine(new Line.Info(Clip.class)).getLineInfo();
+            } catch (final Exception ex) {
+                // no audio device, playSound() will report it once it is actually used
+            }
+            final Map<String, Clip> clips = new HashMap<>();
+            final Map<String, byte[]> clipBytes = new HashMap<>(); // what the clip was opened with
+            while (true) {
+                final String file = soundRequest;
+                if (file == null) {
+                    java.util.concurrent.locks.LockSupport.park();
+                    continue;
+                }
+                final float decibel = soundDecibel;
+                final boolean loop = soundLoop;
+                soundRequest = null;
+
+                playSound(clips, clipBytes, file, decibel, loop);
+            }
+        });
+        soundThread.setName("sound_thread");
+        soundThread.setDaemon(true);
+        soundThread.setPriority(Thread.MIN_PRIORITY);
+        soundThread.start();
+    }
+
+    private void loadAnimations() {
+        player: {
+            animations.register("player_north", new Animation(new int[] { fetchSprite("res/player_back.png") }, 1, true));
+            animations.register("player_south", new Animation(new int[] { fetchSprite("res/player.png")      }, 1, true));
+            animations.register("player_west",  new Animation(new int[] { fetchSprite("res/player_2.png")    }, 1, true));
+            animations.register("player_east",  new Animation(new int[] { fetchSprite("res/player.png")      }, 1, true));
+        }
+
+        water: {
+            // There is no hand drawn sheet for the water, so one is generated by scrolling the water tile
+            // one pixel per frame, which gives it a slow flowing look.
+            final BufferedImage tile = (BufferedImage) fetchImage("res/water.png");
+            final int[] frames = sprites.registerSheet("water_sheet", palette.index(cookWaterSheet(tile)), tile.getWidth(), tile.getHeight());
+            animations.register("water", new Animation(frames, 15, true));
+        }
+    }
+
+    private static BufferedImage cookWaterSheet(final BufferedImage tile) {
+        final int tw = tile.getWidth();
+        final int th = tile.getHeight();
+        final BufferedImage sheet = new BufferedImage(tw * tw, th, BufferedImage.TYPE_INT_ARGB);
+        for (int frame = 0; frame < tw; ++frame) {
+            for (int y = 0; y < th; ++y) {
+                for (int x = 0; x < tw; ++x) {
+                    sheet.setRGB(frame * tw + x, y, tile.getRGB((x + frame) % tw, y));
+                }
+            }
+        }
+        return sheet;
+    }
+
+    public void reloadOverworld() {
+        loadOverworld();
+    }
+
+    // Clears the current world so a new one can be populated. Everything allocated by the previous
+    // world is reused. 'seed' is the one of a generated world (see generateWorld()), 0 for
+    // res/overworld.png.
+    public void beginWorld(final int w, final int h, final long seed) {
+        assert w > 0 && h > 0;
+
+        if (camera == null) {
+            camera = new Camera(WIDTH, HEIGHT);
+            watchCamera = new Camera(WIDTH / 2, HEIGHT);
+            minimap = new Minimap();
+        }
+        camera.reset(w * TILE_SIZE, h * TILE_SIZE);
+        watchCamera.reset(w * TILE_SIZE, h * TILE_SIZE);
+        watchRow = -1;
+        worldSeed = seed;
+        if (seed != 0) {
+            worldGen.begin(seed, w, h); // no chunk is cooked yet
+        }
+
+        if (entities == null) {
+            entities = new EntityStore(w * h * 2);
+            playerPool = new Pool<>(1, () -> new Player(this)); // handles need the store
+        } else {
+            if (player != null) {
+                player.despawn();
+                playerPool.release(player);
+                player = null;
+            }
+            for (int i = 0; i < netPlayers.length; ++i) {
+                if (netPlayers[i] != null && netPlayers[i].id() != -1) netPlayers[i].despawn();
+            }
+            entities.clear();
+        }
+        collisions.reset(w, h); // after the despawns, they remove their bodies
+    }
+
+    // Must be called once all tiles of the new world are in the store.
+    public void endWorld(final int w, final int h) {
+        tileGrid.rebuild(entities, w, h);
+        if (wanderers != null) {
+            wanderers.reset();
+        }
+        spawnSeed = 1; // the same world always gets the same npcs
+        triggerSeed = 1;
+        saveSystem.resize(w, h);
+        triggers.reset(w, h);
+        if (worldSeed == 0) {
+            loadTriggers(); // the triggers are placed by hand for res/overworld.png
+        }
+        minimap.rebuild(tileGrid, entities, sprites);
+        particles.clear();
+    }
+
+    // One trigger per line, the format is described in the file itself.
+    private void loadTriggers() {
+        final java.nio.file.Path path = java.nio.file.Paths.get(TRIGGERS_FILE);
+        if (!java.nio.file.Files.exists(path)) return;
+
+        final java.util.List<String> lines;
+        try {
+            lines = java.nio.file.Files.readAllLines(path);
+        } catch (final IOException ex) {
+            System.err.printf("Failed to load triggers '%s'!%n", TRIGGERS_FILE);
+            return;
+        }
+
+        for (int i = 0; i < lines.size(); ++i) {
+            final String line = lines.get(i).trim();
+            if (line.isEmpty() || line.startsWith("#")) continue;
+
+            final String[] parts = line.split("\\s+", 7);
+            try {
+                final int x = Integer.parseInt(parts[1]);
+                final int y = Integer.parseInt(parts[2]);
+                final int w = Integer.parseInt(parts[3]);
+                final int h = Integer.parseInt(parts[4]);
+                switch (parts[0]) {
+                    case "warp": {
+                        triggers.add(TriggerSystem.Kind.WARP, x, y, w, h, Integer.parseInt(parts[5]), Integer.parseInt(parts[6]), null, false);
+                    } break;
+
+                    case "dialogue": {
+                        triggers.add(TriggerSystem.Kind.DIALOGUE, x, y, w, h, 0, 0, parts[6], parts[5].equals("once"));
+                    } break;
+
+                    case "encounter": {
+                        triggers.add(TriggerSystem.Kind.ENCOUNTER, x, y, w, h, Integer.parseInt(parts[5]), 0, parts[6], false);
+                    } break;
+
+                    case "script": {
+                        triggers.add(TriggerSystem.Kind.SCRIPT, x, y, w, h, 0, 0, parts[6], parts[5].equals("once"));
+                    } break;
+
+                    default: {
+                        System.err.printf("%s:%s: unknown trigger '%s'!%n", TRIGGERS_FILE, i + 1, parts[0]);
+                    } break;
+                }
+            } catch (final NumberFormatException | ArrayIndexOutOfBoundsException ex) {
+                System.err.printf("%s:%s: malformed trigger!%n", TRIGGERS_FILE, i + 1);
+            }
+        }
+
+        // compiled now, firing a trigger must not load anything
+        triggerScripts   = new Script[triggers.count()];
+        triggerRegisters = new int[triggers.count()][];
+        for (int i = 0; i < triggers.count(); ++i) {
+            if (triggers.kindOf(i) != TriggerSystem.Kind.SCRIPT) continue;
+
+            final Script script = fetchScript(triggers.textOf(i));
+            if (script == null) continue; // the trigger does nothing, the error has been printed
+            triggerScripts[i]   = script;
+            triggerRegisters[i] = new int[script.registerCount()];
+            script.init(triggerRegisters[i]);
+        }
+    }
+
+    // One npc per line: cell x, cell y and the script it runs. Only for res/overworld.png, just like the
+    // triggers. Must be called after endWorld().
+    private void loadNpcs() {
+        final java.nio.file.Path path = java.nio.file.Paths.get(NPCS_FILE);
+        if (!java.nio.file.Files.exists(path)) return;
+
+        final java.util.List<String> lines;
+        try {
+            lines = java.nio.file.Files.readAllLines(path);
+        } catch (final IOException ex) {
+            System.err.printf("Failed to load npcs '%s'!%n", NPCS_FILE);
+            return;
+        }
+
+        final int sprite = fetchSprite("res/player_2.png");
+        for (int i = 0; i < lines.size(); ++i) {
+            final String line = lines.get(i).trim();
+            if (line.isEmpty() || line.startsWith("#")) continue;
+
+            final String[] parts = line.split("\\s+", 3);
+            try {
+                final int x = Integer.parseInt(parts[0]);
+                final int y = Integer.parseInt(parts[1]);
+                final Script script = fetchScript(parts[2]);
+                if (script == null) continue;
+
+                // the seed only depends on the cell, so an npc does not change when others are added
+                if (!wanderers.spawnScripted(x, y, sprite, y * tileGrid.getWidth() + x + 1, script)) {
+                    System.err.printf("%s:%s: cell %s %s is blocked!%n", NPCS_FILE, i + 1, x, y);
+                }
+            } catch (final NumberFormatException | ArrayIndexOutOfBoundsException ex) {
+                System.err.printf("%s:%s: malformed npc!%n", NPCS_FILE, i + 1);
+            }
+        }
+    }
+
+    // The compiled script in 'file', compiled on first use. Returns null if it does not compile, the
+    // reason has been printed then.
+    public Script fetchScript(final String file) {
+        assert file != null;
+
+        Script script = scripts.get(file);
+        if (script == null) {
+            script = compileScript(file);
+            if (script != null) {
+                scripts.put(file, script);
+            }
+        }
+        return script;
+    }
+
+    private static Script compileScript(final String file) {
+        try {
+            final byte[] bytes = java.nio.file.Files.readAllBytes(java.nio.file.Paths.get(file));
+            return ScriptCompiler.compile(file, new String(bytes, java.nio.charset.StandardCharsets.UTF_8));
+        } catch (final IOException ex) {
+            System.err.printf("Failed to load script '%s'!%n", file);
+        } catch (final ScriptCompiler.CompileError ex) {
+            System.err.println(ex.getMessage());
+        }
+        return null;
+    }
+
+    // Hot reloading: whoever runs the old version starts over with the new one. A script that does not
+    // compile anymore leaves the old version running.
+    private void reloadScript(final String file) {
+        final Script old = scripts.get(file);
+        if (old == null) return; // nobody uses it yet
+
+        final Script script = compileScript(file);
+        if (script == null) return;
+
+        scripts.put(file, script);
+        wanderers.replaceScript(old, script);
+        for (int i = 0; i < triggerScripts.length; ++i) {
+            if (triggerScripts[i] != old) continue;
+
+            triggerScripts[i] = script;
+            if (triggerRegisters[i].length < script.registerCount()) {
+                triggerRegisters[i] = new int[script.registerCount()];
+            }
+            script.init(triggerRegisters[i]);
+        }
+        lastReload = String.format("'%s' (%s instructions)", file, script.instructionCount());
     }
 
     // TODO(nschultz): Way later, we need our own build-in editor.
     private void loadOverworld() {
         final BufferedImage image = (BufferedImage) fetchImage("res/overworld.png");
 
-        camera = new Camera(image.getWidth() * TILE_SIZE, image.getHeight() * TILE_SIZE);
-        if (entities != null) entities.clear();
-        entities = new ArrayList<>(image.getWidth() * image.getHeight());
+        beginWorld(image.getWidth(), image.getHeight(), 0);
+        resolveTileSprites();
 
+        final Vector2f v2 = vectorPool.acquire();
         final int w = image.getWidth();
         final int h = image.getHeight();
+        if (worldImage != image) {
+            worldImage  = image;
+            worldPixels = image.getRGB(0, 0, w, h, null, 0, w);
+        }
+
         for (int x = 0; x < w; ++x) {
             for (int y = 0; y < h; ++y) {
-                final int rgb = image.getRGB(x, y);
-
-                final Color color = new Color(rgb, /*hasAlpha*/ true);
-                final int r = color.getRed();
-                final int g = color.getGreen();
-                final int b = color.getBlue();
-
-                // Evaluate the pixels colors and populate the world accordingly!
-                if (r == 255 && g == 0 && b == 0) {
-                    // add grasstile under the player, so we do not leave a hole
-                    entities.add(new SimpleTile(this, new Vector2f(x * Game.TILE_SIZE, y * Game.TILE_SIZE), fetchImage("res/grass.png"), true));
-
-                    player = new Player(this, new Vector2f(x * Game.TILE_SIZE, y * Game.TILE_SIZE));
-                } else if (r == 0 && g == 127 && b == 14) {
-                    entities.add(new SimpleTile(this, new Vector2f(x * Game.TILE_SIZE, y * Game.TILE_SIZE), fetchImage("res/grass.png"), true));
-                } else if (r == 0 && g == 38 && b == 255) {
-                    entities.add(new SimpleTile(this, new Vector2f(x * Game.TILE_SIZE, y * Game.TILE_SIZE), fetchImage("res/water.png"), false));
-                } else if (r == 62 && g == 86 && b == 0) {
-                    // add grasstile under the tree, so we do not leave a hole
-                    entities.add(new SimpleTile(this, new Vector2f(x * Game.TILE_SIZE, y * Game.TILE_SIZE), fetchImage("res/grass.png"), false));
-
-                    entities.add(new SimpleTile(this, new Vector2f(x * Game.TILE_SIZE, y * Game.TILE_SIZE), fetchImage("res/tree.png"), false));
-                } else if (r == 96 && g == 80 && b == 0) {
-                    // add mountaintile under the tree, so we do not leave a hole
-                    entities.add(new SimpleTile(this, new Vector2f(x * Game.TILE_SIZE, y * Game.TILE_SIZE), fetchImage("res/grass.png"), false));
-
-                    entities.add(new SimpleTile(this, new Vector2f(x * Game.TILE_SIZE, y * Game.TILE_SIZE), fetchImage("res/mountain.png"), false));
-                } else {
-                    assert false : String.format("Uknown tile value %s\n", color.toString());
-                }
+                v2.set(x * Game.TILE_SIZE, y * Game.TILE_SIZE);
+                spawnCell(v2, worldPixels[y * w + x], true);
             }
         }
+        vectorPool.release(v2);
+
+        endWorld(w, h);
+        if (wanderers != null) {
+            loadNpcs();
+        }
+
         assert player != null : "Overworld must have the player somewhere!";
+        camera.centerOnEntity(player);
+        camera.snapTo(camera.xCam, camera.yCam);
     }
 
-    public Image fetchImage(final String file) {
+    // A world of w * h cells generated from 'seed' (see WorldGenerator) instead of res/overworld.png.
+    // Only the chunks around the player are cooked here, the rest follows as the cameras get close.
+    public void generateWorld(final long seed, final int w, final int h) {
+        assert seed != 0 : "Seed 0 stands for res/overworld.png!";
+
+        beginWorld(w, h, seed);
+        resolveTileSprites();
+        endWorld(w, h);
+
+        // the generator keeps the center free
+        final Vector2f v2 = vectorPool.acquire();
+        v2.set((w / 2) * TILE_SIZE, (h / 2) * TILE_SIZE);
+        player = playerPool.acquire();
+        player.spawn(v2);
+        vectorPool.release(v2);
+
+        camera.centerOnEntity(player);
+        camera.snapTo(camera.xCam, camera.yCam);
+        cookGeneratedChunks(camera);
+    }
+
+    public long getWorldSeed() {
+        return worldSeed;
+    }
+
+    // Cooks every chunk close to the camera that has not been cooked yet, prefetches the ones further out.
+    private void cookGeneratedChunks(final Camera cam) {
+        worldGen.prefetch(cam.xCam, cam.yCam, cam.getWidth(), cam.getHeight(), GEN_PREFETCH_MARGIN_CELLS);
+
+        final Vector2f v2 = vectorPool.acquire();
+        final int chunkSize = WorldGenerator.CHUNK_SIZE;
+        for (int chunk; (chunk = worldGen.acquire(cam.xCam, cam.yCam, cam.getWidth(), cam.getHeight(), GEN_COOK_MARGIN_CELLS)) != -1;) {
+            final int x0 = (chunk % worldGen.getChunksX()) * chunkSize;
+            final int y0 = (chunk / worldGen.getChunksX()) * chunkSize;
+            final int x1 = Math.min(worldGen.getWidth(),  x0 + chunkSize);
+            final int y1 = Math.min(worldGen.getHeight(), y0 + chunkSize);
+            for (int y = y0; y < y1; ++y) {
+                for (int x = x0; x < x1; ++x) {
+                    v2.set(x * TILE_SIZE, y * TILE_SIZE);
+                    spawnCell(v2, worldGen.colorAt(x, y), false);
+                    commitCookedCell(x, y);
+                }
+            }
+        }
+        vectorPool.release(v2);
+    }
+
+    private void resolveTileSprites() {
+        grassSprite    = fetchSprite("res/grass.png");
+        waterSprite    = fetchSprite("res/water.png");
+        treeSprite     = fetchSprite("res/tree.png");
+        mountainSprite = fetchSprite("res/mountain.png");
+        waterAnim      = animations.idOf("water");
+    }
+
+    // Evaluates the color of one overworld pixel and populates its cell accordingly!
+    private void spawnCell(final Vector2f v2, final int rgb, final boolean spawnPlayer) {
+        final int r = (rgb >> 16) & 0xFF;
+        final int g = (rgb >>  8) & 0xFF;
+        final int b = (rgb      ) & 0xFF;
+
+        cookedOverlay = TileGrid.NO_TILE;
+        if (r == 255 && g == 0 && b == 0) {
+            // add grasstile under the player, so we do not leave a hole
+            cookedTile = SimpleTile.spawn(this, v2, grassSprite, true);
+
+            if (spawnPlayer) {
+                player = playerPool.acquire();
+                player.spawn(v2);
+            }
+        } else if (r == 0 && g == 127 && b == 14) {
+            cookedTile = SimpleTile.spawn(this, v2, grassSprite, true);
+        } else if (r == 0 && g == 38 && b == 255) {
+            cookedTile = SimpleTile.spawn(this, v2, waterSprite, false);
+            entities.setAnimation(cookedTile, waterAnim);
+        } else if (r == 62 && g == 86 && b == 0) {
+            // add grasstile under the tree, so we do not leave a hole
+            cookedTile = SimpleTile.spawn(this, v2, grassSprite, false);
+
+            cookedOverlay = SimpleTile.spawn(this, v2, treeSprite, false);
+        } else if (r == 96 && g == 80 && b == 0) {
+            // add mountaintile under the tree, so we do not leave a hole
+            cookedTile = SimpleTile.spawn(this, v2, grassSprite, false);
+
+            cookedOverlay = SimpleTile.spawn(this, v2, mountainSprite, false);
+        } else {
+            assert false : String.format("Uknown tile value %s\n", new Color(rgb, /*hasAlpha*/ true).toString());
+        }
+    }
+
+    // Called between two ticks for every file in res/ that changed on disk (see AssetWatcher). Images
+    // have already been decoded by the watcher, 'image' is null for everything else.
+    public void onAssetChanged(final String file, final BufferedImage image) {
         assert file != null;
 
-        if (imageCache.get(file) != null) {
-            // fetch image out of the cache (instead of loading a new one from disk again)
-            return imageCache.get(file);
+        if (image == null) {
+            if (file.equals(TRIGGERS_FILE)) {
+                if (worldSeed != 0) return; // picked up with the next F5
+                triggers.reset(tileGrid.getWidth(), tileGrid.getHeight());
+                loadTriggers();
+                lastReload = String.format("'%s' (%s triggers)", file, triggers.count());
+            } else if (file.endsWith(".script")) {
+                reloadScript(file);
+            } else {
+                soundCache.remove(file); // loaded again on the next play
+            }
+            return;
+        }
+        final BufferedImage indexed = palette.index(image);
+        assets.put(file, indexed);
+
+        if (file.equals("res/overworld.png")) {
+            if (worldSeed == 0) {
+                recookOverworld(indexed);
+            } // else the new image is picked up with the next F5
+            return;
+        }
+
+        final int sprite = sprites.idOf(file);
+        if (sprite != EntityStore.NO_SPRITE) {
+            // the id stays the same, every entity using the sprite picks up the new image right away
+            sprites.replace(sprite, indexed);
+            minimap.invalidateSprite(sprite);
+            minimap.rebuild(tileGrid, entities, sprites);
         }
 
+        if (file.equals("res/water.png")) {
+            if (!sprites.replaceSheet("water_sheet", palette.index(cookWaterSheet(indexed)), indexed.getWidth(), indexed.getHeight())) {
+                System.err.println("The size of the water tile changed, restart to see the new animation!");
+            }
+        }
+        lastReload = String.format("'%s'", file);
+    }
+
+    // Only the cells whose pixel changed are rebuilt, the rest of the world (npcs, the player, the
+    // animation state of the water ...) stays as it is.
+    private void recookOverworld(final BufferedImage image) {
+        final int w = image.getWidth();
+        final int h = image.getHeight();
+        if (w != tileGrid.getWidth() || h != tileGrid.getHeight()) {
+            loadOverworld();
+            lastReload = "'res/overworld.png' (size changed, full reload)";
+            return;
+        }
+
+        final int[] pixels = image.getRGB(0, 0, w, h, null, 0, w);
+        final Vector2f v2 = vectorPool.acquire();
+        int changed = 0;
+        for (int y = 0; y < h; ++y) {
+            for (int x = 0; x < w; ++x) {
+                final int rgb = pixels[y * w + x];
+                if (rgb == worldPixels[y * w + x]) continue;
+
+                final int oldTile    = tileGrid.getTile(x, y);
+                final int oldOverlay = tileGrid.getOverlay(x, y);
+                if (oldTile    != TileGrid.NO_TILE) entities.release(oldTile);
+                if (oldOverlay != TileGrid.NO_TILE) entities.release(oldOverlay);
+
+                v2.set(x * Game.TILE_SIZE, y * Game.TILE_SIZE);
+                spawnCell(v2, rgb, false);
+                commitCookedCell(x, y);
+                changed += 1;
+            }
+        }
+        vectorPool.release(v2);
+
+        worldImage  = image;
+        worldPixels = pixels;
+        lastReload = String.format("'res/overworld.png' (%s cells changed)", changed);
+    }
+
+    // Puts the rows of the last spawnCell() call into the grid of an already running world.
+    private void commitCookedCell(final int x, final int y) {
+        // tiles are drawn in row order, the overlay has to end up behind the ground tile
+        if (cookedOverlay != TileGrid.NO_TILE && cookedOverlay < cookedTile) {
+            entities.swap(cookedTile, cookedOverlay);
+            final int tmp = cookedTile;
+            cookedTile    = cookedOverlay;
+            cookedOverlay = tmp;
+        }
+
+        tileGrid.setCell(entities, x, y, cookedTile, cookedOverlay);
+        minimap.updateCell(tileGrid, entities, sprites, x, y);
+        saveSystem.markDirty(x, y);
+    }
+
+    public Image fetchImage(final String file) {
+        assert file != null;
+
         try {
-            final Image image = ImageIO.read(new File(file));
-            imageCache.put(file, image);
-            return image;
+            // out of the cache if possible, decoded on this thread otherwise
+            return assets.get(file);
         } catch (final IOException ex) {
             System.err.printf("Failed to load asset '%s'!\n", file);
             System.exit(-1);
@@ -146,172 +798,653 @@ public final class Game {
         return null;
     }
 
+    public int fetchSprite(final String file) {
+        assert file != null;
+
+        final int id = sprites.idOf(file);
+        if (id != EntityStore.NO_SPRITE) {
+            return id;
+        }
+        return sprites.register(file, fetchImage(file));
+    }
+
+    // Like fetchSprite(), for names that come from outside (a save file): returns NO_SPRITE if there is
+    // no such image instead of giving up.
+    public int findSprite(final String file) {
+        assert file != null;
+
+        final int id = sprites.idOf(file);
+        if (id != EntityStore.NO_SPRITE) {
+            return id;
+        }
+        try {
+            return sprites.register(file, assets.get(file));
+        } catch (final IOException ex) {
+            return EntityStore.NO_SPRITE;
+        }
+    }
+
+    public AnimationTable getAnimations() {
+        return animations;
+    }
+
+    public EntityStore getEntityStore() {
+        return entities;
+    }
+
+    public CollisionGrid getCollisions() {
+        return collisions;
+    }
+
+    public SpriteTable getSprites() {
+        return sprites;
+    }
+
+    public String getLastReload() {
+        return lastReload;
+    }
+
+    public AssetCache getAssets() {
+        return assets;
+    }
+
+    public Palette getPalette() {
+        return palette;
+    }
+
+    // The offsets are looked up instead of switched over: a switch over an enum loads a helper class the
+    // first time it runs, which allocates in the middle of gameplay (see ALLOC_CHECK).
     public enum Dir {
-        NORTH,
-        SOUTH,
-        WEST,
-        EAST;
+        NORTH( 0, -1),
+        SOUTH( 0,  1),
+        WEST (-1,  0),
+        EAST ( 1,  0);
+
+        public final int dx;
+        public final int dy;
+
+        Dir(final int dx, final int dy) {
+            this.dx = dx;
+            this.dy = dy;
+        }
     }
 
-    public Entity getNextTileFrom(final Entity src, final Dir dir) {
+    // returns the id of the tile next to 'src' in the given direction or -1 if there is none
+    public int getNextTileFrom(final Entity src, final Dir dir) {
         assert src != null;
         assert dir != null;
 
-        for (final Entity e : entities) {
-            switch (dir) {
-                case NORTH: {
-                    if (e.v2.x == src.v2.x && e.v2.y == (src.v2.y - TILE_SIZE)) {
-                        return e;
-                    }
-                } break;
+        final int cx = (int) src.x() / TILE_SIZE + dir.dx;
+        final int cy = (int) src.y() / TILE_SIZE + dir.dy;
+        return tileGrid.getTile(cx, cy);
+    }
 
-                case SOUTH: {
-                    if (e.v2.x == src.v2.x && e.v2.y == (src.v2.y + TILE_SIZE)) {
-                        return e;
-                    }
-                } break;
+    public boolean canMoveToTile(final Entity src, final Dir dir) {
+        assert src != null;
+        assert dir != null;
 
-                case WEST: {
-                    if (e.v2.x  == (src.v2.x - TILE_SIZE) && e.v2.y == src.v2.y) {
-                        return e;
-                    }
-                } break;
+        final int tile = getNextTileFrom(src, dir);
+        if (tile == TileGrid.NO_TILE) return false;
 
-                case EAST: {
-                    if (e.v2.x == (src.v2.x + TILE_SIZE) && e.v2.y == src.v2.y) {
-                        return e;
-                    }
-                } break;
+        final int cx = (int) entities.x[tile] / TILE_SIZE;
+        final int cy = (int) entities.y[tile] / TILE_SIZE;
+        return tileGrid.isPassable(cx, cy) && !wanderers.isOccupied(cx, cy);
+    }
 
-                default: {
-                    assert false : "Unknown Dir!";
-                } break;
+    // Spawns up to 'amount' wandering npcs on free cells around the player.
+    public int spawnWanderers(final int amount, final int radius) {
+        assert amount > 0 && radius > 0;
+
+        final int sprite = fetchSprite("res/player_2.png");
+        final int pcx = (int) player.x() / TILE_SIZE;
+        final int pcy = (int) player.y() / TILE_SIZE;
+        int spawned = 0;
+        for (int attempt = 0; attempt < amount * 8 && spawned < amount; ++attempt) {
+            spawnSeed ^= spawnSeed << 13;
+            spawnSeed ^= spawnSeed >>> 17;
+            spawnSeed ^= spawnSeed << 5;
+
+            final int cx = pcx + Math.floorMod(spawnSeed, radius * 2 + 1) - radius;
+            final int cy = pcy + Math.floorMod(spawnSeed >>> 16, radius * 2 + 1) - radius;
+            if (cx == pcx && cy == pcy) continue;
+
+            if (wanderers.spawn(cx, cy, sprite, spawnSeed)) {
+                spawned += 1;
             }
         }
+        return spawned;
+    }
+
+    // upper bound of what writeSnapshotState() writes
+    public int snapshotStateBytes() {
+        int triggerBytes = 4 + triggers.count() * (1 + 2);
+        for (int i = 0; i < triggerScripts.length; ++i) {
+            if (triggerScripts[i] != null) triggerBytes += triggerScripts[i].registerCount() * 4;
+        }
+        final int chunks = worldSeed != 0 ? worldGen.getChunkCount() : 0;
+        return 4 * 5 + wanderers.snapshotBytes() + triggerBytes + 4 + ((chunks + 63) >>> 6) * 8;
+    }
 
+    // everything that is not a tile, see SaveSystem
+    public void writeSnapshotState(final java.nio.ByteBuffer buf) {
+        // overlays and transitions are not saved, only the state they lead to or sit on
+        buf.putInt(topState() == State.TRANSITION ? transitionState.newState.ordinal() : stateStack[0].ordinal());
+        buf.putFloat(camera.xCam);
+        buf.putFloat(camera.yCam);
+        buf.putFloat(player.restX());
+        buf.putFloat(player.restY());
+        wanderers.write(buf);
+
+        // what the triggers remember: whether they fired ('once' ones are used up), the script variables
+        buf.putInt(triggers.count());
+        for (int i = 0; i < triggers.count(); ++i) {
+            buf.put((byte) (triggers.hasFired(i) ? 1 : 0));
+            final Script script = i < triggerScripts.length ? triggerScripts[i] : null;
+            if (script == null) {
+                buf.putShort((short) -1);
+                continue;
+            }
+            buf.putShort((short) script.registerCount());
+            for (int r = 0; r < script.registerCount(); ++r) {
+                buf.putInt(triggerRegisters[i][r]);
+            }
+        }
+
+        // which chunks of a generated world are cooked, the tiles of the rest are not in the save
+        final int chunks = worldSeed != 0 ? worldGen.getChunkCount() : 0;
+        buf.putInt(chunks);
+        for (int word = 0; word < (chunks + 63) >>> 6; ++word) {
+            long bits = 0;
+            for (int chunk = word << 6; chunk < Math.min(chunks, (word + 1) << 6); ++chunk) {
+                if (worldGen.isHandedOut(chunk)) bits |= 1L << chunk;
+            }
+            buf.putLong(bits);
+        }
+    }
+
+    // Returns what is wrong with the state at the position of 'buf', null if readSnapshotState() can
+    // apply it to a world of w * h cells made from 'seed'. Moves the position of 'buf'.
+    public String checkSnapshotState(final java.nio.ByteBuffer buf, final int w, final int h, final long seed, final int spriteCount) {
+        if (buf.remaining() < 4 * 5) return "game state is truncated";
+
+        final int state = buf.getInt();
+        if (state < 0 || state >= STATES.length || STATES[state] == State.TRANSITION) return "unknown state " + state;
+
+        buf.getFloat();
+        buf.getFloat();
+        final float x = buf.getFloat();
+        final float y = buf.getFloat();
+        if (!(x >= 0 && x < w * TILE_SIZE && y >= 0 && y < h * TILE_SIZE)) return "player is outside of the world";
+
+        final String npcError = WanderSystem.check(buf, w * h, spriteCount, scriptsByName);
+        if (npcError != null) return npcError;
+
+        if (buf.remaining() < 4) return "triggers are truncated";
+        final int triggerCount = buf.getInt();
+        if (triggerCount < 0) return "triggers are corrupt";
+        for (int i = 0; i < triggerCount; ++i) {
+            if (buf.remaining() < 1 + 2) return "triggers are truncated";
+            buf.get();
+            final int registerCount = buf.getShort();
+            if (registerCount < -1) return "trigger " + i + " is corrupt";
+            if (buf.remaining() < Math.max(registerCount, 0) * 4) return "triggers are truncated";
+            buf.position(buf.position() + Math.max(registerCount, 0) * 4);
+        }
+
+        final int cs = WorldGenerator.CHUNK_SIZE;
+        final int chunks = seed != 0 ? ((w + cs - 1) / cs) * ((h + cs - 1) / cs) : 0;
+        if (buf.remaining() < 4 || buf.getInt() != chunks) return "cooked chunks do not match the world";
+        if (buf.remaining() < ((chunks + 63) >>> 6) * 8) return "cooked chunks are truncated";
         return null;
     }
 
-    public boolean canMoveToTile(final Entity src, final Dir dir) {
-        assert src != null;
-        assert dir != null;
+    public void readSnapshotState(final java.nio.ByteBuffer buf, final int[] spriteMap) {
+        setState(STATES[buf.getInt()]);
+        final float xCam = buf.getFloat();
+        final float yCam = buf.getFloat();
+        camera.snapTo(xCam, yCam);
+
+        final Vector2f v2 = vectorPool.acquire();
+        v2.set(buf.getFloat(), buf.getFloat());
+        player = playerPool.acquire();
+        player.spawn(v2);
+        vectorPool.release(v2);
+
+        wanderers.read(buf, spriteMap, scriptsByName);
+
+        // The triggers of the world have been loaded by endWorld(). If that file has changed since the
+        // save, they start over.
+        final int triggerCount = buf.getInt();
+        for (int i = 0; i < triggerCount; ++i) {
+            final boolean fired = buf.get() != 0;
+            final int registerCount = buf.getShort();
+            final boolean same = triggerCount == triggers.count();
+            if (same) {
+                triggers.setFired(i, fired);
+            }
+            final Script script = same && i < triggerScripts.length ? triggerScripts[i] : null;
+            if (script != null && registerCount == script.registerCount()) {
+                for (int r = 0; r < registerCount; ++r) {
+                    triggerRegisters[i][r] = buf.getInt();
+                }
+            } else {
+                buf.position(buf.position() + Math.max(registerCount, 0) * 4);
+            }
+        }
 
-        final Entity e = getNextTileFrom(src, dir);
-        return e != null && e.passable;
+        // the generator is at the start of the world (see beginWorld()), the cooked chunks came from the file
+        final int chunks = buf.getInt();
+        for (int word = 0; word < (chunks + 63) >>> 6; ++word) {
+            final long bits = buf.getLong();
+            for (int chunk = word << 6; chunk < Math.min(chunks, (word + 1) << 6); ++chunk) {
+                if ((bits & (1L << chunk)) != 0) worldGen.markHandedOut(chunk);
+            }
+        }
+    }
+
+    // Puts the game into the state every recording starts from: a freshly loaded overworld.
+    public void resetForReplay() {
+        nextWorldSeed = 1;
+        dayNight = false;
+        dayTick = 0;
+        flashTicks = 0;
+        raining = false;
+        selectedMenuItem = 0;
+        // the camera size decides where it is clamped (see stateHash()) and which chunks get cooked
+        splitView = false;
+        camera.resize(WIDTH, HEIGHT);
+        loadOverworld(); // also resets watchRow
+        setState(State.OVER_WORLD);
+    }
+
+    // Hash of everything the simulation decides, used to detect replays that diverge from their recording.
+    public long stateHash() {
+        long hash = topState().ordinal();
+        hash = hash * 31 + Float.floatToIntBits(camera.xCam);
+        hash = hash * 31 + Float.floatToIntBits(camera.yCam);
+        if (player != null) {
+            hash = hash * 31 + Float.floatToIntBits(player.x());
+            hash = hash * 31 + Float.floatToIntBits(player.y());
+        }
+        hash = hash * 31 + entities.count;
+        hash = hash * 31 + wanderers.stateHash();
+        return hash;
+    }
+
+    public SaveSystem getSaveSystem() {
+        return saveSystem;
+    }
+
+    public ParticleSystem getParticles() {
+        return particles;
+    }
+
+    public TriggerSystem getTriggers() {
+        return triggers;
+    }
+
+    public ReplaySystem getReplay() {
+        return replay;
+    }
+
+    public WanderSystem getWanderers() {
+        return wanderers;
+    }
+
+    public Player getPlayer() {
+        return player;
+    }
+
+    public TileGrid getTileGrid() {
+        return tileGrid;
+    }
+
+    public Pathfinder getPathfinder() {
+        return pathfinder;
+    }
+
+    // another instance of the game was started, see InstanceLock
+    public void bringToFront() {
+        if (display != null) {
+            display.bringToFront();
+        }
     }
 
     public void destroy() {
     }
 
-    public void onNextFrame(final Graphics2D g, final Display.InputHandler input) {
-        assert g     != null;
+    private void pollNetClient() {
+        if (netClient.poll()) {
+            if (topState() != State.OVER_WORLD) {
+                netClient.sendKeys(0); // our player stands still on the server while we are not playing
+            }
+            return;
+        }
+
+        System.err.println("Lost the connection to the server, playing alone!");
+        netClient = null;
+        for (int i = 0; i < netPlayers.length; ++i) {
+            if (netPlayers[i] != null && netPlayers[i].id() != -1) netPlayers[i].despawn();
+        }
+    }
+
+    public void onNextTick(final Input input) {
         assert input != null;
 
+        final long allocatedBefore = ALLOC_CHECK ? threadBean.getCurrentThreadAllocatedBytes() : 0;
+
+        saveSystem.poll();
+        assets.poll(sprites);
+        if (assetWatcher != null) {
+            assetWatcher.poll(this);
+        }
+        // in every state, the server keeps sending and drops us once its buffer for us is full
+        if (netClient != null) {
+            pollNetClient();
+        }
+        replay.beforeTick(input);
         processInput(input);
         update();
-        render(g);
+        replay.afterTick(input);
+
+        if (ALLOC_CHECK) {
+            final long allocated = threadBean.getCurrentThreadAllocatedBytes() - allocatedBefore;
+            ticksChecked += 1;
+            if (ticksChecked % ALLOC_CHECK_WINDOW_TICKS == 0) {
+                if (drawFramesInWindow != 0) {
+                    System.err.printf("Java2D allocated %s bytes in %s frames of the last %s ticks.%n", drawAllocatedInWindow, drawFramesInWindow, ALLOC_CHECK_WINDOW_TICKS);
+                }
+                allocationsInWindow = 0;
+                drawAllocatedInWindow = 0;
+                drawFramesInWindow = 0;
+            }
+            if (allocCheckWarm() && allocated != 0) {
+                reportAllocation("Tick", ticksChecked, allocated);
+            }
+        }
     }
 
+    // alpha: how far we are between the previous and the current tick [0, 1)
+    public void onNextFrame(final Graphics2D g, final float alpha) {
+        assert g != null;
+        assert alpha >= 0 && alpha <= 1;
+
+        final long allocatedBefore = ALLOC_CHECK ? threadBean.getCurrentThreadAllocatedBytes() : 0;
+        drawAllocated = 0;
+        final int viewsBefore = sprites.rebuilds();
+        frameRebuilds = palette.version() != framePaletteVersion;
+        framePaletteVersion = palette.version();
+
+        final long start = replay.isReplaying() ? System.nanoTime() : 0;
+        render(g, alpha);
+        sprites.endFrame(); // pins what has just been drawn
+        if (start != 0) replay.recordFrameTime(System.nanoTime() - start);
+
+        if (ALLOC_CHECK) {
+            final long allocated = threadBean.getCurrentThreadAllocatedBytes() - allocatedBefore - drawAllocated;
+            framesChecked += 1;
+            final boolean rebuilt = frameRebuilds || sprites.rebuilds() != viewsBefore;
+            if (allocCheckWarm() && !rebuilt && allocated != 0) {
+                reportAllocation("Frame", framesChecked, allocated);
+            }
+            if (allocCheckWarm() && !rebuilt && drawAllocated != 0) {
+                drawAllocatedInWindow += drawAllocated;
+                drawFramesInWindow += 1;
+            }
+        }
+    }
+
+    // frames are checked once the ticks are warm, a headless game might not render at all before that
+    private boolean allocCheckWarm() {
+        return ticksChecked > ALLOC_CHECK_WARMUP_SECONDS * (long) TICK_RATE;
+    }
+
+    // 'what' is "Tick" or "Frame"
+    private void reportAllocation(final String what, final long number, final long allocated) {
+        allocationsInWindow += 1;
+        System.err.printf("%s %s (%s) allocated %s bytes, %s of %s allowed in %s ticks.%n",
+                          what, number, topState(), allocated, allocationsInWindow, ALLOC_CHECK_TOLERANCE, ALLOC_CHECK_WINDOW_TICKS);
+        assert allocationsInWindow <= ALLOC_CHECK_TOLERANCE : String.format("%s %s allocated %s bytes, too many ticks and frames allocate!", what, number, allocated);
+    }
+
+    private State topState() {
+        assert stateStackSize > 0;
+        return stateStack[stateStackSize - 1];
+    }
+
+    // Replaces the whole stack without a transition.
+    private void setState(final State newState) {
+        while (stateStackSize > 0) {
+            popState();
+        }
+        pushState(newState);
+    }
+
+    private void pushState(final State newState) {
+        assert newState != null;
+        assert stateStackSize < stateStack.length : "State stack overflow!";
+
+        stateStack[stateStackSize++] = newState;
+        frozenFrameValid = false;
+        states[newState.ordinal()].onEnter();
+    }
+
+    private void popState() {
+        assert stateStackSize > 0;
+
+        final State oldState = stateStack[--stateStackSize];
+        stateStack[stateStackSize] = null;
+        frozenFrameValid = false;
+        states[oldState.ordinal()].onExit();
+    }
+
+    // Plays the transition on top of the current state and replaces the stack with 'newState' once done.
     private void switchState(final State newState) {
         assert newState != null;
 
-        transitionState = new StateTransitionState(newState);
-        state = State.TRANSITION;
+        transitionState.reset(newState);
+        pushState(State.TRANSITION);
     }
 
-    private void processInput(final Display.InputHandler input) {
-        switch (state) {
-            case MENU: {
-                menuState.processInput(input);
-            } break;
+    private void startPrefetchThread() {
+        prefetchThread = new Thread(() -> {
+            while (true) {
+                final State request = prefetchRequest;
+                if (request == null) {
+                    java.util.concurrent.locks.LockSupport.park();
+                    continue;
+                }
+
+                try {
+                    states[request.ordinal()].prefetch();
+                } catch (final RuntimeException ex) {
+                    ex.printStackTrace(System.err); // the state loads whatever is missing itself then
+                }
+                prefetchRequest = null;
+                prefetchDone = true;
+            }
+        });
+        prefetchThread.setName("prefetch_thread");
+        prefetchThread.setDaemon(true);
+        prefetchThread.setPriority(Thread.MIN_PRIORITY);
+        prefetchThread.start();
+    }
 
-            case OVER_WORLD: {
-                overworldState.processInput(input);
-            } break;
+    private void requestPrefetch(final State target) {
+        assert prefetchDone : "Only one prefetch at a time!";
 
-            case TRANSITION: {
-                transitionState.processInput(input);
-            } break;
+        prefetchDone = false;
+        prefetchRequest = target;
+        java.util.concurrent.locks.LockSupport.unpark(prefetchThread);
+    }
 
-            default: {
-                assert false;
-            } break;
+    private void awaitPrefetch() {
+        while (!prefetchDone) {
+            java.util.concurrent.locks.LockSupport.parkNanos(100_000L);
         }
     }
 
-    private void update() {
-
-        switch (state) {
-            case MENU: {
-                menuState.update();
-            } break;
+    // F7/F8 (recording and replays) are handled by the Display: keys read here end up in the recording.
+    private void processInput(final Input input) {
+        states[topState().ordinal()].processInput(input);
+    }
 
-            case OVER_WORLD: {
-                overworldState.update();
-            } break;
+    private void update() {
+        states[topState().ordinal()].update();
+        applyPaletteEffects();
+    }
 
-            case TRANSITION: {
-                transitionState.update();
-            } break;
+    // The tint of the day/night cycle and the flash, the transition does its own fade. Both are
+    // quantized, the palette (and with it every sprite view) only changes when the step does.
+    private void applyPaletteEffects() {
+        if (dayNight) {
+            // 1 at noon, 0 at midnight, in 32 steps
+            final double light = 0.5d + 0.5d * Math.cos(2.0d * Math.PI * dayTick / DAY_LENGTH_TICKS);
+            final int step = (int) Math.round(light * 32.0d);
+            palette.setTint(NIGHT_R + (255 - NIGHT_R) * step / 32, NIGHT_G + (255 - NIGHT_G) * step / 32, NIGHT_B + (255 - NIGHT_B) * step / 32);
+        } else {
+            palette.setTint(255, 255, 255);
+        }
 
-            default: {
-                assert false;
-            } break;
+        if (flashTicks > 0) {
+            flashTicks -= 1;
         }
+        palette.setFlash(0xFFFFFF, 255 * flashTicks / FLASH_TICKS);
     }
 
-    private void render(final Graphics2D g) {
-        g.setRenderingHints(renderingHints);
+    private void render(final Graphics2D g, final float alpha) {
+        // the display draws into the same graphics every frame, setting the hints copies them
+        if (g != hintedGraphics) {
+            g.setRenderingHints(renderingHints);
+            hintedGraphics = g;
+        }
 
-        switch (state) {
-            case MENU: {
-                menuState.render(g);
-            } break;
+        // the state all overlays on top of the stack are drawn onto
+        int base = stateStackSize - 1;
+        while (base > 0 && states[stateStack[base].ordinal()].isOverlay()) {
+            base -= 1;
+        }
 
-            case OVER_WORLD: {
-                overworldState.render(g);
-            } break;
+        if (base == stateStackSize - 1) {
+            states[stateStack[base].ordinal()].render(g, alpha);
+            return;
+        }
 
-            case TRANSITION: {
-                transitionState.render(g);
-            } break;
+        // the state below does not update while covered, so one render of it is enough (until the colors
+        // change, a flash or the fade of a transition)
+        if (!frozenFrameValid || frozenFrameVersion != palette.version()) {
+            final Graphics2D fg = frozenFrame.createGraphics();
+            fg.setRenderingHints(renderingHints);
+            fg.setColor(Color.BLACK); // opaque, like the screen beneath
+            fg.fillRect(0, 0, WIDTH, HEIGHT);
+            states[stateStack[base].ordinal()].render(fg, alpha);
+            fg.dispose();
+            frozenFrameValid = true;
+            frameRebuilds = true;
+            frozenFrameVersion = palette.version();
+        }
+        drawImage(g, frozenFrame, 0, 0, WIDTH, HEIGHT);
 
-            default: {
-                assert false;
-            } break;
+        for (int i = base + 1; i < stateStackSize; ++i) {
+            states[stateStack[i].ordinal()].render(g, alpha);
         }
     }
 
-    // TODO(nschultz): I am loading this file over and over and over again.
-    // I need to put it into memory ONCE and then play it.
+    // Hands the sound to the sound thread, opening a line allocates more than a whole tick is allowed to
+    // (see ALLOC_CHECK). A request made while the previous one was not picked up yet is dropped, and so
+    // is every request before warmUpAudio() (there is no window to hear it in).
     public void playSoundFile(final String file, final float decibel, final boolean loop) {
         assert file != null;
 
+        if (soundThread == null || soundRequest != null) {
+            return;
+        }
+        soundDecibel = decibel;
+        soundLoop = loop;
+        soundRequest = file; // publishes the two above
+        java.util.concurrent.locks.LockSupport.unpark(soundThread);
+    }
+
+    // Sound thread only. Every file gets its own clip, which is kept open and rewound for the next play.
+    private void playSound(final Map<String, Clip> clips, final Map<String, byte[]> clipBytes, final String file, final float decibel, final boolean loop) {
+        assert clips     != null;
+        assert clipBytes != null;
+        assert file      != null;
+
         try {
-            final Clip clip = (Clip) AudioSystem.getLine(new Line.Info(Clip.class));
-            clip.addLineListener(new LineListener() {
-                @Override
-                public void update(final LineEvent event) {
-                    if (event.getType() == LineEvent.Type.STOP) {
-                        clip.close();
-                    }
-                }
-            });
+            final byte[] bytes = fetchSound(file);
+            Clip clip = clips.get(file);
+            if (clip != null && clipBytes.get(file) != bytes) {
+                clip.close(); // the file changed on disk, see onAssetChanged()
+                clip = null;
+            }
+            if (clip == null) {
+                clip = (Clip) AudioSystem.getLine(new Line.Info(Clip.class));
+                clip.open(AudioSystem.getAudioInputStream(new ByteArrayInputStream(bytes)));
+                clips.put(file, clip);
+                clipBytes.put(file, bytes);
+            }
 
-            clip.open(AudioSystem.getAudioInputStream(new File(file)));
+            clip.stop();
             clip.setFramePosition(0);
+            final FloatControl gainControl = (FloatControl) clip.getControl(FloatControl.Type.MASTER_GAIN);
+            gainControl.setValue(decibel);
             if (loop) {
                 clip.loop(Clip.LOOP_CONTINUOUSLY);
+            } else {
+                clip.start();
             }
-
-            final FloatControl gainControl = (FloatControl) clip.getControl(FloatControl.Type.MASTER_GAIN);
-            gainControl.setValue(decibel);
-            clip.start();
         } catch (final Exception ex) {
             ex.printStackTrace(System.err); // TODO(nschultz): Improve
         }
     }
 
+    // the raw bytes of a sound file, read from disk only once
+    private byte[] fetchSound(final String file) throws IOException {
+        assert file != null;
+
+        byte[] bytes = soundCache.get(file);
+        if (bytes == null) {
+            bytes = java.nio.file.Files.readAllBytes(java.nio.file.Paths.get(file));
+            soundCache.put(file, bytes);
+        }
+        return bytes;
+    }
+
+    // Every image the game draws goes through here. Java2D allocates three Rectangles for each image it
+    // copies (one drawn at its own size, the particle layer, the frozen frame ...), which only go away
+    // while its copy path is compiled with escape analysis. The game cannot do anything about when the JIT
+    // gets there or throws that code away again, so the ALLOC_CHECK counts those bytes on their own.
+    // Everything copied is TYPE_INT_ARGB like the back buffer of the Display: every other kind of image
+    // has Java2D look up other loops, which throws its compiled code away.
+    public void drawImage(final Graphics2D g, final Image image, final int x, final int y, final int w, final int h) {
+        final long allocatedBefore = ALLOC_CHECK ? threadBean.getCurrentThreadAllocatedBytes() : 0;
+        g.drawImage(image, x, y, w, h, null);
+        if (ALLOC_CHECK) {
+            drawAllocated += threadBean.getCurrentThreadAllocatedBytes() - allocatedBefore;
+        }
+    }
+
+    // Java2D allocates on every fill with a translucent color, drawing an image prepared once does not.
+    // Images are always drawn with their size given: the plain drawImage(image, x, y, null) takes a path
+    // through Java2D that allocates as well.
+    // 'outline' draws the border only, the image is one pixel larger than the rect then (like drawRect()).
+    private static BufferedImage translucentImage(final int w, final int h, final Color color, final boolean outline) {
+        assert w > 0 && h > 0;
+        assert color != null;
+
+        final BufferedImage image = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+        final Graphics2D g = image.createGraphics();
+        g.setColor(color);
+        if (outline) {
+            g.drawRect(0, 0, w - 1, h - 1);
+        } else {
+            g.fillRect(0, 0, w, h);
+        }
+        g.dispose();
+        return image;
+    }
+
     private Dimension calcStringSize(final Graphics2D g, final String str) {
         assert g   != null;
         assert str != null;
@@ -319,7 +1452,8 @@ public final class Game {
         final int strWidth = g.getFontMetrics().stringWidth(str);
         final int strHeight = g.getFontMetrics().getAscent();
 
-        return new Dimension(strWidth, strHeight);
+        stringSize.setSize(strWidth, strHeight); // only valid until the next call
+        return stringSize;
     }
 
     public void renderTextBox(final Graphics2D g, final Font font, final Color fg, final String str, final Rectangle rect, final Color bg) {
@@ -366,20 +1500,52 @@ public final class Game {
     }
 
     private interface GameState {
-        void processInput(final Display.InputHandler input);
+        void processInput(final Input input);
         void update();
-        void render(final Graphics2D g);
+        void render(final Graphics2D g, final float alpha);
+
+        // called when the state gets pushed onto / popped off the state stack
+        default void onEnter() {}
+        default void onExit() {}
+
+        // Runs on the prefetch thread while the transition into this state plays. Loads whatever the
+        // state needs into the caches, so entering it does not hit the disk.
+        default void prefetch() {}
+
+        // overlays are drawn on top of the (frozen) state beneath them
+        default boolean isOverlay() {
+            return false;
+        }
     }
 
     private final class MenuState implements GameState {
 
+        // The title is drawn with its own graphics, made once for the graphics it was made from: switching
+        // the font of a graphics allocates, so the two fonts are not switched every frame.
+        private Graphics2D titleOf = null;
+        private Graphics2D title = null;
+
         @Override
-        public void processInput(final Display.InputHandler input) {
+        public void onEnter() {
+            selectedMenuItem = 0;
+        }
+
+        @Override
+        public void prefetch() {
+            try {
+                fetchSound("res/select.wav");
+            } catch (final IOException ex) {
+                // reported when it is played
+            }
+        }
+
+        @Override
+        public void processInput(final Input input) {
             if (input.isKeyDown(KeyEvent.VK_SPACE)) {
                 if (selectedMenuItem == 0) {
                     switchState(State.OVER_WORLD);
-                } else {
-                    display.free();
+                } else if (display != null && !replay.isReplaying()) {
+                    display.free(); // a replay does not quit the game, a headless one has nothing to quit
                 }
             }
 
@@ -399,25 +1565,30 @@ public final class Game {
         }
 
         @Override
-        public void render(final Graphics2D g) {
-            g.setColor(new Color(0, 0, 0));
+        public void render(final Graphics2D g, final float alpha) {
+            g.setColor(Color.BLACK);
             g.fillRect(0, 0, WIDTH, HEIGHT);
 
-            g.setColor(Color.WHITE);
-            g.setFont(mainFont.deriveFont((float) 32));
+            if (g != titleOf) {
+                if (title != null) {
+                    title.dispose();
+                }
+                title = (Graphics2D) g.create();
+                title.setColor(Color.WHITE);
+                title.setFont(titleFont);
+                titleOf = g;
+                frameRebuilds = true;
+            }
             final String str = "untitled";
-            final Dimension dim = calcStringSize(g, str);
+            final Dimension dim = calcStringSize(title, str);
 
-            g.drawString(str, (WIDTH / 2) - (dim.width / 2), (HEIGHT / 2) - (dim.height / 2));
+            title.drawString(str, (WIDTH / 2) - (dim.width / 2), (HEIGHT / 2) - (dim.height / 2));
 
             g.setColor(Color.WHITE);
-            g.setFont(mainFont.deriveFont((float) 18));
+            g.setFont(menuFont);
             final int len = menuItems.length;
             for (int i = 0; i < len; ++i) {
-                String item = menuItems[i];
-                if (selectedMenuItem == i) {
-                    item = "> " + item + " <";
-                }
+                final String item = selectedMenuItem == i ? selectedMenuItems[i] : menuItems[i];
                 final Dimension itemDim = calcStringSize(g, item);
                 g.drawString(item, (WIDTH / 2) - (itemDim.width / 2), ((HEIGHT / 2) - (itemDim.height / 2)) + ((i + 1) * 32));
             }
@@ -427,121 +1598,596 @@ public final class Game {
     private final class OverWorldState implements GameState {
 
         @Override
-        public void processInput(final Display.InputHandler input) {
+        public void prefetch() {
+            fetchImage("res/overworld.png");
+            fetchImage("res/grass.png");
+            fetchImage("res/water.png");
+            fetchImage("res/tree.png");
+            fetchImage("res/mountain.png");
+        }
+
+        @Override
+        public void processInput(final Input input) {
             if (input.isKeyPressed(KeyEvent.VK_ESCAPE)) {
                 switchState(State.MENU);
                 return;
             }
 
-            for (final Entity e : entities) {
-                if (!camera.isInsideViewPort(e)) {
-                    continue;
+            if (input.isKeyDown(KeyEvent.VK_P)) {
+                pushState(State.PAUSE);
+                return;
+            }
+
+            // the world belongs to the server
+            if (input.isKeyDown(KeyEvent.VK_F5) && netClient == null) {
+                loadOverworld();
+                return;
+            }
+
+            if (input.isKeyDown(KeyEvent.VK_F6)) {
+                spawnWanderers(100, 10);
+            }
+
+            if (input.isKeyDown(KeyEvent.VK_G) && netClient == null) {
+                final int size = Integer.getInteger("game.genSize", 128);
+                generateWorld(nextWorldSeed++, size, size);
+                return;
+            }
+
+            if (input.isKeyDown(KeyEvent.VK_F4)) {
+                splitView = !splitView;
+                camera.resize(splitView ? WIDTH / 2 : WIDTH, HEIGHT);
+                camera.centerOnEntity(player); // the player was in the center of the old view, not the new one
+                camera.snapTo(camera.xCam, camera.yCam);
+                watchRow = -1;
+            }
+
+            if (input.isKeyDown(KeyEvent.VK_M)) {
+                showMinimap = !showMinimap;
+            }
+
+            if (input.isKeyDown(KeyEvent.VK_R)) {
+                raining = !raining;
+            }
+
+            if (input.isKeyDown(KeyEvent.VK_N)) {
+                dayNight = !dayNight;
+            }
+
+            if (input.isKeyDown(KeyEvent.VK_F2)) {
+                saveSystem.save();
+            }
+
+            if (input.isKeyDown(KeyEvent.VK_F3) && netClient == null) {
+                // the file is read in the background and lands in whatever tick it is done in, which a
+                // replay could never reproduce
+                if (replay.getMode() == ReplaySystem.Mode.IDLE) {
+                    saveSystem.load();
+                } else {
+                    System.err.println("Loading is not possible while recording or replaying!");
                 }
-                e.input(input);
             }
-            player.input(input);
+
+            if (netClient != null) {
+                int keys = 0;
+                if (input.isKeyPressed(KeyEvent.VK_W)) keys |= NetProtocol.KEY_UP;
+                if (input.isKeyPressed(KeyEvent.VK_S)) keys |= NetProtocol.KEY_DOWN;
+                if (input.isKeyPressed(KeyEvent.VK_A)) keys |= NetProtocol.KEY_LEFT;
+                if (input.isKeyPressed(KeyEvent.VK_D)) keys |= NetProtocol.KEY_RIGHT;
+                netClient.sendKeys(keys);
+                return;
+            }
+
+            final int[] flags = entities.flags;
+            final Entity[] handles = entities.handles;
+            for (int i = 0, l = entities.count; i < l; ++i) {
+                if ((flags[i] & EntityStore.KIND_MASK) != EntityStore.KIND_MASK) continue;
+                if (handles[i] == null) continue;
+                if (handles[i] != player && !camera.isInsideViewPort(entities, i)) continue; // the player is never culled
+
+                handles[i].input(input);
+            }
         }
 
         @Override
         public void update() {
-            for (final Entity e : entities) {
-                if (!camera.isInsideViewPort(e)) {
-                    continue;
+            camera.savePreviousPosition();
+            entities.savePreviousPositions();
+            entities.advanceAnimations();
+            pathfinder.tick();
+
+            if (netClient != null) {
+                syncNetPlayers();
+            } else {
+                final int[] flags = entities.flags;
+                final Entity[] handles = entities.handles;
+                for (int i = 0, l = entities.count; i < l; ++i) {
+                    if ((flags[i] & EntityStore.KIND_MASK) != EntityStore.KIND_MASK) continue;
+                    if (handles[i] == null) continue;
+                    if (handles[i] != player && !camera.isInsideViewPort(entities, i)) continue;
+
+                    handles[i].update();
                 }
-                e.update();
+
+                // after the sweep, a warp must not move the player while its handle is still being updated
+                triggers.dispatch(triggerHandler);
             }
-            player.update();
+
+            // the npcs must not walk into the cells the player occupies (two while moving)
+            final int w = tileGrid.getWidth();
+            final int x0 = (int) player.x() / TILE_SIZE;
+            final int y0 = (int) player.y() / TILE_SIZE;
+            final int x1 = (int) (player.x() + TILE_SIZE - 1) / TILE_SIZE;
+            final int y1 = (int) (player.y() + TILE_SIZE - 1) / TILE_SIZE;
+            wanderers.setBlockedCells(y0 * w + x0, y1 * w + x1);
+            wanderers.setPlayerCell((int) (player.restY() / TILE_SIZE) * w + (int) (player.restX() / TILE_SIZE));
+            wanderers.update();
             camera.centerOnEntity(player);
+
+            if (raining) {
+                particles.rain(camera.xCam, camera.yCam, camera.getWidth(), camera.getHeight(), 40);
+                if (splitView) {
+                    particles.rain(watchCamera.xCam, watchCamera.yCam, watchCamera.getWidth(), watchCamera.getHeight(), 20);
+                }
+            }
+            particles.update(particleSurface);
+
+            if (splitView) {
+                watchCamera.savePreviousPosition();
+                if (watchRow == -1 || (entities.flags[watchRow] & EntityStore.KIND_MASK) != EntityStore.KIND_MASK) {
+                    watchRow = findNpc();
+                }
+                if (watchRow != -1) {
+                    watchCamera.centerOn(entities.x[watchRow], entities.y[watchRow], entities.w[watchRow], entities.h[watchRow]);
+                }
+            }
+
+            if (dayNight) {
+                dayTick = (dayTick + 1) % DAY_LENGTH_TICKS;
+            }
+
+            if (worldSeed != 0) {
+                cookGeneratedChunks(camera);
+                if (splitView) {
+                    cookGeneratedChunks(watchCamera);
+                }
+            }
         }
 
-        @Override
-        public void render(final Graphics2D g) {
-            g.setColor(new Color(10, 50, 10));
-            g.fillRect(0, 0, WIDTH, HEIGHT);
+        // Client mode: every player is where the server says it is, our own one included. The server only
+        // does the warps, the dialogues and encounters of our own steps happen here.
+        private void syncNetPlayers() {
+            final int self = netClient.getNetId();
+            if (self == -1) return; // not welcomed yet
 
-            g.translate(-camera.xCam, -camera.yCam);
-            for (final Entity e : entities) {
-                if (!camera.isInsideViewPort(e)) {
+            if (netPlayers.length < netClient.getCapacity()) {
+                netPlayers = Arrays.copyOf(netPlayers, netClient.getCapacity());
+            }
+            for (int id = 0; id < netClient.getCapacity(); ++id) {
+                Player p = id == self ? player : netPlayers[id];
+                if (!netClient.isPresent(id)) {
+                    if (p != null && p != player && p.id() != -1) p.despawn();
                     continue;
                 }
-                e.render(g);
+
+                final int x = netClient.x(id);
+                final int y = netClient.y(id);
+                if (p == null) {
+                    p = netPlayers[id] = new Player(Game.this);
+                }
+                if (p.id() == -1) {
+                    final Vector2f v2 = vectorPool.acquire();
+                    v2.set(x, y);
+                    p.spawn(v2);
+                    vectorPool.release(v2);
+                } else {
+                    final float dx = x - p.x();
+                    final float dy = y - p.y();
+                    if (Math.abs(dx) + Math.abs(dy) > TILE_SIZE) {
+                        p.warpTo(x, y); // warped (or we missed a lot), do not slide across the map
+                    } else {
+                        if (p == player) {
+                            stepNetPlayer(p.x(), p.y(), x, y);
+                        }
+                        p.moveBy(dx, dy);
+                    }
+                }
+                p.face(DIRS[netClient.facing(id)]);
+            }
+            triggers.dispatch(triggerHandler); // warps are refused, see TriggerHandler.warp()
+        }
+
+        // The server does not send steps: one is done when our player reaches (or with ticks that arrived
+        // together, passes) a cell boundary.
+        private void stepNetPlayer(final float x0, final float y0, final float x1, final float y1) {
+            final int ax = arrivedAt(x0, x1);
+            final int ay = arrivedAt(y0, y1);
+            if (ax != -1) {
+                triggers.onStep(ax / TILE_SIZE, (int) y0 / TILE_SIZE);
+            } else if (ay != -1) {
+                triggers.onStep((int) x1 / TILE_SIZE, ay / TILE_SIZE);
+            }
+        }
+
+        // the tile aligned coordinate in (from, to] or [to, from), -1 if there is none
+        private int arrivedAt(final float from, final float to) {
+            if (to > from) {
+                final int aligned = ((int) to / TILE_SIZE) * TILE_SIZE;
+                return aligned > from ? aligned : -1;
+            }
+            if (to < from) {
+                final int aligned = (((int) to + TILE_SIZE - 1) / TILE_SIZE) * TILE_SIZE;
+                return aligned < from ? aligned : -1;
+            }
+            return -1;
+        }
+
+        // the first system driven actor, -1 if there is none
+        private int findNpc() {
+            final int[] flags = entities.flags;
+            for (int i = 0, l = entities.count; i < l; ++i) {
+                if ((flags[i] & EntityStore.KIND_MASK) == EntityStore.KIND_MASK && entities.handles[i] == null) return i;
+            }
+            return -1;
+        }
+
+        private final Color background = new Color(10, 50, 10);
+        private final Color divider    = new Color(0, 0, 0);
+        private final Color frame      = new Color(255, 255, 255, 160);
+        private BufferedImage frameImage = null; // the camera on the minimap, remade when the viewport changes size
+
+        // The halves of the split view, clipped once for the graphics they were made from: setting a
+        // clip allocates, so it is not done every frame.
+        private Graphics2D halvesOf = null;
+        private Graphics2D leftHalf = null;
+        private Graphics2D rightHalf = null;
+
+        @Override
+        public void render(final Graphics2D g, final float alpha) {
+            // Actors are the only thing we have to sweep the store for, tiles come from the grid. The sweep
+            // is done once here, every viewport then only culls this (short) list.
+            collectActors();
+
+            // particles of all viewports go into one layer, which is then drawn in one go
+            Arrays.fill(particlePixels, 0);
+            if (splitView) {
+                if (g != halvesOf) {
+                    if (leftHalf != null) {
+                        leftHalf.dispose();
+                        rightHalf.dispose();
+                    }
+                    leftHalf = (Graphics2D) g.create();
+                    leftHalf.clipRect(0, 0, WIDTH / 2, HEIGHT);
+                    rightHalf = (Graphics2D) g.create();
+                    rightHalf.clipRect(WIDTH / 2, 0, WIDTH / 2, HEIGHT);
+                    halvesOf = g;
+                    frameRebuilds = true;
+                }
+                renderViewport(leftHalf, camera, 0, 0, alpha);
+                renderViewport(rightHalf, watchCamera, WIDTH / 2, 0, alpha);
+                drawImage(g, particleLayer, 0, 0, WIDTH, HEIGHT);
+                g.setColor(divider);
+                g.fillRect(WIDTH / 2 - 1, 0, 2, HEIGHT);
+            } else {
+                renderViewport(g, camera, 0, 0, alpha);
+                drawImage(g, particleLayer, 0, 0, WIDTH, HEIGHT);
+            }
+
+            if (showMinimap) {
+                renderMinimap(g, alpha);
+            }
+        }
+
+        private void collectActors() {
+            final int[] flags = entities.flags;
+            visibleActorCount = 0;
+            for (int i = 0, l = entities.count; i < l; ++i) {
+                if ((flags[i] & EntityStore.KIND_MASK) != EntityStore.KIND_MASK) continue;
+
+                if (visibleActorCount == visibleActors.length) {
+                    visibleActors = Arrays.copyOf(visibleActors, visibleActorCount * 2);
+                }
+                visibleActors[visibleActorCount++] = i;
+            }
+        }
+
+        private void renderViewport(final Graphics2D g, final Camera cam, final int screenX, final int screenY, final float alpha) {
+            // 'g' is clipped to the viewport already (or the viewport is the whole screen)
+            final int vw = cam.getWidth();
+            final int vh = cam.getHeight();
+            g.setColor(background);
+            g.fillRect(screenX, screenY, vw, vh);
+
+            final int xCam = cam.renderX(alpha);
+            final int yCam = cam.renderY(alpha);
+            g.translate(screenX - xCam, screenY - yCam);
+
+            // only the cells inside the viewport, tiles do not move so there is nothing to interpolate
+            final int cx0 = Math.max(0, Math.floorDiv(xCam, TILE_SIZE));
+            final int cy0 = Math.max(0, Math.floorDiv(yCam, TILE_SIZE));
+            final int cx1 = Math.min(tileGrid.getWidth()  - 1, (xCam + vw) / TILE_SIZE);
+            final int cy1 = Math.min(tileGrid.getHeight() - 1, (yCam + vh) / TILE_SIZE);
+            for (int cy = cy0; cy <= cy1; ++cy) {
+                for (int cx = cx0; cx <= cx1; ++cx) {
+                    final int tile = tileGrid.getTile(cx, cy);
+                    if (tile == TileGrid.NO_TILE) continue;
+                    drawTile(g, tile);
+
+                    final int overlay = tileGrid.getOverlay(cx, cy);
+                    if (overlay != TileGrid.NO_TILE) {
+                        drawTile(g, overlay);
+                    }
+                }
+            }
+
+            // actors are drawn on top of the tiles
+            final Entity[] handles = entities.handles;
+            final float[] xs = entities.x;
+            final float[] ys = entities.y;
+            for (int a = 0; a < visibleActorCount; ++a) {
+                final int i = visibleActors[a];
+                if (!cam.isInsideViewPort(entities, i)) continue;
+
+                if (handles[i] != null) {
+                    handles[i].render(g, alpha);
+                } else {
+                    // system driven actors (npcs) have no handle, but the same data
+                    final int x = Math.round(entities.xPrev[i] + (xs[i] - entities.xPrev[i]) * alpha);
+                    final int y = Math.round(entities.yPrev[i] + (ys[i] - entities.yPrev[i]) * alpha);
+                    drawImage(g, sprites.get(animations.spriteOf(entities, i)), x, y, entities.w[i], entities.h[i]);
+                }
+            }
+
+            g.translate(xCam - screenX, yCam - screenY);
+
+            particles.render(particlePixels, WIDTH, HEIGHT, screenX, screenY, vw, vh, xCam, yCam, alpha);
+        }
+
+        private void drawTile(final Graphics2D g, final int i) {
+            drawImage(g, sprites.get(animations.spriteOf(entities, i)), (int) entities.x[i], (int) entities.y[i], entities.w[i], entities.h[i]);
+        }
+
+        // one pixel per tile in the upper left corner, plus where the camera and the player are
+        // the camera and the player where the world is drawn, at their interpolated positions
+        private void renderMinimap(final Graphics2D g, final float alpha) {
+            final BufferedImage image = minimap.getImage();
+            final int x = 4;
+            final int y = 4;
+            drawImage(g, image, x, y, image.getWidth(), image.getHeight());
+
+            final int fw = camera.getWidth()  / TILE_SIZE;
+            final int fh = camera.getHeight() / TILE_SIZE;
+            if (frameImage == null || frameImage.getWidth() != fw + 1 || frameImage.getHeight() != fh + 1) {
+                frameImage = translucentImage(fw + 1, fh + 1, frame, true);
+                frameRebuilds = true;
             }
-            player.render(g);
-            g.translate(camera.xCam, camera.yCam);
+            drawImage(g, frameImage, x + camera.renderX(alpha) / TILE_SIZE, y + camera.renderY(alpha) / TILE_SIZE, fw + 1, fh + 1);
+            g.setColor(Color.RED);
+            g.fillRect(x + player.renderX(alpha) / TILE_SIZE, y + player.renderY(alpha) / TILE_SIZE, 2, 2);
         }
     }
 
     private final class StateTransitionState implements GameState {
 
-        private final State newState;
+        private State newState = null;
 
         private float transitionBoxW = 0;
         private float transitionBoxH = 0;
+        private float transitionBoxWPrev = 0;
+        private float transitionBoxHPrev = 0;
+
+        @Override
+        public boolean isOverlay() {
+            return true;
+        }
 
-        public StateTransitionState(final State newState) {
+        @Override
+        public void onEnter() {
+            requestPrefetch(newState);
+        }
+
+        @Override
+        public void onExit() {
+            // The transition always takes the same amount of ticks (replays depend on that), if the
+            // prefetch is slower than the animation we have to wait for it here.
+            awaitPrefetch();
+            palette.setFade(0);
+        }
+
+        // there is only ever one transition at a time, so the same instance is reused for all of them
+        public void reset(final State newState) {
             assert newState != null;
+
             this.newState = newState;
+            transitionBoxW = 0;
+            transitionBoxH = 0;
+            transitionBoxWPrev = 0;
+            transitionBoxHPrev = 0;
         }
 
         @Override
-        public void processInput(final Display.InputHandler input) {
+        public void processInput(final Input input) {
             // we do not process any input in this state
         }
 
         @Override
         public void update() {
+            transitionBoxWPrev = transitionBoxW;
+            transitionBoxHPrev = transitionBoxH;
+
             if (transitionBoxW >= WIDTH && transitionBoxH >= HEIGHT) {
-                state = newState;
+                setState(newState);
             } else {
                 // increment must be 4:3
                 transitionBoxW += 16;
                 transitionBoxH += 12;
             }
+
+            // what is still visible around the box fades to black with it
+            palette.setFade((int) (255 * Math.min(transitionBoxW / WIDTH, 1.0f)));
             return;
         }
 
         @Override
-        public void render(final Graphics2D g) {
+        public void render(final Graphics2D g, final float alpha) {
+            final float w = transitionBoxWPrev + (transitionBoxW - transitionBoxWPrev) * alpha;
+            final float h = transitionBoxHPrev + (transitionBoxH - transitionBoxHPrev) * alpha;
+
             g.setColor(Color.BLACK);
-            g.fillRect((int) ((WIDTH / 2) - (transitionBoxW / 2)), (int) ((HEIGHT / 2) - (transitionBoxH / 2)), (int) transitionBoxW, (int) transitionBoxH);
+            g.fillRect((int) ((WIDTH / 2) - (w / 2)), (int) ((HEIGHT / 2) - (h / 2)), (int) w, (int) h);
         }
     }
 
-    private final class Camera {
+    private final class PauseState implements GameState {
+
+        private final BufferedImage shade = translucentImage(WIDTH, HEIGHT, new Color(0, 0, 0, 160), false);
+
+        @Override
+        public boolean isOverlay() {
+            return true;
+        }
+
+        @Override
+        public void processInput(final Input input) {
+            if (input.isKeyDown(KeyEvent.VK_P)) {
+                popState();
+            }
+        }
+
+        @Override
+        public void update() {
+            // the world beneath is frozen
+        }
+
+        @Override
+        public void render(final Graphics2D g, final float alpha) {
+            drawImage(g, shade, 0, 0, WIDTH, HEIGHT);
 
-        public float xCam;
-        public float yCam;
+            g.setColor(Color.WHITE);
+            g.setFont(titleFont);
+            final String str = "paused";
+            final Dimension dim = calcStringSize(g, str);
+            g.drawString(str, (WIDTH / 2) - (dim.width / 2), (HEIGHT / 2) - (dim.height / 2));
+        }
+    }
 
-        private final int mapWidth;
-        private final int mapHeight;
+    private final class ParticleSurface implements ParticleSystem.Surface {
 
-        public Camera(final int mapWidth, final int mapHeight) {
-            this.mapWidth  = mapWidth;
-            this.mapHeight = mapHeight;
+        @Override
+        public boolean isWater(final int cx, final int cy) {
+            final int tile = tileGrid.getTile(cx, cy);
+            return tile != TileGrid.NO_TILE && entities.anim[tile] == waterAnim;
         }
+    }
 
-        public void centerOnEntity(final Entity e) {
-            assert e != null;
+    private final class DialogueState implements GameState {
 
-            if (!(e.v2.x < (WIDTH * 0.5f) - (e.w * 0.5)) && (!(e.v2.x > mapWidth - (WIDTH * 0.5f) - (e.w * 0.5)))) {
-                final float xCenter = (e.v2.x - WIDTH  * 0.5f) + (e.w * 0.5f);
-                xCam = xCenter;
+        private final BufferedImage box = translucentImage(WIDTH - 16, HEIGHT / 4, new Color(0, 0, 0, 200), false);
+
+        @Override
+        public boolean isOverlay() {
+            return true;
+        }
+
+        @Override
+        public void processInput(final Input input) {
+            if (input.isKeyDown(KeyEvent.VK_SPACE)) {
+                popState();
             }
+        }
 
-            if (!(e.v2.y < (HEIGHT * 0.5f) - (e.h * 0.5)) && (!(e.v2.y > mapHeight - (HEIGHT * 0.5f) - (e.h * 0.5)))) {
-                final float yCenter = (e.v2.y - HEIGHT * 0.5f) + (e.h * 0.5f);
-                yCam = yCenter;
+        @Override
+        public void update() {
+        }
+
+        @Override
+        public void render(final Graphics2D g, final float alpha) {
+            final int h = HEIGHT / 4;
+            drawImage(g, box, 8, HEIGHT - h - 8, WIDTH - 16, h);
+
+            g.setColor(Color.WHITE);
+            g.setFont(dialogueFont);
+            final Dimension dim = calcStringSize(g, dialogueText);
+            g.drawString(dialogueText, 16, HEIGHT - h - 8 + dim.height + 8);
+        }
+    }
+
+    // Also the host of trigger scripts, the context of a call is the trigger.
+    private final class TriggerHandler implements TriggerSystem.Listener, Script.Host {
+
+        private int scriptX = 0; // cell the player stepped onto when the script started
+        private int scriptY = 0;
+
+        @Override
+        public void onTrigger(final TriggerSystem triggers, final int trigger, final int cx, final int cy) {
+            // compared instead of switched over, see Dir
+            final TriggerSystem.Kind kind = triggers.kindOf(trigger);
+            if (kind == TriggerSystem.Kind.WARP) {
+                warp(triggers.argA(trigger), triggers.argB(trigger)); // blocked: tried again on the next step
+            } else if (kind == TriggerSystem.Kind.SCRIPT) {
+                final Script script = triggerScripts[trigger];
+                if (script == null) return; // did not compile
+
+                scriptX = cx;
+                scriptY = cy;
+                if (!script.run(this, trigger, triggerRegisters[trigger])) {
+                    System.err.printf("Script '%s' looped too often, stopped it!%n", script.getName());
+                }
+            } else {
+                // encounters only talk for now, there is nothing to fight yet
+                if (topState() == State.DIALOGUE) return; // one at a time, the rest is dropped
+                if (kind == TriggerSystem.Kind.ENCOUNTER) {
+                    flashTicks = FLASH_TICKS;
+                }
+                dialogueText = triggers.textOf(trigger);
+                pushState(State.DIALOGUE);
             }
         }
 
-        public boolean isInsideViewPort(final Entity source) {
-            assert source != null;
+        @Override
+        public int call(final int function, final int a, final int b, final int trigger) {
+            switch (function) {
+                case Script.FN_SAY: {
+                    if (topState() == State.DIALOGUE) return 0;
+                    dialogueText = triggerScripts[trigger].stringAt(a);
+                    pushState(State.DIALOGUE);
+                    return 1;
+                }
+
+                case Script.FN_WARP: {
+                    return warp(a, b) ? 1 : 0;
+                }
+
+                case Script.FN_FLASH: {
+                    flashTicks = FLASH_TICKS;
+                    return 0;
+                }
+
+                case Script.FN_RAND: {
+                    triggerSeed ^= triggerSeed << 13;
+                    triggerSeed ^= triggerSeed >>> 17;
+                    triggerSeed ^= triggerSeed << 5;
+                    return a > 0 ? ((triggerSeed >>> 8) % a) : 0;
+                }
 
-            if (source.v2.x + source.w  < xCam) return false;
-            if (source.v2.y + source.h  < yCam) return false;
-            if (source.v2.x > xCam + WIDTH)     return false;
-            if (source.v2.y > yCam + HEIGHT)    return false;
+                case Script.FN_X:        return scriptX;
+                case Script.FN_Y:        return scriptY;
+                case Script.FN_PLAYER_X: return (int) (player.restX() / TILE_SIZE);
+                case Script.FN_PLAYER_Y: return (int) (player.restY() / TILE_SIZE);
 
+                default: {
+                    return 0; // move(), wait() ... are for npcs
+                }
+            }
+        }
+
+        private boolean warp(final int tx, final int ty) {
+            if (netClient != null) return false; // the server moves the players
+            if (!tileGrid.isPassable(tx, ty) || wanderers.isOccupied(tx, ty)) return false;
+
+            player.warpTo(tx * TILE_SIZE, ty * TILE_SIZE);
+            camera.centerOnEntity(player);
+            camera.snapTo(camera.xCam, camera.yCam); // no interpolation across the warp
             return true;
         }
     }
@@ -0,0 +1,210 @@
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+// Connection to a GameServer. Sends the held keys and mirrors the state of every player as the server
+// sends it (see NetProtocol). Nothing is simulated here, the mirror is only ever what the server said.
+//
+// Single threaded and non blocking: poll() once per tick reads whatever has arrived.
+public final class GameClient {
+
+    private static final int IN_BUFFER_BYTES = 1024; // grows to the biggest frame the server sends, see poll()
+
+    private final SocketChannel channel;
+    private ByteBuffer in = ByteBuffer.allocate(IN_BUFFER_BYTES);
+    private final ByteBuffer out = ByteBuffer.allocate(64);
+    private int sentKeys = -1;
+    private boolean connected = true;
+
+    private int netId = -1; // -1 until the welcome arrived
+    private int worldW = 0;
+    private int worldH = 0;
+    private int tick = 0;
+
+    // mirror, indexed by net id
+    private int[] x = new int[64];
+    private int[] y = new int[64];
+    private int[] facing = new int[64];
+    private boolean[] present = new boolean[64];
+
+    // stats
+    public long bytesIn  = 0;
+    public long bytesOut = 0;
+
+    private GameClient(final SocketChannel channel) {
+        this.channel = channel;
+    }
+
+    public static GameClient connect(final int port) throws IOException {
+        final SocketChannel channel = SocketChannel.open(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        channel.configureBlocking(false);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        return new GameClient(channel);
+    }
+
+    public boolean isConnected() {
+        return connected;
+    }
+
+    public int getNetId() {
+        return netId;
+    }
+
+    public int getTick() {
+        return tick;
+    }
+
+    public int getCapacity() {
+        return present.length;
+    }
+
+    public boolean isPresent(final int id) {
+        return present[id];
+    }
+
+    public int x(final int id) {
+        return x[id];
+    }
+
+    public int y(final int id) {
+        return y[id];
+    }
+
+    public int facing(final int id) {
+        return facing[id];
+    }
+
+    // 'keys' is a combination of NetProtocol.KEY_*, only changes go over the wire.
+    public void sendKeys(final int keys) {
+        if (!connected || keys == sentKeys) return;
+
+        out.clear();
+        final int frame = NetProtocol.beginFrame(out, NetProtocol.MSG_INPUT);
+        out.put((byte) keys);
+        NetProtocol.endFrame(out, frame);
+        out.flip();
+        try {
+            while (out.hasRemaining()) {
+                bytesOut += channel.write(out); // a few bytes, the socket buffer always has room for them
+            }
+        } catch (final IOException ex) {
+            disconnect();
+            return;
+        }
+        sentKeys = keys;
+    }
+
+    // Applies everything the server sent since the last call. Returns false once the connection is gone.
+    public boolean poll() {
+        if (!connected) return false;
+
+        while (true) {
+            final int read;
+            try {
+                read = channel.read(in);
+            } catch (final IOException ex) {
+                disconnect();
+                return false;
+            }
+            if (read == -1) {
+                disconnect();
+                return false;
+            }
+            if (read == 0) break;
+            bytesIn += read;
+
+            in.flip();
+            int length;
+            while ((length = NetProtocol.frameLength(in)) != -1) {
+                final int end = in.position() + length;
+                in.position(in.position() + NetProtocol.FRAME_HEADER_BYTES);
+                switch (in.get()) {
+                    case NetProtocol.MSG_WELCOME: {
+                        netId  = NetProtocol.getVarint(in);
+                        worldW = NetProtocol.getVarint(in);
+                        worldH = NetProtocol.getVarint(in);
+                        tick   = NetProtocol.getVarint(in);
+                    } break;
+
+                    case NetProtocol.MSG_TICK: {
+                        applyTick();
+                    } break;
+
+                    default: {
+                        // unknown message, skipped
+                    } break;
+                }
+                in.position(end);
+            }
+            in.compact();
+
+            if (!in.hasRemaining()) {
+                // The frame at the start does not fit. A MSG_TICK grows with the number of players, so the
+                // buffer grows with it instead of being sized for the most players there could ever be.
+                final int needed = NetProtocol.FRAME_HEADER_BYTES + (in.getShort(0) & 0xFFFF);
+                final ByteBuffer bigger = ByteBuffer.allocate(Math.max(needed, in.capacity() * 2));
+                in.flip();
+                bigger.put(in);
+                in = bigger;
+            }
+        }
+        return true;
+    }
+
+    private void applyTick() {
+        tick = NetProtocol.getVarint(in);
+        final int count = NetProtocol.getVarint(in);
+        for (int i = 0; i < count; ++i) {
+            final int id = NetProtocol.getVarint(in);
+            final int mask = in.get();
+            if (id >= present.length) {
+                grow(Math.max(id + 1, present.length * 2));
+            }
+
+            if ((mask & NetProtocol.ENTRY_DESPAWN) != 0) {
+                present[id] = false;
+                continue;
+            }
+            if ((mask & NetProtocol.ENTRY_SPAWN) != 0) {
+                present[id] = true;
+                x[id] = NetProtocol.getVarint(in);
+                y[id] = NetProtocol.getVarint(in);
+                facing[id] = in.get();
+            }
+            if ((mask & NetProtocol.ENTRY_MOVE_X) != 0) x[id] += NetProtocol.getZigzag(in);
+            if ((mask & NetProtocol.ENTRY_MOVE_Y) != 0) y[id] += NetProtocol.getZigzag(in);
+            if ((mask & NetProtocol.ENTRY_FACE)   != 0) facing[id] = in.get();
+        }
+    }
+
+    private void grow(final int capacity) {
+        x       = Arrays.copyOf(x, capacity);
+        y       = Arrays.copyOf(y, capacity);
+        facing  = Arrays.copyOf(facing, capacity);
+        present = Arrays.copyOf(present, capacity);
+    }
+
+    // Hash over the mirrored players, equal to GameServer.stateHash() once everything has arrived.
+    public long stateHash() {
+        long hash = 17;
+        for (int i = 0; i < present.length; ++i) {
+            if (!present[i]) continue;
+
+            hash = hash * 31 + i;
+            hash = hash * 31 + x[i];
+            hash = hash * 31 + y[i];
+            hash = hash * 31 + facing[i];
+        }
+        return hash;
+    }
+
+    public void disconnect() {
+        connected = false;
+        try {
+            channel.close();
+        } catch (final IOException ex) {
+        }
+    }
+}
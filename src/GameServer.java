@@ -0,0 +1,423 @@
+import java.awt.event.*;
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.locks.*;
+
+// Headless authoritative server, the clients only send their keys and show what the server sends back.
+//
+// The server runs a normal headless Game (same world, same Player code, same canMoveToTile() rules) and
+// one Player per connected client. Everything happens on the server thread: accepting and reading
+// through a non blocking Selector, simulating the tick, and writing one batched message per client and
+// tick (see NetProtocol). The delta is encoded once and copied to every client, only clients that
+// joined during the tick get a full snapshot instead.
+//
+// Players do not block each other, only the world and the npcs do.
+//
+//     java -cp build Main server [port]
+public final class GameServer {
+
+    private static final int IN_BUFFER_BYTES  = 256;
+    private static final int OUT_BUFFER_BYTES = 32 * 1024; // a client lagging this far behind gets dropped
+    private static final int OUT_BUFFER_START_BYTES = 1024; // Client.out only grows for clients that fall behind
+
+    private static final class Client {
+        final SocketChannel channel;
+        final ByteBuffer in  = ByteBuffer.allocate(IN_BUFFER_BYTES);
+        ByteBuffer out = ByteBuffer.allocate(OUT_BUFFER_START_BYTES);
+        final int netId;
+        int keys = 0;
+        boolean joined = true; // still needs the welcome and a full snapshot
+        boolean dropped = false;
+
+        Client(final SocketChannel channel, final int netId) {
+            this.channel = channel;
+            this.netId   = netId;
+        }
+    }
+
+    private final Game game;
+    private final ServerSocketChannel serverChannel;
+    private final Selector selector;
+    private final Input input = new Input(); // shared, filled with the keys of one client at a time
+    private final WarpHandler warpHandler = new WarpHandler();
+    private final java.util.function.Consumer<SelectionKey> onSelected = this::onSelected; // selectNow() with the key set iterator allocates
+
+    // indexed by net id
+    private Client[] clients = new Client[64];
+    private Player[] players = new Player[64]; // handles are kept and respawned when the id is reused
+    private int[] sentX = new int[64];         // state as of the last broadcast
+    private int[] sentY = new int[64];
+    private int[] sentFacing = new int[64];
+    private boolean[] sentPresent = new boolean[64];
+    private int clientCount = 0;
+
+    private final ByteBuffer delta    = ByteBuffer.allocate(OUT_BUFFER_BYTES);
+    private final ByteBuffer snapshot = ByteBuffer.allocate(OUT_BUFFER_BYTES);
+    private int tick = 0;
+
+    private volatile boolean running = false;
+
+    // stats, written by the server thread
+    public volatile long bytesIn  = 0;
+    public volatile long bytesOut = 0;
+    public volatile long ticks = 0;
+    public volatile long tickNanosTotal = 0;
+
+    public GameServer(final int port) throws IOException {
+        game = Game.createHeadless(1); // only the players are updated, nobody sees rain
+        game.resetForReplay(); // the plain overworld, in the overworld state
+
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        serverChannel.configureBlocking(false);
+        selector = Selector.open();
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    public int getPort() throws IOException {
+        return ((InetSocketAddress) serverChannel.getLocalAddress()).getPort();
+    }
+
+    public int getClientCount() {
+        return clientCount;
+    }
+
+    public Game getGame() {
+        return game;
+    }
+
+    // Hash over the player state the clients have been sent, see GameClient.stateHash().
+    public long stateHash() {
+        long hash = 17;
+        for (int i = 0; i < sentPresent.length; ++i) {
+            if (!sentPresent[i]) continue;
+
+            hash = hash * 31 + i;
+            hash = hash * 31 + sentX[i];
+            hash = hash * 31 + sentY[i];
+            hash = hash * 31 + sentFacing[i];
+        }
+        return hash;
+    }
+
+    // Blocks until stop() is called. 'hz' <= 0 runs the ticks back to back (stress tests).
+    public void run(final double hz) {
+        running = true;
+        final long tickNanos = hz > 0 ? (long) (1_000_000_000.0d / hz) : 0;
+        long next = System.nanoTime();
+        while (running) {
+            final long start = System.nanoTime();
+            try {
+                tick();
+            } catch (final IOException ex) {
+                System.err.printf("Server tick failed: %s%n", ex.getMessage());
+            }
+            tickNanosTotal += System.nanoTime() - start;
+            ticks += 1;
+
+            if (tickNanos > 0) {
+                next += tickNanos;
+                final long remaining = next - System.nanoTime();
+                if (remaining > 0) {
+                    LockSupport.parkNanos(remaining);
+                } else if (remaining < -tickNanos * 5) {
+                    next = System.nanoTime(); // do not try to catch up forever
+                }
+            }
+        }
+
+        for (int i = 0; i < clients.length; ++i) {
+            if (clients[i] != null) disconnect(clients[i]);
+        }
+        try {
+            selector.close();
+            serverChannel.close();
+        } catch (final IOException ex) {
+        }
+    }
+
+    public void stop() {
+        running = false;
+        selector.wakeup();
+    }
+
+    private void tick() throws IOException {
+        tick += 1;
+
+        // network in
+        selector.selectNow(onSelected);
+
+        // simulate, in net id order so the result does not depend on who connected first
+        final TriggerSystem triggers = game.getTriggers();
+        for (int i = 0; i < clients.length; ++i) {
+            final Client client = clients[i];
+            if (client == null) continue;
+
+            input.setKey(KeyEvent.VK_W, (client.keys & NetProtocol.KEY_UP)    != 0);
+            input.setKey(KeyEvent.VK_S, (client.keys & NetProtocol.KEY_DOWN)  != 0);
+            input.setKey(KeyEvent.VK_A, (client.keys & NetProtocol.KEY_LEFT)  != 0);
+            input.setKey(KeyEvent.VK_D, (client.keys & NetProtocol.KEY_RIGHT) != 0);
+            players[i].input(input);
+        }
+        for (int i = 0; i < clients.length; ++i) {
+            if (clients[i] == null) continue;
+
+            players[i].update();
+            // only warps matter on the server, the clients show the dialogues and encounters of their
+            // own steps (see Game.syncNetPlayers())
+            warpHandler.player = players[i];
+            triggers.dispatch(warpHandler);
+        }
+
+        // network out
+        encodeDelta();
+        for (int i = 0; i < clients.length; ++i) {
+            final Client client = clients[i];
+            if (client == null) continue;
+
+            if (client.joined) {
+                client.joined = false;
+                encodeSnapshot(client.netId);
+                send(client, snapshot);
+            } else if (delta.position() > 0) {
+                send(client, delta);
+            }
+            flush(client);
+        }
+        for (int i = 0; i < clients.length; ++i) {
+            if (clients[i] != null && clients[i].dropped) disconnect(clients[i]);
+        }
+    }
+
+    private void onSelected(final SelectionKey key) {
+        if (!key.isValid()) return;
+
+        if (key.isAcceptable()) {
+            try {
+                while (accept()) {
+                    // everybody who is waiting
+                }
+            } catch (final IOException ex) {
+                System.err.printf("Failed to accept client: %s%n", ex.getMessage());
+            }
+        } else if (key.isReadable()) {
+            read((Client) key.attachment());
+        }
+    }
+
+    private boolean accept() throws IOException {
+        final SocketChannel channel = serverChannel.accept();
+        if (channel == null) return false;
+
+        channel.configureBlocking(false);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true); // we batch per tick ourselves
+
+        int netId = 0;
+        while (netId < clients.length && clients[netId] != null) netId += 1;
+        if (netId == clients.length) {
+            final int capacity = clients.length * 2;
+            clients     = Arrays.copyOf(clients, capacity);
+            players     = Arrays.copyOf(players, capacity);
+            sentX       = Arrays.copyOf(sentX, capacity);
+            sentY       = Arrays.copyOf(sentY, capacity);
+            sentFacing  = Arrays.copyOf(sentFacing, capacity);
+            sentPresent = Arrays.copyOf(sentPresent, capacity);
+        }
+
+        final Client client = new Client(channel, netId);
+        channel.register(selector, SelectionKey.OP_READ, client);
+        clients[netId] = client;
+        clientCount += 1;
+
+        if (players[netId] == null) {
+            players[netId] = new Player(game);
+        }
+        final Player spawn = game.getPlayer(); // the spawn point of the world
+        final Vector2f v2 = new Vector2f(spawn.x(), spawn.y());
+        players[netId].spawn(v2);
+        return true;
+    }
+
+    private void read(final Client client) {
+        final int read;
+        try {
+            read = client.channel.read(client.in);
+        } catch (final IOException ex) {
+            client.dropped = true;
+            return;
+        }
+        if (read == -1) {
+            client.dropped = true;
+            return;
+        }
+        bytesIn += read;
+
+        final ByteBuffer in = client.in;
+        in.flip();
+        int length;
+        while ((length = NetProtocol.frameLength(in)) != -1) {
+            // MSG_INPUT is the only thing a client sends, anything else is not one of our clients
+            if (length != NetProtocol.FRAME_HEADER_BYTES + 2 || in.get(in.position() + NetProtocol.FRAME_HEADER_BYTES) != NetProtocol.MSG_INPUT) {
+                client.dropped = true;
+                return;
+            }
+            final int keys = in.get(in.position() + NetProtocol.FRAME_HEADER_BYTES + 1);
+            if ((keys & ~(NetProtocol.KEY_UP | NetProtocol.KEY_DOWN | NetProtocol.KEY_LEFT | NetProtocol.KEY_RIGHT)) != 0) {
+                client.dropped = true;
+                return;
+            }
+            client.keys = keys;
+            in.position(in.position() + length);
+        }
+        in.compact();
+        if (!in.hasRemaining()) {
+            client.dropped = true; // a frame that never fits, this is not one of our clients
+        }
+    }
+
+    private void encodeDelta() {
+        delta.clear();
+        final int frame = NetProtocol.beginFrame(delta, NetProtocol.MSG_TICK);
+        NetProtocol.putVarint(delta, tick);
+        final int countAt = delta.position();
+        delta.putShort((short) 0); // patched below, see encodeCount()
+
+        int count = 0;
+        for (int i = 0; i < clients.length; ++i) {
+            final boolean present = clients[i] != null;
+            if (!present && !sentPresent[i]) continue;
+
+            if (!present) {
+                NetProtocol.putVarint(delta, i);
+                delta.put((byte) NetProtocol.ENTRY_DESPAWN);
+                sentPresent[i] = false;
+                count += 1;
+                continue;
+            }
+
+            final Player player = players[i];
+            final int x = (int) player.x();
+            final int y = (int) player.y();
+            final int facing = player.facing().ordinal();
+            if (!sentPresent[i]) {
+                NetProtocol.putVarint(delta, i);
+                delta.put((byte) NetProtocol.ENTRY_SPAWN);
+                NetProtocol.putVarint(delta, x);
+                NetProtocol.putVarint(delta, y);
+                delta.put((byte) facing);
+                count += 1;
+            } else if (x != sentX[i] || y != sentY[i] || facing != sentFacing[i]) {
+                int mask = 0;
+                if (x != sentX[i]) mask |= NetProtocol.ENTRY_MOVE_X;
+                if (y != sentY[i]) mask |= NetProtocol.ENTRY_MOVE_Y;
+                if (facing != sentFacing[i]) mask |= NetProtocol.ENTRY_FACE;
+                NetProtocol.putVarint(delta, i);
+                delta.put((byte) mask);
+                if ((mask & NetProtocol.ENTRY_MOVE_X) != 0) NetProtocol.putZigzag(delta, x - sentX[i]);
+                if ((mask & NetProtocol.ENTRY_MOVE_Y) != 0) NetProtocol.putZigzag(delta, y - sentY[i]);
+                if ((mask & NetProtocol.ENTRY_FACE)   != 0) delta.put((byte) facing);
+                count += 1;
+            }
+            sentPresent[i] = true;
+            sentX[i] = x;
+            sentY[i] = y;
+            sentFacing[i] = facing;
+        }
+
+        if (count == 0) {
+            delta.clear(); // nothing changed, nothing is sent
+            return;
+        }
+        encodeCount(delta, countAt, count);
+        NetProtocol.endFrame(delta, frame);
+    }
+
+    // welcome + every player as of now (encodeDelta() has already updated the sent state)
+    private void encodeSnapshot(final int netId) {
+        snapshot.clear();
+        int frame = NetProtocol.beginFrame(snapshot, NetProtocol.MSG_WELCOME);
+        NetProtocol.putVarint(snapshot, netId);
+        NetProtocol.putVarint(snapshot, game.getTileGrid().getWidth());
+        NetProtocol.putVarint(snapshot, game.getTileGrid().getHeight());
+        NetProtocol.putVarint(snapshot, tick);
+        NetProtocol.endFrame(snapshot, frame);
+
+        frame = NetProtocol.beginFrame(snapshot, NetProtocol.MSG_TICK);
+        NetProtocol.putVarint(snapshot, tick);
+        final int countAt = snapshot.position();
+        snapshot.putShort((short) 0);
+        int count = 0;
+        for (int i = 0; i < clients.length; ++i) {
+            if (!sentPresent[i]) continue;
+
+            NetProtocol.putVarint(snapshot, i);
+            snapshot.put((byte) NetProtocol.ENTRY_SPAWN);
+            NetProtocol.putVarint(snapshot, sentX[i]);
+            NetProtocol.putVarint(snapshot, sentY[i]);
+            snapshot.put((byte) sentFacing[i]);
+            count += 1;
+        }
+        encodeCount(snapshot, countAt, count);
+        NetProtocol.endFrame(snapshot, frame);
+    }
+
+    // The count is only known once the entries are written. It gets two bytes reserved, which are
+    // rewritten as a padded varint so the entries do not have to move.
+    private static void encodeCount(final ByteBuffer buf, final int at, final int count) {
+        assert count < (1 << 14) : "Too many players for one tick!";
+        buf.put(at,     (byte) ((count & 0x7F) | 0x80));
+        buf.put(at + 1, (byte) (count >>> 7));
+    }
+
+    private void send(final Client client, final ByteBuffer message) {
+        if (client.out.remaining() < message.position()) {
+            final int needed = client.out.position() + message.position();
+            if (needed > OUT_BUFFER_BYTES) {
+                client.dropped = true; // it does not keep up
+                return;
+            }
+            final ByteBuffer bigger = ByteBuffer.allocate(Math.min(Math.max(needed, client.out.capacity() * 2), OUT_BUFFER_BYTES));
+            client.out.flip();
+            bigger.put(client.out);
+            client.out = bigger;
+        }
+        client.out.put(message.array(), 0, message.position());
+    }
+
+    private void flush(final Client client) {
+        if (client.dropped) return;
+
+        client.out.flip();
+        try {
+            bytesOut += client.channel.write(client.out);
+        } catch (final IOException ex) {
+            client.dropped = true;
+        }
+        client.out.compact();
+    }
+
+    private void disconnect(final Client client) {
+        try {
+            client.channel.close(); // also cancels the selection key
+        } catch (final IOException ex) {
+        }
+        players[client.netId].despawn();
+        clients[client.netId] = null;
+        clientCount -= 1;
+    }
+
+    private static final class WarpHandler implements TriggerSystem.Listener {
+
+        Player player = null;
+
+        @Override
+        public void onTrigger(final TriggerSystem triggers, final int trigger, final int cx, final int cy) {
+            if (triggers.kindOf(trigger) != TriggerSystem.Kind.WARP) return;
+
+            player.warpTo(triggers.argA(trigger) * Game.TILE_SIZE, triggers.argB(trigger) * Game.TILE_SIZE);
+        }
+    }
+}
@@ -0,0 +1,52 @@
+import java.util.*;
+
+// Keyboard state as seen by the game, one snapshot per tick.
+//
+// Display.InputHandler feeds the real keyboard into this, the ReplaySystem feeds recorded keys into it
+// instead. The game itself does not care where the keys come from.
+public final class Input {
+
+    public static final int KEY_COUNT = Short.MAX_VALUE / 2;
+
+    private final boolean[] keys = new boolean[KEY_COUNT];     // pressed in current tick
+    private final boolean[] lastKeys = new boolean[KEY_COUNT]; // pressed in last tick
+
+    private boolean deviceIgnored = false; // set while a replay is driving the keys
+
+    // gets called every tick
+    public void update() {
+        System.arraycopy(keys, 0, lastKeys, 0, keys.length);
+    }
+
+    public boolean isKeyPressed(final int code) {
+        return keys[code];
+    }
+
+    public boolean isKeyUp(final int code) {
+        return !keys[code] && lastKeys[code];
+    }
+
+    public boolean isKeyDown(final int code) {
+        return keys[code] && !lastKeys[code];
+    }
+
+    public void setKey(final int code, final boolean pressed) {
+        if (code < 0 || code >= KEY_COUNT) return;
+        keys[code] = pressed;
+    }
+
+    // key events coming from the keyboard, dropped while a replay is running
+    public void setKeyFromDevice(final int code, final boolean pressed) {
+        if (deviceIgnored) return;
+        setKey(code, pressed);
+    }
+
+    public void setDeviceIgnored(final boolean ignored) {
+        deviceIgnored = ignored;
+    }
+
+    public void releaseAll() {
+        Arrays.fill(keys, false);
+        Arrays.fill(lastKeys, false);
+    }
+}
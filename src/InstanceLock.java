@@ -0,0 +1,114 @@
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+
+// Makes sure only one instance of the game runs at a time.
+//
+// The first instance holds an os level lock on the lock file for as long as the process lives. The os
+// drops that lock when the process dies, no matter how (crash, System.exit() from a tripped assert,
+// task manager), so a stale lock file never blocks a restart. Checking whether the file exists can not
+// give us that and is racy on top.
+//
+// The first instance also listens on a loopback port and writes that port into the lock file. A second
+// instance that fails to get the lock connects to it, asks the running one to come to the front and
+// exits again.
+public final class InstanceLock {
+
+    private static final byte MSG_ACTIVATE = 1;
+
+    // The lock covers a single byte far behind the port we write at the start of the file. Some
+    // platforms do not let other processes read locked regions, the port has to stay readable.
+    private static final long LOCK_POSITION = Long.MAX_VALUE - 1;
+
+    private static final int CONNECT_TIMEOUT_MILLIS = 250;
+
+    // kept alive for the whole process, a closed (or collected) channel releases the lock
+    private static FileChannel channel = null;
+    private static FileLock lock = null;
+    private static ServerSocketChannel server = null;
+
+    private InstanceLock() {
+    }
+
+    // Returns true if this process is now the only instance. 'onActivate' gets called (on a background
+    // thread) every time another instance is started.
+    public static boolean acquire(final Path path, final Runnable onActivate) throws IOException {
+        assert path != null;
+        assert onActivate != null;
+        assert lock == null : "Already acquired!";
+
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            lock = channel.tryLock(LOCK_POSITION, 1, false);
+        } catch (final OverlappingFileLockException ex) {
+            lock = null; // held by this very jvm
+        }
+
+        if (lock == null) {
+            channel.close();
+            channel = null;
+            return false;
+        }
+
+        server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        final int port = ((InetSocketAddress) server.getLocalAddress()).getPort();
+
+        final ByteBuffer buf = ByteBuffer.allocate(4);
+        buf.putInt(port).flip();
+        channel.truncate(0);
+        channel.write(buf, 0);
+        channel.force(false);
+
+        final Thread thread = new Thread(() -> listen(onActivate));
+        thread.setName("instance_lock_thread");
+        thread.setDaemon(true);
+        thread.start();
+        return true;
+    }
+
+    // Asks the instance holding the lock to come to the front. Returns false if nobody answered.
+    public static boolean activateRunningInstance(final Path path) {
+        assert path != null;
+
+        // the first instance might have got the lock but not written its port yet
+        for (int attempt = 0; attempt < 10; ++attempt) {
+            try {
+                final byte[] bytes = Files.readAllBytes(path);
+                if (bytes.length >= 4) {
+                    final int port = ByteBuffer.wrap(bytes).getInt();
+                    try (final Socket socket = new Socket()) {
+                        socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), CONNECT_TIMEOUT_MILLIS);
+                        socket.getOutputStream().write(MSG_ACTIVATE);
+                        return true;
+                    }
+                }
+            } catch (final IOException ex) {
+                // not ready (or not listening) yet, try again
+            }
+
+            try {
+                Thread.sleep(20);
+            } catch (final InterruptedException ex) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    private static void listen(final Runnable onActivate) {
+        final ByteBuffer buf = ByteBuffer.allocate(1);
+        while (server.isOpen()) {
+            try (final SocketChannel client = server.accept()) {
+                buf.clear();
+                if (client.read(buf) == 1 && buf.get(0) == MSG_ACTIVATE) {
+                    onActivate.run();
+                }
+            } catch (final IOException ex) {
+                // a misbehaving client must not take the listener down
+            }
+        }
+    }
+}
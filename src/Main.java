@@ -4,6 +4,8 @@ import java.io.*;
 public final class Main {
 
     static {
+        StartupTimer.begin();
+
         boolean assertionsEnabled = false;
         assert assertionsEnabled = true;
         if (assertionsEnabled) {
@@ -11,34 +13,117 @@ public final class Main {
         }
     }
 
+    private static final java.nio.file.Path LOCK_FILE = java.nio.file.Paths.get("game.lock");
+
+    private static volatile Game game = null;
+
     private static void preventMultipleInstancesOfProgram() {
-        final File lock = new File("game.lock");
-        if (lock.exists()) {
-            javax.swing.JOptionPane.showMessageDialog(null, "Game is already running!", "Error", javax.swing.JOptionPane.ERROR_MESSAGE);
-            System.err.println("Game is already running!");
-            System.exit(0);
-        }
+        boolean acquired;
         try {
-            lock.createNewFile();
+            acquired = InstanceLock.acquire(LOCK_FILE, () -> {
+                final Game g = game;
+                if (g != null) {
+                    EventQueue.invokeLater(g::bringToFront);
+                }
+            });
         } catch (final IOException ex) {
+            // read only directory or similar, better to run twice than not at all
+            System.err.println("Failed to acquire the instance lock!");
+            ex.printStackTrace(System.err);
+            return;
+        }
+        if (acquired) return;
+
+        if (InstanceLock.activateRunningInstance(LOCK_FILE)) {
+            System.out.println("Game is already running, brought it to the front.");
+            System.exit(0);
         }
 
-        lock.deleteOnExit();
+        // the look and feel is only needed for this dialog, loading it up front costs ~100 ms of startup
+        try {
+            javax.swing.UIManager.setLookAndFeel(javax.swing.UIManager.getSystemLookAndFeelClassName());
+        } catch (final Exception ex) {
+        }
+        javax.swing.JOptionPane.showMessageDialog(null, "Game is already running!", "Error", javax.swing.JOptionPane.ERROR_MESSAGE);
+        System.err.println("Game is already running!");
+        System.exit(0);
     }
 
     public static void main(final String[] args) {
+        if (args.length > 0 && args[0].equals("bench-npc")) {
+            System.setProperty("java.awt.headless", "true");
+            NpcBenchmark.run(args.length > 1 ? Integer.parseInt(args[1]) : 4000, args.length > 2 ? Integer.parseInt(args[2]) : 2000);
+            return;
+        }
+
+        if (args.length > 0 && args[0].equals("bench-collide")) {
+            System.setProperty("java.awt.headless", "true");
+            CollisionBenchmark.run(args.length > 1 ? Integer.parseInt(args[1]) : 4000, args.length > 2 ? Integer.parseInt(args[2]) : 2000);
+            return;
+        }
+
+        if (args.length > 0 && args[0].equals("bench-script")) {
+            System.setProperty("java.awt.headless", "true");
+            ScriptBenchmark.run(args.length > 1 ? Integer.parseInt(args[1]) : 4000, args.length > 2 ? Integer.parseInt(args[2]) : 2000);
+            return;
+        }
+
+        if (args.length > 0 && args[0].equals("bench-gen")) {
+            System.setProperty("java.awt.headless", "true");
+            WorldGenBenchmark.run(args.length > 1 ? Integer.parseInt(args[1]) : 1024, args.length > 2 ? Long.parseLong(args[2]) : 1);
+            return;
+        }
+
+        if (args.length > 0 && args[0].equals("bench-path")) {
+            System.setProperty("java.awt.headless", "true");
+            PathBenchmark.run(args.length > 1 ? Integer.parseInt(args[1]) : 4000, args.length > 2 ? Integer.parseInt(args[2]) : 1);
+            return;
+        }
+
+        if (args.length > 0 && args[0].equals("replay")) {
+            System.setProperty("java.awt.headless", "true");
+            ReplayBenchmark.run(java.nio.file.Paths.get(args.length > 1 ? args[1] : "replay.bin"), args.length > 2 ? Integer.parseInt(args[2]) : 3);
+            return;
+        }
+
+        if (args.length > 0 && args[0].equals("server")) {
+            System.setProperty("java.awt.headless", "true");
+            try {
+                final GameServer server = new GameServer(args.length > 1 ? Integer.parseInt(args[1]) : NetProtocol.DEFAULT_PORT);
+                System.out.printf("Listening on port %s.%n", server.getPort());
+                server.run(Game.TICK_RATE);
+            } catch (final IOException ex) {
+                System.err.printf("Failed to start the server: %s%n", ex.getMessage());
+                System.exit(-1);
+            }
+            return;
+        }
+
+        if (args.length > 0 && args[0].equals("stress")) {
+            System.setProperty("java.awt.headless", "true");
+            try {
+                NetStress.run(args.length > 1 ? Integer.parseInt(args[1]) : 200, args.length > 2 ? Integer.parseInt(args[2]) : 10);
+            } catch (final IOException | InterruptedException ex) {
+                System.err.printf("Stress test failed: %s%n", ex.getMessage());
+                System.exit(-1);
+            }
+            return;
+        }
+
         // enable hardware accl
         // System.setProperty("sun.java2d.opengl", "True");
 
-        try {
-            javax.swing.UIManager.setLookAndFeel(javax.swing.UIManager.getSystemLookAndFeelClassName());
-        } catch (final Exception ex) {
+        StartupTimer.mark("main");
+        if (args.length > 0 && args[0].equals("connect")) {
+            // several clients on one machine is the whole point here, see Game.init()
+            System.setProperty("game.connect", args.length > 1 ? args[1] : String.valueOf(NetProtocol.DEFAULT_PORT));
+        } else {
+            preventMultipleInstancesOfProgram();
         }
-
-        preventMultipleInstancesOfProgram();
+        StartupTimer.mark("instance_check");
 
         EventQueue.invokeLater(() -> {
-            new Game();
+            game = new Game();
         });
     }
 }
@@ -0,0 +1,91 @@
+import java.awt.*;
+import java.awt.image.*;
+import java.util.*;
+
+// The world at one pixel per tile.
+//
+// The image is built once per world from the TileGrid (no entity sweep) and afterwards only touched
+// where a cell changes. Each sprite is reduced to its average color the first time it shows up.
+public final class Minimap {
+
+    private static final int UNKNOWN = 0; // fully transparent, no sprite averages to that
+    private static final int NO_TILE_COLOR = 0xFF000000;
+
+    private BufferedImage image = null;
+    private int[] pixels = null;
+    private int width  = 0;
+    private int height = 0;
+    private int[] spriteColors = new int[0];
+
+    public void rebuild(final TileGrid grid, final EntityStore store, final SpriteTable sprites) {
+        assert grid != null && store != null && sprites != null;
+
+        if (image == null || width != grid.getWidth() || height != grid.getHeight()) {
+            width  = grid.getWidth();
+            height = grid.getHeight();
+            image  = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB); // see Game.drawImage()
+            pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        }
+
+        for (int cy = 0; cy < height; ++cy) {
+            for (int cx = 0; cx < width; ++cx) {
+                updateCell(grid, store, sprites, cx, cy);
+            }
+        }
+    }
+
+    public void updateCell(final TileGrid grid, final EntityStore store, final SpriteTable sprites, final int cx, final int cy) {
+        assert grid.isInside(cx, cy);
+
+        // the overlay (tree, mountain ...) is what you would see from above
+        int tile = grid.getOverlay(cx, cy);
+        if (tile == TileGrid.NO_TILE) {
+            tile = grid.getTile(cx, cy);
+        }
+        pixels[cy * width + cx] = tile == TileGrid.NO_TILE ? NO_TILE_COLOR : colorOf(sprites, store.sprite[tile]);
+    }
+
+    // the image behind a sprite id changed (hot reloading), its color is computed again on next use
+    public void invalidateSprite(final int sprite) {
+        if (sprite >= 0 && sprite < spriteColors.length) {
+            spriteColors[sprite] = UNKNOWN;
+        }
+    }
+
+    public BufferedImage getImage() {
+        return image;
+    }
+
+    private int colorOf(final SpriteTable sprites, final int sprite) {
+        if (sprite >= spriteColors.length) {
+            spriteColors = Arrays.copyOf(spriteColors, Math.max(sprite + 1, sprites.size()));
+        }
+        if (spriteColors[sprite] == UNKNOWN) {
+            spriteColors[sprite] = averageColor(sprites.getSource(sprite)); // without the effects of the palette
+        }
+        return spriteColors[sprite];
+    }
+
+    private static int averageColor(final Image image) {
+        if (!(image instanceof BufferedImage)) return 0xFF808080;
+
+        final BufferedImage bi = (BufferedImage) image;
+        long r = 0;
+        long g = 0;
+        long b = 0;
+        long n = 0;
+        for (int y = 0; y < bi.getHeight(); ++y) {
+            for (int x = 0; x < bi.getWidth(); ++x) {
+                final int argb = bi.getRGB(x, y);
+                if ((argb >>> 24) < 128) continue; // transparent pixels do not count
+
+                r += (argb >> 16) & 0xFF;
+                g += (argb >>  8) & 0xFF;
+                b += (argb      ) & 0xFF;
+                n += 1;
+            }
+        }
+        if (n == 0) return 0xFF000000;
+        return 0xFF000000 | (int) (r / n) << 16 | (int) (g / n) << 8 | (int) (b / n);
+    }
+}
@@ -0,0 +1,98 @@
+import java.nio.*;
+
+// Wire format shared by GameServer and GameClient.
+//
+// Everything goes over one tcp connection per client (loopback), so messages arrive complete and in
+// order and the server can send deltas against whatever it sent the tick before. Every message is a
+// frame:
+//
+//     [u16 length of the rest][u8 type][payload]
+//
+// client -> server
+//     MSG_INPUT      [u8 keys]                                  only when the held keys change
+//
+// server -> client
+//     MSG_WELCOME    [varint net id][varint world w][varint world h][varint tick]
+//     MSG_TICK       [varint tick][varint count] count * entry  one per tick, only if something changed
+//
+// An entry describes one player: [varint net id][u8 mask] followed by the fields named in the mask, in
+// this order: SPAWN (varint x, varint y, u8 facing), MOVE_X (zigzag varint dx), MOVE_Y (zigzag varint
+// dy), FACE (u8 facing). A client that just connected gets a MSG_TICK that spawns everybody instead of
+// the delta the others get.
+public final class NetProtocol {
+
+    public static final int DEFAULT_PORT = 27960;
+
+    public static final byte MSG_INPUT   = 1;
+    public static final byte MSG_WELCOME = 2;
+    public static final byte MSG_TICK    = 3;
+
+    public static final int KEY_UP    = 1;
+    public static final int KEY_DOWN  = 1 << 1;
+    public static final int KEY_LEFT  = 1 << 2;
+    public static final int KEY_RIGHT = 1 << 3;
+
+    public static final int ENTRY_SPAWN   = 1;
+    public static final int ENTRY_DESPAWN = 1 << 1;
+    public static final int ENTRY_MOVE_X  = 1 << 2;
+    public static final int ENTRY_MOVE_Y  = 1 << 3;
+    public static final int ENTRY_FACE    = 1 << 4;
+
+    public static final int FRAME_HEADER_BYTES = 2;
+    public static final int MAX_FRAME_BYTES = 0xFFFF;
+
+    private NetProtocol() {
+    }
+
+    // Starts a frame, returns the position its length has to be written to by endFrame().
+    public static int beginFrame(final ByteBuffer buf, final byte type) {
+        final int start = buf.position();
+        buf.putShort((short) 0);
+        buf.put(type);
+        return start;
+    }
+
+    public static void endFrame(final ByteBuffer buf, final int start) {
+        final int length = buf.position() - start - FRAME_HEADER_BYTES;
+        assert length <= MAX_FRAME_BYTES : "Frame too big!";
+        buf.putShort(start, (short) length);
+    }
+
+    // Length of the complete frame at the position of 'buf' (header included), -1 if it is incomplete.
+    public static int frameLength(final ByteBuffer buf) {
+        if (buf.remaining() < FRAME_HEADER_BYTES) return -1;
+
+        final int length = FRAME_HEADER_BYTES + (buf.getShort(buf.position()) & 0xFFFF);
+        return buf.remaining() < length ? -1 : length;
+    }
+
+    public static void putVarint(final ByteBuffer buf, int value) {
+        while ((value & ~0x7F) != 0) {
+            buf.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buf.put((byte) value);
+    }
+
+    public static int getVarint(final ByteBuffer buf) {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = buf.get();
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    // small negative numbers stay small (-1 -> 1, 1 -> 2 ...)
+    public static void putZigzag(final ByteBuffer buf, final int value) {
+        putVarint(buf, (value << 1) ^ (value >> 31));
+    }
+
+    public static int getZigzag(final ByteBuffer buf) {
+        final int value = getVarint(buf);
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
@@ -0,0 +1,91 @@
+import java.io.*;
+
+// Loopback stress test for GameServer.
+//
+// Starts a server and connects 'clients' simulated clients to it, all in this process. Every client
+// walks around randomly for the given time. Reports the tick rate of the server, the time a tick
+// takes, the bandwidth per client, and whether every client ended up with exactly the state of the
+// server.
+//
+//     java -cp build Main stress [clients] [seconds]
+public final class NetStress {
+
+    private NetStress() {
+    }
+
+    public static void run(final int clientCount, final int seconds) throws IOException, InterruptedException {
+        assert clientCount > 0 && seconds > 0;
+
+        final GameServer server = new GameServer(0);
+        final Thread serverThread = new Thread(() -> server.run(Game.TICK_RATE));
+        serverThread.setName("server_thread");
+        serverThread.start();
+
+        final GameClient[] clients = new GameClient[clientCount];
+        for (int i = 0; i < clientCount; ++i) {
+            clients[i] = GameClient.connect(server.getPort());
+        }
+        System.out.printf("%s clients connected, %s s%n", clientCount, seconds);
+
+        final long tickNanos = (long) (1_000_000_000.0d / Game.TICK_RATE);
+        final int[] keys = { 0, NetProtocol.KEY_UP, NetProtocol.KEY_DOWN, NetProtocol.KEY_LEFT, NetProtocol.KEY_RIGHT };
+        int seed = 1;
+
+        final long startTicks = server.ticks;
+        final long startTickNanos = server.tickNanosTotal;
+        final long start = System.nanoTime();
+        long next = start;
+        while (System.nanoTime() - start < seconds * 1_000_000_000L) {
+            for (int i = 0; i < clientCount; ++i) {
+                // a new direction (or none) every now and then
+                seed ^= seed << 13;
+                seed ^= seed >>> 17;
+                seed ^= seed << 5;
+                if (Math.floorMod(seed, 40) == 0) {
+                    clients[i].sendKeys(keys[Math.floorMod(seed >>> 8, keys.length)]);
+                }
+                clients[i].poll();
+            }
+
+            next += tickNanos;
+            final long remaining = next - System.nanoTime();
+            if (remaining > 0) {
+                Thread.sleep(remaining / 1_000_000L, (int) (remaining % 1_000_000L));
+            }
+        }
+        final double elapsed = (System.nanoTime() - start) / 1_000_000_000.0d;
+        final long ticks = server.ticks - startTicks;
+        final double tickMillis = (server.tickNanosTotal - startTickNanos) / 1_000_000.0d / ticks;
+
+        // let everybody come to rest and the last deltas arrive
+        for (int i = 0; i < clientCount; ++i) {
+            clients[i].sendKeys(0);
+        }
+        final long settle = System.nanoTime();
+        while (System.nanoTime() - settle < 1_000_000_000L) {
+            for (int i = 0; i < clientCount; ++i) {
+                clients[i].poll();
+            }
+            Thread.sleep(5);
+        }
+        server.stop();
+        serverThread.join();
+
+        long bytesIn = 0;
+        long bytesOut = 0;
+        int diverged = 0;
+        int disconnected = 0;
+        final long serverHash = server.stateHash();
+        for (int i = 0; i < clientCount; ++i) {
+            clients[i].poll();
+            bytesIn  += clients[i].bytesIn;
+            bytesOut += clients[i].bytesOut;
+            if (clients[i].stateHash() != serverHash) diverged += 1;
+            if (clients[i].getNetId() == -1) disconnected += 1;
+        }
+
+        System.out.printf("server: %.1f ticks/s, %.3f ms per tick (%.0f ticks/s possible)%n", ticks / elapsed, tickMillis, 1000.0d / tickMillis);
+        System.out.printf("per client: %.1f kb/s down, %.2f kb/s up%n", bytesIn / elapsed / 1024.0d / clientCount, bytesOut / elapsed / 1024.0d / clientCount);
+        System.out.printf("state: %s of %s clients diverged, %s never welcomed%n", diverged, clientCount, disconnected);
+    }
+}
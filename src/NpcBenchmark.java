@@ -0,0 +1,50 @@
+// Headless benchmark for the parallel npc update (see WanderSystem).
+//
+// Runs the same scenario (same world, same spawns, same seeds) once per thread count and reports the
+// tick rate, the speedup over the serial run and whether the final world state is identical to it.
+//
+//     java -cp build Main bench-npc [npcs] [ticks]
+public final class NpcBenchmark {
+
+    private NpcBenchmark() {
+    }
+
+    public static void run(final int npcs, final int ticks) {
+        assert npcs > 0 && ticks > 0;
+
+        final Game game = Game.createHeadless();
+        final WanderSystem wanderers = game.getWanderers();
+        final int cores = Runtime.getRuntime().availableProcessors();
+
+        System.out.printf("%s npcs, %s ticks, %s cores%n", npcs, ticks, cores);
+
+        double serialMillis = 0;
+        long serialHash = 0;
+        for (int threads = 1; threads <= Math.max(cores, 2); threads *= 2) {
+            game.reloadOverworld();
+            wanderers.setThreads(threads);
+            final int spawned = game.spawnWanderers(npcs, game.getTileGrid().getWidth());
+
+            // the first half warms up the jit and is not measured
+            for (int i = 0; i < ticks / 2; ++i) {
+                wanderers.update();
+            }
+            final long start = System.nanoTime();
+            for (int i = ticks / 2; i < ticks; ++i) {
+                wanderers.update();
+            }
+            final double millis = (System.nanoTime() - start) / 1000000.0d;
+            final long hash = wanderers.stateHash();
+
+            if (threads == 1) {
+                serialMillis = millis;
+                serialHash = hash;
+            }
+
+            System.out.printf("threads %2s: %s npcs, %8.1f ticks/s, %5.2fx, state %016x %s%n",
+                threads, spawned, (ticks - ticks / 2) / (millis / 1000.0d), serialMillis / millis, hash,
+                hash == serialHash ? "(identical)" : "(DIVERGED)");
+        }
+        wanderers.setThreads(1);
+    }
+}
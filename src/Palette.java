@@ -0,0 +1,197 @@
+import java.awt.*;
+import java.awt.image.*;
+import java.util.*;
+
+// The one palette every sprite is drawn with.
+//
+// Sprites are kept as 8 bit indexed rasters (see index()), one byte per pixel instead of the four of an
+// ARGB image. Index 0 is transparent, everything else is opaque: our sprites only ever use one bit of
+// alpha. All of them together use a few dozen colors, so the 255 we have are plenty. Once the palette
+// is full, new colors are mapped to the nearest one that is already in it.
+//
+// Global color effects (the day/night tint, flashes, fading to black) are not drawn on top of the
+// frame, they change the palette instead: colorModel() applies them to the 256 base colors and the
+// SpriteTable wraps the rasters of the sprites with the result (see view()). The pixels themselves are
+// never touched, an effect costs one new color model per change, no matter how much of the screen it
+// covers. Effects are set in steps of 1/255, so a slow fade only changes the palette every few ticks.
+public final class Palette {
+
+    public static final int TRANSPARENT = 0;
+    public static final int SIZE = 256;
+
+    private final int[] base = new int[SIZE]; // argb, what the image files say
+    private final HashMap<Integer, Integer> indices = new HashMap<>();
+    private int count = 1; // index 0 is reserved for transparent pixels
+
+    // effects, 255 means full strength (or no change for the tint)
+    private int tintR = 255;
+    private int tintG = 255;
+    private int tintB = 255;
+    private int flashRgb = 0xFFFFFF;
+    private int flashAmount = 0;
+    private int fadeAmount = 0;
+
+    private IndexColorModel baseModel = null;  // null if outdated
+    private IndexColorModel model = null;      // null if outdated
+    private final int[] lut = new int[SIZE];
+    private volatile int version = 1;
+
+    // The index of the color, adds it if it is not in the palette yet.
+    public synchronized int indexOf(final int argb) {
+        if ((argb >>> 24) < 128) return TRANSPARENT;
+
+        final int rgb = argb | 0xFF000000;
+        final Integer index = indices.get(rgb);
+        if (index != null) return index;
+
+        if (count == SIZE) {
+            return nearest(rgb); // not added, so an image that brings many new colors cannot push out the rest
+        }
+
+        final int result = count++;
+        base[result] = rgb;
+        indices.put(rgb, result);
+        baseModel = null;
+        changed();
+        return result;
+    }
+
+    // Converts an image into an indexed one using this palette. Anything can be passed in, the result
+    // shows the base colors when drawn directly (getRGB() returns the colors of the file), sprites are
+    // drawn through view() to pick up the effects.
+    public BufferedImage index(final BufferedImage image) {
+        assert image != null;
+
+        final int w = image.getWidth();
+        final int h = image.getHeight();
+        final int[] argb = image.getRGB(0, 0, w, h, null, 0, w);
+        final WritableRaster raster = Raster.createInterleavedRaster(DataBuffer.TYPE_BYTE, w, h, 1, null);
+        final byte[] pixels = ((DataBufferByte) raster.getDataBuffer()).getData();
+
+        // images are mostly runs of the same color
+        int lastArgb = 0;
+        int lastIndex = indexOf(0);
+        for (int i = 0; i < argb.length; ++i) {
+            if (argb[i] != lastArgb) {
+                lastArgb  = argb[i];
+                lastIndex = indexOf(lastArgb);
+            }
+            pixels[i] = (byte) lastIndex;
+        }
+        return new BufferedImage(baseModel(), raster, false, null);
+    }
+
+    // An image showing the raster of 'image' with the current effects applied. Images that are not
+    // indexed are returned as they are.
+    public Image view(final Image image) {
+        assert image != null;
+
+        if (!(image instanceof BufferedImage)) return image;
+        final BufferedImage bi = (BufferedImage) image;
+        if (!(bi.getColorModel() instanceof IndexColorModel) || bi.getColorModel().getPixelSize() != 8) return image;
+
+        return new BufferedImage(colorModel(), bi.getRaster(), false, null);
+    }
+
+    // Changes every time the colors that view() produces change.
+    public int version() {
+        return version;
+    }
+
+    public synchronized int size() {
+        return count;
+    }
+
+    // Multiplies every color channel with r / 255, g / 255, b / 255.
+    public synchronized void setTint(final int r, final int g, final int b) {
+        assert r >= 0 && r <= 255 && g >= 0 && g <= 255 && b >= 0 && b <= 255;
+        if (r == tintR && g == tintG && b == tintB) return;
+
+        tintR = r;
+        tintG = g;
+        tintB = b;
+        changed();
+    }
+
+    // Blends every color towards 'rgb', 'amount' 255 means only 'rgb' is left.
+    public synchronized void setFlash(final int rgb, final int amount) {
+        assert amount >= 0 && amount <= 255;
+        if ((rgb & 0xFFFFFF) == flashRgb && amount == flashAmount) return;
+
+        flashRgb = rgb & 0xFFFFFF;
+        flashAmount = amount;
+        changed();
+    }
+
+    // Blends every color towards black, after the tint and the flash.
+    public synchronized void setFade(final int amount) {
+        assert amount >= 0 && amount <= 255;
+        if (amount == fadeAmount) return;
+
+        fadeAmount = amount;
+        changed();
+    }
+
+    // The base colors with the effects applied. Only allocates when something changed.
+    public synchronized IndexColorModel colorModel() {
+        if (model != null) return model;
+
+        final int fr = (flashRgb >> 16) & 0xFF;
+        final int fg = (flashRgb >>  8) & 0xFF;
+        final int fb = (flashRgb      ) & 0xFF;
+        for (int i = 1; i < count; ++i) {
+            int r = (base[i] >> 16) & 0xFF;
+            int g = (base[i] >>  8) & 0xFF;
+            int b = (base[i]      ) & 0xFF;
+
+            r = r * tintR / 255;
+            g = g * tintG / 255;
+            b = b * tintB / 255;
+
+            r += (fr - r) * flashAmount / 255;
+            g += (fg - g) * flashAmount / 255;
+            b += (fb - b) * flashAmount / 255;
+
+            r -= r * fadeAmount / 255;
+            g -= g * fadeAmount / 255;
+            b -= b * fadeAmount / 255;
+
+            lut[i] = 0xFF000000 | r << 16 | g << 8 | b;
+        }
+        model = new IndexColorModel(8, SIZE, lut, 0, true, TRANSPARENT, DataBuffer.TYPE_BYTE);
+        return model;
+    }
+
+    private synchronized IndexColorModel baseModel() {
+        if (baseModel == null) {
+            baseModel = new IndexColorModel(8, SIZE, base, 0, true, TRANSPARENT, DataBuffer.TYPE_BYTE);
+        }
+        return baseModel;
+    }
+
+    private void changed() {
+        assert Thread.holdsLock(this);
+        model = null;
+        version += 1;
+    }
+
+    private int nearest(final int rgb) {
+        final int r = (rgb >> 16) & 0xFF;
+        final int g = (rgb >>  8) & 0xFF;
+        final int b = (rgb      ) & 0xFF;
+
+        int best = 1;
+        int bestDistance = Integer.MAX_VALUE;
+        for (int i = 1; i < count; ++i) {
+            final int dr = ((base[i] >> 16) & 0xFF) - r;
+            final int dg = ((base[i] >>  8) & 0xFF) - g;
+            final int db = ((base[i]      ) & 0xFF) - b;
+            final int distance = dr * dr + dg * dg + db * db;
+            if (distance < bestDistance) {
+                bestDistance = distance;
+                best = i;
+            }
+        }
+        return best;
+    }
+}
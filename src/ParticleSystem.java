@@ -0,0 +1,193 @@
+import java.util.*;
+
+// Short lived visual effects (rain, dust, splashes).
+//
+// A particle is a row in a set of fixed size primitive arrays, never an object. Live particles are
+// kept dense at the front of the arrays: a dying particle is replaced by the last live one, so the
+// update is one linear sweep over exactly the live rows. Nothing is allocated after construction,
+// if the arrays are full new particles are simply dropped.
+//
+// Rendering plots every particle straight into an int[] layer that is then drawn with a single
+// drawImage() call, instead of one fillRect() per particle.
+public final class ParticleSystem {
+
+    // what happens to a particle when its lifetime ends
+    public static final int ON_DEATH_NOTHING = 0;
+    public static final int ON_DEATH_SPLASH  = 1; // rain drops hitting the ground (or the water)
+
+    public interface Surface {
+        boolean isWater(final int cx, final int cy);
+    }
+
+    private final int capacity;
+    private int count = 0;
+
+    private final float[] x;
+    private final float[] y;
+    private final float[] xPrev;
+    private final float[] yPrev;
+    private final float[] vx;
+    private final float[] vy;
+    private final int[] life;    // ticks left
+    private final int[] color;   // argb
+    private final int[] length;  // height of the streak in pixels
+    private final int[] onDeath;
+
+    private int seed = 1;
+
+    public ParticleSystem(final int capacity) {
+        assert capacity > 0;
+
+        this.capacity = capacity;
+        x      = new float[capacity];
+        y      = new float[capacity];
+        xPrev  = new float[capacity];
+        yPrev  = new float[capacity];
+        vx     = new float[capacity];
+        vy     = new float[capacity];
+        life   = new int[capacity];
+        color  = new int[capacity];
+        length = new int[capacity];
+        onDeath = new int[capacity];
+    }
+
+    public void clear() {
+        count = 0;
+        seed = 1;
+    }
+
+    public int count() {
+        return count;
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    // Returns false if there was no room left.
+    public boolean emit(final float x, final float y, final float vx, final float vy, final int life, final int color, final int length, final int onDeath) {
+        assert life > 0 && length > 0;
+
+        if (count == capacity) return false;
+
+        final int i = count++;
+        this.x[i] = this.xPrev[i] = x;
+        this.y[i] = this.yPrev[i] = y;
+        this.vx[i] = vx;
+        this.vy[i] = vy;
+        this.life[i] = life;
+        this.color[i] = color;
+        this.length[i] = length;
+        this.onDeath[i] = onDeath;
+        return true;
+    }
+
+    // Rain over the given area (world coordinates), 'amount' new drops per tick.
+    public void rain(final float areaX, final float areaY, final int areaW, final int areaH, final int amount) {
+        for (int n = 0; n < amount; ++n) {
+            final float dx = nextRandom(areaW + 64) - 32;
+            final float dy = nextRandom(areaH + 64) - 48;
+            emit(areaX + dx, areaY + dy, -0.5f, 4.0f, 8 + nextRandom(16), 0xA0B4C8FF, 3, ON_DEATH_SPLASH);
+        }
+    }
+
+    // A puff of dust at the feet of something that just started walking.
+    public void dust(final float feetX, final float feetY) {
+        for (int n = 0; n < 6; ++n) {
+            final float dvx = (nextRandom(21) - 10) * 0.05f;
+            final float dvy = -nextRandom(10) * 0.04f;
+            emit(feetX, feetY, dvx, dvy, 10 + nextRandom(10), 0xC0A08060, 1, ON_DEATH_NOTHING);
+        }
+    }
+
+    private void splash(final float px, final float py, final boolean water) {
+        final int drops = water ? 4 : 1;
+        final int c = water ? 0xD0E0F0FF : 0x90B4C8FF;
+        for (int n = 0; n < drops; ++n) {
+            final float dvx = (nextRandom(21) - 10) * 0.06f;
+            final float dvy = -(nextRandom(10) + 5) * 0.05f;
+            emit(px, py, dvx, dvy, 4 + nextRandom(6), c, 1, ON_DEATH_NOTHING);
+        }
+    }
+
+    public void update(final Surface surface) {
+        assert surface != null;
+
+        // rows [0, end) were alive before this tick, everything emitted while updating (splashes) is
+        // appended behind them and first moves in the next tick
+        int end = count;
+        int i = 0;
+        while (i < end) {
+            xPrev[i] = x[i];
+            yPrev[i] = y[i];
+            x[i] += vx[i];
+            y[i] += vy[i];
+            life[i] -= 1;
+
+            if (life[i] > 0) {
+                i += 1;
+                continue;
+            }
+
+            final float deathX = x[i];
+            final float deathY = y[i];
+            final int deathAction = onDeath[i];
+
+            // The last not yet updated row takes the place of the dead one (so we look at row i again),
+            // the last row overall fills the hole that leaves. Both ranges stay dense.
+            end -= 1;
+            moveRow(end, i);
+            count -= 1;
+            if (count != end) {
+                moveRow(count, end);
+            }
+
+            if (deathAction == ON_DEATH_SPLASH) {
+                final int cx = (int) Math.floor(deathX / Game.TILE_SIZE);
+                final int cy = (int) Math.floor(deathY / Game.TILE_SIZE);
+                splash(deathX, deathY, surface.isWater(cx, cy));
+            }
+        }
+    }
+
+    // Plots every particle inside the viewport into 'pixels' (argb, layerW * layerH). The viewport is at
+    // (screenX, screenY) in the layer and looks at the world from (camX, camY).
+    public void render(final int[] pixels, final int layerW, final int layerH, final int screenX, final int screenY,
+                       final int viewW, final int viewH, final int camX, final int camY, final float alpha) {
+        final int minX = Math.max(0, screenX);
+        final int minY = Math.max(0, screenY);
+        final int maxX = Math.min(layerW, screenX + viewW);
+        final int maxY = Math.min(layerH, screenY + viewH);
+
+        for (int i = 0; i < count; ++i) {
+            final int px = Math.round(xPrev[i] + (x[i] - xPrev[i]) * alpha) - camX + screenX;
+            if (px < minX || px >= maxX) continue;
+
+            final int py = Math.round(yPrev[i] + (y[i] - yPrev[i]) * alpha) - camY + screenY;
+            final int c = color[i];
+            for (int yy = Math.max(minY, py - length[i] + 1), y1 = Math.min(maxY, py + 1); yy < y1; ++yy) {
+                pixels[yy * layerW + px] = c;
+            }
+        }
+    }
+
+    private void moveRow(final int from, final int to) {
+        x[to]       = x[from];
+        y[to]       = y[from];
+        xPrev[to]   = xPrev[from];
+        yPrev[to]   = yPrev[from];
+        vx[to]      = vx[from];
+        vy[to]      = vy[from];
+        life[to]    = life[from];
+        color[to]   = color[from];
+        length[to]  = length[from];
+        onDeath[to] = onDeath[from];
+    }
+
+    private int nextRandom(final int bound) {
+        seed ^= seed << 13;
+        seed ^= seed >>> 17;
+        seed ^= seed << 5;
+        return Math.floorMod(seed, bound);
+    }
+}
@@ -0,0 +1,164 @@
+// Headless benchmark for the Pathfinder.
+//
+// Queues the given amount of path requests between random cells of the overworld (every fourth one
+// repeats a recent request, like agents asking for the same path again) and ticks the pathfinder until
+// all of them are answered. Reports the node expansions per tick against the budget, the time per tick
+// and the cache hits, and checks every answer against a breadth first search: a path exactly when the
+// goal is reachable, as short as the shortest one, made of neighbouring passable cells.
+//
+//     java -cp build Main bench-path [requests] [seed]
+public final class PathBenchmark {
+
+    private static final int BUDGET_PER_TICK = 2048; // like the Game
+    private static final int MAX_QUEUED = 256;
+
+    private PathBenchmark() {
+    }
+
+    public static void run(final int amount, final int seed) {
+        assert amount > 0;
+        assert seed != 0 : "Xorshift does not leave 0!";
+
+        final Game game = Game.createHeadless();
+        final TileGrid tiles = game.getTileGrid();
+        final int w = tiles.getWidth();
+        final int h = tiles.getHeight();
+        final Pathfinder pathfinder = new Pathfinder(tiles, BUDGET_PER_TICK, MAX_QUEUED);
+        System.out.printf("%s requests in a %sx%s grid, %s expansions per tick%n", amount, w, h, BUDGET_PER_TICK);
+
+        // the first round warms up the jit and is not measured, its paths are different ones
+        final PathRequest[] requests = makeRequests(tiles, amount, seed);
+        solve(pathfinder, makeRequests(tiles, amount, next(seed ^ 0x5bd1e995)));
+
+        final long hitsBefore   = pathfinder.cacheHits;
+        final long missesBefore = pathfinder.cacheMisses;
+        final long start = System.nanoTime();
+        final long[] stats = solve(pathfinder, requests);
+        final double millis = (System.nanoTime() - start) / 1000000.0d;
+        final long ticks = stats[0];
+        final long expanded = stats[1];
+        System.out.printf("pathfinder: %6s ticks, %7.3f ms per tick, %8.1f expansions per tick (max %s), %s queued, %s answered from the cache%n",
+            ticks, millis / ticks, expanded / (double) ticks, stats[2], pathfinder.cacheMisses - missesBefore, pathfinder.cacheHits - hitsBefore);
+
+        // the same requests answered by a breadth first search
+        final int[] dist  = new int[w * h];
+        final int[] queue = new int[w * h];
+        int found = 0;
+        int bfsFound = 0;
+        int wrongLength = 0;
+        int broken = 0;
+        for (final PathRequest req : requests) {
+            final int shortest = bfs(tiles, req, dist, queue);
+            if (shortest >= 0) bfsFound += 1;
+            if (req.status == PathRequest.Status.FOUND) found += 1;
+
+            if (req.status == PathRequest.Status.FOUND ? req.length != shortest : shortest >= 0) {
+                wrongLength += 1;
+            } else if (req.status == PathRequest.Status.FOUND && !isContiguous(tiles, req)) {
+                broken += 1;
+            }
+        }
+        System.out.printf("check: %s found (breadth first search %s), %s of a different length, %s not walkable %s%n",
+            found, bfsFound, wrongLength, broken, wrongLength == 0 && broken == 0 ? "(identical)" : "(DIVERGED)");
+    }
+
+    // returns { ticks, expansions, most expansions in one tick }
+    private static long[] solve(final Pathfinder pathfinder, final PathRequest[] requests) {
+        long ticks = 0;
+        long expanded = 0;
+        long most = 0;
+        int submitted = 0;
+        while (submitted < requests.length || pathfinder.pendingRequests() > 0) {
+            while (submitted < requests.length && pathfinder.submit(requests[submitted])) {
+                submitted += 1;
+            }
+            pathfinder.tick();
+            ticks += 1;
+            expanded += pathfinder.nodesExpandedLastTick;
+            most = Math.max(most, pathfinder.nodesExpandedLastTick);
+        }
+        for (final PathRequest req : requests) {
+            assert req.status == PathRequest.Status.FOUND || req.status == PathRequest.Status.NOT_FOUND;
+        }
+        return new long[] { ticks, expanded, most };
+    }
+
+    private static PathRequest[] makeRequests(final TileGrid tiles, final int amount, int seed) {
+        final int w = tiles.getWidth();
+        final int h = tiles.getHeight();
+        final PathRequest[] requests = new PathRequest[amount];
+        for (int i = 0; i < amount; ++i) {
+            requests[i] = new PathRequest(64);
+            seed = next(seed);
+            if (i >= 16 && Math.floorMod(seed, 4) == 0) {
+                final PathRequest earlier = requests[i - 1 - Math.floorMod(seed >>> 2, 16)];
+                requests[i].set(earlier.xStart, earlier.yStart, earlier.xGoal, earlier.yGoal);
+                continue;
+            }
+
+            // the start is always passable, the goal is any cell (walls included)
+            int xStart;
+            int yStart;
+            do {
+                seed = next(seed);
+                xStart = Math.floorMod(seed, w);
+                yStart = Math.floorMod(seed >>> 16, h);
+            } while (!tiles.isPassable(xStart, yStart));
+            seed = next(seed);
+            requests[i].set(xStart, yStart, Math.floorMod(seed, w), Math.floorMod(seed >>> 16, h));
+        }
+        return requests;
+    }
+
+    // returns the length of the shortest path or -1 if the goal can not be reached
+    private static int bfs(final TileGrid tiles, final PathRequest req, final int[] dist, final int[] queue) {
+        final int w = tiles.getWidth();
+        final int goal = req.yGoal * w + req.xGoal;
+        if (!tiles.isPassable(req.xGoal, req.yGoal)) return -1;
+
+        java.util.Arrays.fill(dist, -1);
+        int head = 0;
+        int tail = 0;
+        final int start = req.yStart * w + req.xStart;
+        dist[start] = 0;
+        queue[tail++] = start;
+        while (head < tail) {
+            final int cell = queue[head++];
+            if (cell == goal) return dist[cell];
+
+            final int cx = cell % w;
+            final int cy = cell / w;
+            for (int i = 0; i < 4; ++i) {
+                final int nx = cx + (i == 2 ? -1 : i == 3 ? 1 : 0);
+                final int ny = cy + (i == 0 ? -1 : i == 1 ? 1 : 0);
+                if (!tiles.isPassable(nx, ny) || dist[ny * w + nx] != -1) continue;
+
+                dist[ny * w + nx] = dist[cell] + 1;
+                queue[tail++] = ny * w + nx;
+            }
+        }
+        return -1;
+    }
+
+    // every cell passable and next to the one before it, from the start to the goal
+    private static boolean isContiguous(final TileGrid tiles, final PathRequest req) {
+        final int w = tiles.getWidth();
+        int cx = req.xStart;
+        int cy = req.yStart;
+        for (int i = 0; i < req.length; ++i) {
+            final int nx = req.path[i] % w;
+            final int ny = req.path[i] / w;
+            if (Math.abs(nx - cx) + Math.abs(ny - cy) != 1 || !tiles.isPassable(nx, ny)) return false;
+            cx = nx;
+            cy = ny;
+        }
+        return cx == req.xGoal && cy == req.yGoal;
+    }
+
+    private static int next(int seed) {
+        seed ^= seed << 13;
+        seed ^= seed >>> 17;
+        seed ^= seed << 5;
+        return seed;
+    }
+}
@@ -0,0 +1,37 @@
+// A path query owned by whoever wants to move somewhere. Agents keep their request around and reuse it,
+// the pathfinder fills in the result once it got to it (see Pathfinder.submit()).
+public final class PathRequest {
+
+    public enum Status {
+        IDLE,
+        PENDING,
+        FOUND,
+        NOT_FOUND;
+    }
+
+    public int xStart;
+    public int yStart;
+    public int xGoal;
+    public int yGoal;
+
+    public volatile Status status = Status.IDLE;
+
+    // cells (y * width + x) from the start (exclusive) to the goal (inclusive)
+    public int[] path;
+    public int length = 0;
+
+    public PathRequest(final int maxLength) {
+        assert maxLength > 0;
+        path = new int[maxLength];
+    }
+
+    public PathRequest set(final int xStart, final int yStart, final int xGoal, final int yGoal) {
+        this.xStart = xStart;
+        this.yStart = yStart;
+        this.xGoal  = xGoal;
+        this.yGoal  = yGoal;
+        this.length = 0;
+        this.status = Status.IDLE;
+        return this;
+    }
+}
@@ -0,0 +1,331 @@
+import java.util.*;
+
+// A* over the passability bitmap of a TileGrid (4-neighbourhood, like the player moves).
+//
+// All search state (scores, parents, open heap, closed set) is sized to the grid once and reused for
+// every query. Instead of clearing it between searches every cell carries the generation it was last
+// touched in. Searches are queued and processed with a fixed budget of node expansions per tick, a
+// search that does not finish in one tick simply resumes in the next one. Recently found paths are
+// kept in a small cache which is invalidated as soon as the grid changes.
+public final class Pathfinder {
+
+    private static final int CACHE_SIZE = 32;
+
+    private final TileGrid grid;
+    private final int budgetPerTick;
+
+    // search state
+    private int[] gScore = new int[0];
+    private int[] fScore = new int[0];
+    private int[] parent = new int[0];
+    private int[] openGen   = new int[0]; // == generation: gScore/parent of that cell are valid
+    private int[] closedGen = new int[0]; // == generation: cell has been expanded
+    private int[] heap  = new int[0];     // open set as binary min heap, may contain stale entries
+    private int[] heapF = new int[0];     // fScore of the heap entry at the time it was pushed
+    private int heapSize = 0;
+    private int generation = 0;
+    private int searchVersion = -1;
+    private int remainingBudget = 0;
+
+    // queue of pending requests
+    private final PathRequest[] queue;
+    private int queueHead = 0;
+    private int queueSize = 0;
+    private PathRequest current = null;
+
+    // cache of recently found paths (round robin replacement)
+    private final int[] cacheStart   = new int[CACHE_SIZE];
+    private final int[] cacheGoal    = new int[CACHE_SIZE];
+    private final int[] cacheVersion = new int[CACHE_SIZE];
+    private final int[] cacheLength  = new int[CACHE_SIZE];
+    private final int[][] cachePath  = new int[CACHE_SIZE][];
+    private int cacheNext = 0;
+
+    // stats, a miss is a request that has been queued or searched right away (see bench-path)
+    public long cacheHits = 0;
+    public long cacheMisses = 0;
+    public int nodesExpandedLastTick = 0;
+
+    public Pathfinder(final TileGrid grid, final int budgetPerTick, final int maxQueuedRequests) {
+        assert grid != null;
+        assert budgetPerTick > 0;
+        assert maxQueuedRequests > 0;
+
+        this.grid = grid;
+        this.budgetPerTick = budgetPerTick;
+        this.queue = new PathRequest[maxQueuedRequests];
+
+        Arrays.fill(cacheVersion, -1);
+        for (int i = 0; i < CACHE_SIZE; ++i) {
+            cachePath[i] = new int[64];
+        }
+    }
+
+    // Queues the request, the result is available once its status is no longer PENDING.
+    // Returns false if the queue is full, the caller may try again in the next tick.
+    public boolean submit(final PathRequest req) {
+        assert req != null;
+        assert req.status != PathRequest.Status.PENDING : "Request is already queued!";
+
+        if (lookupCache(req)) {
+            return true;
+        }
+        if (queueSize == queue.length) {
+            return false;
+        }
+
+        cacheMisses += 1;
+        req.status = PathRequest.Status.PENDING;
+        queue[(queueHead + queueSize) % queue.length] = req;
+        queueSize += 1;
+        return true;
+    }
+
+    // Solves the request right away, ignoring the budget. Must not be called while tick() is searching.
+    public void findPathNow(final PathRequest req) {
+        assert req != null;
+        assert current == null : "Can not search synchronously while a queued search is running!";
+
+        if (lookupCache(req)) {
+            return;
+        }
+
+        cacheMisses += 1;
+        beginSearch(req);
+        while (!step(req, Integer.MAX_VALUE));
+    }
+
+    public void tick() {
+        int budget = budgetPerTick;
+        while (budget > 0) {
+            if (current == null) {
+                if (queueSize == 0) break;
+
+                current = queue[queueHead];
+                queue[queueHead] = null;
+                queueHead = (queueHead + 1) % queue.length;
+                queueSize -= 1;
+
+                if (lookupCache(current)) {
+                    current = null;
+                    continue;
+                }
+                beginSearch(current);
+            }
+
+            final boolean done = step(current, budget);
+            budget = remainingBudget;
+            if (done) {
+                current = null;
+            }
+        }
+        nodesExpandedLastTick = budgetPerTick - budget;
+    }
+
+    public int pendingRequests() {
+        return queueSize + (current != null ? 1 : 0);
+    }
+
+    private void beginSearch(final PathRequest req) {
+        final int w = grid.getWidth();
+        final int cells = w * grid.getHeight();
+        if (gScore.length < cells) {
+            // only happens when a bigger world has been loaded
+            gScore    = new int[cells];
+            fScore    = new int[cells];
+            parent    = new int[cells];
+            openGen   = new int[cells];
+            closedGen = new int[cells];
+            heap      = new int[cells * 4 + 1];
+            heapF     = new int[heap.length];
+            generation = 0;
+        }
+
+        generation += 1;
+        if (generation == Integer.MAX_VALUE) {
+            Arrays.fill(openGen, 0);
+            Arrays.fill(closedGen, 0);
+            generation = 1;
+        }
+        searchVersion = grid.getVersion();
+        heapSize = 0;
+
+        if (!grid.isPassable(req.xGoal, req.yGoal) || !grid.isInside(req.xStart, req.yStart)) {
+            heapSize = -1; // nothing to search
+            return;
+        }
+
+        final int start = req.yStart * w + req.xStart;
+        gScore[start]  = 0;
+        fScore[start]  = heuristic(req.xStart, req.yStart, req);
+        parent[start]  = -1;
+        openGen[start] = generation;
+        push(start);
+    }
+
+    // Expands up to 'budget' nodes. Returns true when the search is finished (found or not).
+    private boolean step(final PathRequest req, final int budget) {
+        remainingBudget = budget;
+
+        if (heapSize == -1) {
+            finish(req, -1);
+            return true;
+        }
+        if (searchVersion != grid.getVersion()) {
+            // the world changed under our feet, start over
+            beginSearch(req);
+        }
+
+        final int w = grid.getWidth();
+        final int goal = req.yGoal * w + req.xGoal;
+        while (heapSize > 0) {
+            if (remainingBudget == 0) return false;
+
+            final int node = pop();
+            if (closedGen[node] == generation) continue; // stale heap entry
+            closedGen[node] = generation;
+            remainingBudget -= 1;
+
+            if (node == goal) {
+                finish(req, goal);
+                return true;
+            }
+
+            final int cx = node % w;
+            final int cy = node / w;
+            relax(node, cx, cy - 1, req);
+            relax(node, cx, cy + 1, req);
+            relax(node, cx - 1, cy, req);
+            relax(node, cx + 1, cy, req);
+        }
+
+        finish(req, -1);
+        return true;
+    }
+
+    private void relax(final int from, final int cx, final int cy, final PathRequest req) {
+        if (!grid.isPassable(cx, cy)) return;
+
+        final int node = cy * grid.getWidth() + cx;
+        if (closedGen[node] == generation) return;
+
+        final int g = gScore[from] + 1;
+        if (openGen[node] == generation && g >= gScore[node]) return;
+
+        openGen[node] = generation;
+        gScore[node]  = g;
+        fScore[node]  = g + heuristic(cx, cy, req);
+        parent[node]  = from;
+        push(node);
+    }
+
+    private static int heuristic(final int cx, final int cy, final PathRequest req) {
+        return Math.abs(cx - req.xGoal) + Math.abs(cy - req.yGoal);
+    }
+
+    private void finish(final PathRequest req, final int goal) {
+        if (goal == -1) {
+            req.length = 0;
+            req.status = PathRequest.Status.NOT_FOUND;
+            return;
+        }
+
+        int length = 0;
+        for (int node = goal; parent[node] != -1; node = parent[node]) {
+            length += 1;
+        }
+        if (req.path.length < length) {
+            req.path = new int[length]; // the request was sized too small, only happens once per request
+        }
+        int i = length;
+        for (int node = goal; parent[node] != -1; node = parent[node]) {
+            req.path[--i] = node;
+        }
+        req.length = length;
+        req.status = PathRequest.Status.FOUND;
+
+        storeCache(req);
+    }
+
+    // Also answers requests that leave the grid, their cell indices would alias cells on the other side.
+    // Only counts the hits, tick() looks up every queued request again and a miss there is not a new one.
+    private boolean lookupCache(final PathRequest req) {
+        if (!grid.isInside(req.xStart, req.yStart) || !grid.isInside(req.xGoal, req.yGoal)) {
+            req.length = 0;
+            req.status = PathRequest.Status.NOT_FOUND;
+            return true;
+        }
+
+        final int w = grid.getWidth();
+        final int start = req.yStart * w + req.xStart;
+        final int goal  = req.yGoal  * w + req.xGoal;
+        final int version = grid.getVersion();
+        for (int i = 0; i < CACHE_SIZE; ++i) {
+            if (cacheVersion[i] == version && cacheStart[i] == start && cacheGoal[i] == goal) {
+                final int length = cacheLength[i];
+                if (req.path.length < length) {
+                    req.path = new int[length];
+                }
+                System.arraycopy(cachePath[i], 0, req.path, 0, length);
+                req.length = length;
+                req.status = PathRequest.Status.FOUND;
+                cacheHits += 1;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void storeCache(final PathRequest req) {
+        final int w = grid.getWidth();
+        final int slot = cacheNext;
+        cacheNext = (cacheNext + 1) % CACHE_SIZE;
+
+        if (cachePath[slot].length < req.length) {
+            cachePath[slot] = new int[Math.max(req.length, cachePath[slot].length * 2)];
+        }
+        System.arraycopy(req.path, 0, cachePath[slot], 0, req.length);
+        cacheStart[slot]   = req.yStart * w + req.xStart;
+        cacheGoal[slot]    = req.yGoal  * w + req.xGoal;
+        cacheLength[slot]  = req.length;
+        cacheVersion[slot] = grid.getVersion();
+    }
+
+    private void push(final int node) {
+        assert heapSize + 1 < heap.length;
+
+        final int f = fScore[node];
+        int i = heapSize++;
+        while (i > 0) {
+            final int p = (i - 1) >>> 1;
+            if (heapF[p] <= f) break;
+            heap[i]  = heap[p];
+            heapF[i] = heapF[p];
+            i = p;
+        }
+        heap[i]  = node;
+        heapF[i] = f;
+    }
+
+    private int pop() {
+        final int result = heap[0];
+        heapSize -= 1;
+        final int node = heap[heapSize];
+        final int f    = heapF[heapSize];
+
+        int i = 0;
+        while (true) {
+            final int l = i * 2 + 1;
+            if (l >= heapSize) break;
+            final int r = l + 1;
+            final int smallest = (r < heapSize && heapF[r] < heapF[l]) ? r : l;
+            if (heapF[smallest] >= f) break;
+            heap[i]  = heap[smallest];
+            heapF[i] = heapF[smallest];
+            i = smallest;
+        }
+        heap[i]  = node;
+        heapF[i] = f;
+        return result;
+    }
+}
@@ -1,12 +1,11 @@
-import java.awt.*;
 import java.awt.event.*;
 
 public final class Player extends Entity {
 
-    private final Image frontImage;
-    private final Image frontImage2;
-    private final Image backImage;
-    private Image currentImage;
+    private final int northAnim;
+    private final int southAnim;
+    private final int westAnim;
+    private final int eastAnim;
 
     private boolean moveUp    = false;
     private boolean moveDown  = false;
@@ -14,99 +13,152 @@ public final class Player extends Entity {
     private boolean moveRight = false;
     private boolean doneMoving = false;
     private int movementRemaining = 0;
+    private Game.Dir facing = Game.Dir.SOUTH;
 
-    public Player(final Game game, final Vector2f v2) {
-        super(game, v2, Game.TILE_SIZE, Game.TILE_SIZE);
+    public Player(final Game game) {
+        super(game, Game.TILE_SIZE, Game.TILE_SIZE);
 
-        frontImage   = game.fetchImage("res/player.png");
-        frontImage2  = game.fetchImage("res/player_2.png");
-        backImage    = game.fetchImage("res/player_back.png");
-        currentImage = frontImage;
+        northAnim = game.getAnimations().idOf("player_north");
+        southAnim = game.getAnimations().idOf("player_south");
+        westAnim  = game.getAnimations().idOf("player_west");
+        eastAnim  = game.getAnimations().idOf("player_east");
+        assert northAnim != AnimationTable.NO_ANIMATION && southAnim != AnimationTable.NO_ANIMATION;
+        assert westAnim  != AnimationTable.NO_ANIMATION && eastAnim  != AnimationTable.NO_ANIMATION;
     }
 
     @Override
-    public void input(final Display.InputHandler input) {
+    protected void onSpawn() {
+        moveUp    = false;
+        moveDown  = false;
+        moveLeft  = false;
+        moveRight = false;
+        doneMoving = false;
+        movementRemaining = 0;
+        face(Game.Dir.SOUTH);
+    }
+
+    public Game.Dir facing() {
+        return facing;
+    }
+
+    public void face(final Game.Dir dir) {
+        assert dir != null;
+
+        facing = dir;
+        switch (dir) {
+            case NORTH: {
+                setAnimation(northAnim);
+            } break;
+
+            case SOUTH: {
+                setAnimation(southAnim);
+            } break;
+
+            case WEST: {
+                setAnimation(westAnim);
+            } break;
+
+            case EAST: {
+                setAnimation(eastAnim);
+            } break;
+
+            default: {
+                assert false : "Unknown Dir!";
+            } break;
+        }
+    }
+
+    // where the player will come to rest once the current move is finished (always tile aligned)
+    public float restX() {
+        if (moveLeft)  return x() - movementRemaining;
+        if (moveRight) return x() + movementRemaining;
+        return x();
+    }
+
+    public float restY() {
+        if (moveUp)   return y() - movementRemaining;
+        if (moveDown) return y() + movementRemaining;
+        return y();
+    }
+
+    @Override
+    public void input(final Input input) {
         if (moveUp | moveDown | moveLeft | moveRight) return;
 
         if (input.isKeyPressed(KeyEvent.VK_W)) {
-            currentImage = backImage;
+            face(Game.Dir.NORTH);
             if (game.canMoveToTile(this, Game.Dir.NORTH)) {
                 moveUp = true;
-                doneMoving = true;
-                movementRemaining = Game.TILE_SIZE;
-                // game.playSoundFile("res/walk.wav", -10, false);
+                beginStep();
             }
         } else if (input.isKeyPressed(KeyEvent.VK_S)) {
-            currentImage = frontImage;
+            face(Game.Dir.SOUTH);
             if (game.canMoveToTile(this, Game.Dir.SOUTH)) {
                 moveDown = true;
-                doneMoving = true;
-                movementRemaining = Game.TILE_SIZE;
-                // game.playSoundFile("res/walk.wav", -10, false);
+                beginStep();
             }
         } else if (input.isKeyPressed(KeyEvent.VK_A)) {
-            currentImage = frontImage2;
+            face(Game.Dir.WEST);
             if (game.canMoveToTile(this, Game.Dir.WEST)) {
                 moveLeft = true;
-                doneMoving = true;
-                movementRemaining = Game.TILE_SIZE;
-                // game.playSoundFile("res/walk.wav", -10, false);
+                beginStep();
             }
         } else if (input.isKeyPressed(KeyEvent.VK_D)) {
-            currentImage = frontImage;
+            face(Game.Dir.EAST);
             if (game.canMoveToTile(this, Game.Dir.EAST)) {
                 moveRight = true;
-                doneMoving = true;
-                movementRemaining = Game.TILE_SIZE;
-                // game.playSoundFile("res/walk.wav", -10, false);
+                beginStep();
             }
         }
     }
 
+    private void beginStep() {
+        doneMoving = true;
+        movementRemaining = Game.TILE_SIZE;
+        game.getParticles().dust(x() + w() * 0.5f, y() + h() - 2);
+        // game.playSoundFile("res/walk.wav", -10, false);
+    }
+
     @Override
     public void update() {
        if (moveUp) {
             if (movementRemaining == 0) {
                 moveUp = false;
             } else {
-                v2.y -= 1;
+                moveBy(0, -1);
                 movementRemaining -= 1;
             }
         } else if (moveDown) {
             if (movementRemaining == 0) {
                 moveDown = false;
             } else {
-                v2.y += 1;
+                moveBy(0, 1);
                 movementRemaining -= 1;
             }
         } else if (moveLeft) {
             if (movementRemaining == 0) {
                 moveLeft = false;
             } else {
-                v2.x -= 1;
+                moveBy(-1, 0);
                 movementRemaining -= 1;
             }
         } else if (moveRight) {
             if (movementRemaining == 0) {
                 moveRight = false;
             } else {
-                v2.x += 1;
+                moveBy(1, 0);
                 movementRemaining -= 1;
             }
         }
 
         if (movementRemaining == 0 && !moveUp && !moveDown && !moveLeft && !moveRight) {
-            assert v2.x % Game.TILE_SIZE == 0 : "Player ended on wrong coordinates.";
-            assert v2.y % Game.TILE_SIZE == 0 : "Player ended on wrong coordinates.";
+            assert x() % Game.TILE_SIZE == 0 : "Player ended on wrong coordinates.";
+            assert y() % Game.TILE_SIZE == 0 : "Player ended on wrong coordinates.";
 
             if (doneMoving) {
                 doneMoving = false;
+                game.getTriggers().onStep((int) x() / Game.TILE_SIZE, (int) y() / Game.TILE_SIZE);
             }
         }
     }
-
-    @Override
-    public void render(final Graphics2D g) {
-        g.drawImage(currentImage, (int) v2.x, (int) v2.y, w, h, null);
-    }
 }
@@ -0,0 +1,60 @@
+import java.util.*;
+import java.util.function.*;
+
+// Fixed set of reusable objects with explicit acquire/release, so that gameplay code does not produce
+// garbage for the (tiny) heap to collect mid-game. The pool prefills itself, acquiring from an
+// exhausted pool still works but allocates, which the allocation check (see Game) will then report.
+public final class Pool<T> {
+
+    private final Supplier<T> factory;
+    private Object[] free;
+    private int freeCount = 0;
+    private int outstanding = 0;
+
+    public Pool(final int capacity, final Supplier<T> factory) {
+        assert capacity > 0;
+        assert factory != null;
+
+        this.factory = factory;
+        this.free = new Object[capacity];
+        for (int i = 0; i < capacity; ++i) {
+            free[freeCount++] = factory.get();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public T acquire() {
+        outstanding += 1;
+        if (freeCount == 0) {
+            return factory.get();
+        }
+
+        freeCount -= 1;
+        final T obj = (T) free[freeCount];
+        free[freeCount] = null;
+        return obj;
+    }
+
+    public void release(final T obj) {
+        assert obj != null;
+        assert outstanding > 0 : "Released more objects than acquired!";
+        assert !isFree(obj) : "Object released twice!";
+
+        outstanding -= 1;
+        if (freeCount == free.length) {
+            free = Arrays.copyOf(free, free.length * 2);
+        }
+        free[freeCount++] = obj;
+    }
+
+    public int outstanding() {
+        return outstanding;
+    }
+
+    private boolean isFree(final T obj) {
+        for (int i = 0; i < freeCount; ++i) {
+            if (free[i] == obj) return true;
+        }
+        return false;
+    }
+}
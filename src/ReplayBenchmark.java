@@ -0,0 +1,41 @@
+import java.nio.file.*;
+
+// Headless playback of an input recording (see ReplaySystem).
+//
+// Replays the recording as fast as possible, once per run, and reports the tick time distribution and
+// whether the world ever diverged from the recorded checksums. Nothing is rendered, so the frame times
+// stay empty; record with F7 and replay with F8 in the game for those.
+//
+//     java -cp build Main replay [file] [runs]
+public final class ReplayBenchmark {
+
+    private ReplayBenchmark() {
+    }
+
+    public static void run(final Path file, final int runs) {
+        assert file != null;
+        assert runs > 0;
+
+        final Game game = Game.createHeadless();
+        final ReplaySystem replay = game.getReplay();
+        final Input input = new Input();
+
+        boolean diverged = false;
+        for (int run = 0; run < runs; ++run) {
+            System.out.printf("run %s/%s%n", run + 1, runs);
+
+            replay.requestReplay(file);
+            do {
+                game.onNextTick(input);
+                input.update();
+            } while (replay.isReplaying());
+
+            diverged |= replay.diverged();
+        }
+
+        if (diverged) {
+            System.err.println("At least one run diverged from the recording!");
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,350 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.file.*;
+import java.util.*;
+
+// Records the keyboard state of every tick and plays it back later.
+//
+// Since the simulation only depends on its input and runs at a fixed rate, replaying a recording from
+// the same starting point yields the same world, tick by tick. Every CHECKSUM_INTERVAL ticks a hash of
+// the world state is stored next to the input, a replay compares against it and reports the first tick
+// at which it diverged. While replaying, the time spent per tick (and per rendered frame) is captured,
+// which makes a recording a repeatable real world workload to compare engine builds with.
+//
+// File layout (big endian, counts and ticks are varints):
+//
+//     header:   magic, version, total ticks, checksum interval
+//     records:  EVENTS   tick, count, count * (key code << 1 | pressed)
+//               CHECKSUM tick, hash (8 bytes)
+//               END
+public final class ReplaySystem {
+
+    public static final int MAGIC   = 0x47524543; // "GREC"
+    public static final int VERSION = 1;
+    public static final int CHECKSUM_INTERVAL = 60;
+
+    private static final int HEADER_BYTES = 16;
+    private static final byte RECORD_END      = 0;
+    private static final byte RECORD_EVENTS   = 1;
+    private static final byte RECORD_CHECKSUM = 2;
+
+    public enum Mode {
+        IDLE,
+        RECORDING,
+        REPLAYING;
+    }
+
+    private final Game game;
+    private volatile Mode mode = Mode.IDLE;
+
+    // requested by the keys of the Display (F7/F8) or from inside a tick, started at the beginning of the
+    // next one (the path is written before the mode)
+    private volatile Mode pendingMode = null;
+    private volatile Path pendingPath = null;
+
+    private ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+    private final boolean[] lastKeys = new boolean[Input.KEY_COUNT];
+    private Path recordPath = null;
+    private int tick = 0;
+    private int totalTicks = 0;
+
+    // replay results
+    private long tickStartNanos = 0;
+    private long[] tickNanos  = new long[0];
+    private long[] frameNanos = new long[0];
+    private int frameCount = 0;
+    private int divergences = 0;
+    private int firstDivergence = -1;
+
+    public ReplaySystem(final Game game) {
+        assert game != null;
+        this.game = game;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public boolean isReplaying() {
+        return mode == Mode.REPLAYING;
+    }
+
+    public void requestRecording(final Path path) {
+        assert path != null;
+        pendingPath = path;
+        pendingMode = Mode.RECORDING;
+    }
+
+    public void requestReplay(final Path path) {
+        assert path != null;
+        pendingPath = path;
+        pendingMode = Mode.REPLAYING;
+    }
+
+    public void requestStop() {
+        pendingMode = Mode.IDLE;
+    }
+
+    // the main thread calls this before the game processes the input of the tick
+    public void beforeTick(final Input input) {
+        if (pendingMode != null) {
+            final Mode next = pendingMode;
+            pendingMode = null;
+            switch (next) {
+                case IDLE:      stop(input); break;
+                case RECORDING: startRecording(input, pendingPath); break;
+                case REPLAYING: startReplay(input, pendingPath); break;
+            }
+        }
+
+        switch (mode) {
+            case RECORDING: {
+                recordEvents(input);
+            } break;
+
+            case REPLAYING: {
+                applyEvents(input);
+                tickStartNanos = System.nanoTime();
+            } break;
+
+            default: break;
+        }
+    }
+
+    // the main thread calls this after the game has been updated
+    public void afterTick(final Input input) {
+        if (mode == Mode.IDLE) return;
+
+        if (mode == Mode.REPLAYING) {
+            tickNanos[tick] = System.nanoTime() - tickStartNanos;
+        }
+        tick += 1;
+
+        if (tick % CHECKSUM_INTERVAL == 0) {
+            final long hash = game.stateHash();
+            if (mode == Mode.RECORDING) {
+                ensureCapacity(1 + 5 + 8);
+                buffer.put(RECORD_CHECKSUM);
+                putVarint(tick);
+                buffer.putLong(hash);
+            } else {
+                verifyChecksum(hash);
+            }
+        }
+
+        if (mode == Mode.REPLAYING && tick == totalTicks) {
+            finishReplay(input);
+        }
+    }
+
+    public void recordFrameTime(final long nanos) {
+        if (mode != Mode.REPLAYING || frameCount == frameNanos.length) return;
+        frameNanos[frameCount++] = nanos;
+    }
+
+    private void startRecording(final Input input, final Path path) {
+        if (mode != Mode.IDLE) stop(input);
+
+        game.resetForReplay();
+        buffer.clear();
+        buffer.position(HEADER_BYTES);
+        Arrays.fill(lastKeys, false);
+        input.releaseAll();
+        recordPath = path;
+        tick = 0;
+        mode = Mode.RECORDING;
+        System.out.printf("Recording input to '%s'.%n", path);
+    }
+
+    private void recordEvents(final Input input) {
+        int changes = 0;
+        for (int code = 0; code < Input.KEY_COUNT; ++code) {
+            if (input.isKeyPressed(code) != lastKeys[code]) changes += 1;
+        }
+        if (changes == 0) return;
+
+        ensureCapacity(1 + 5 + 5 + changes * 5);
+        buffer.put(RECORD_EVENTS);
+        putVarint(tick);
+        putVarint(changes);
+        for (int code = 0; code < Input.KEY_COUNT; ++code) {
+            final boolean pressed = input.isKeyPressed(code);
+            if (pressed != lastKeys[code]) {
+                putVarint(code << 1 | (pressed ? 1 : 0));
+                lastKeys[code] = pressed;
+            }
+        }
+    }
+
+    private void stopRecording() {
+        ensureCapacity(1);
+        buffer.put(RECORD_END);
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, VERSION);
+        buffer.putInt(8, tick);
+        buffer.putInt(12, CHECKSUM_INTERVAL);
+
+        try {
+            Files.write(recordPath, Arrays.copyOf(buffer.array(), buffer.position()));
+            System.out.printf("Recorded %s ticks (%s bytes) to '%s'.%n", tick, buffer.position(), recordPath);
+        } catch (final IOException ex) {
+            System.err.printf("Failed to write recording '%s'!%n", recordPath);
+            ex.printStackTrace(System.err);
+        }
+        mode = Mode.IDLE;
+    }
+
+    private void startReplay(final Input input, final Path path) {
+        if (mode != Mode.IDLE) stop(input);
+
+        try {
+            buffer = ByteBuffer.wrap(Files.readAllBytes(path));
+        } catch (final IOException ex) {
+            System.err.printf("Failed to read recording '%s'!%n", path);
+            ex.printStackTrace(System.err);
+            return;
+        }
+
+        if (buffer.remaining() < HEADER_BYTES || buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+            System.err.printf("'%s' is not a recording of this version!%n", path);
+            return;
+        }
+        totalTicks = buffer.getInt();
+        final int interval = buffer.getInt();
+        assert interval == CHECKSUM_INTERVAL;
+
+        game.resetForReplay();
+        input.releaseAll();
+        input.setDeviceIgnored(true);
+
+        tickNanos  = new long[Math.max(1, totalTicks)];
+        frameNanos = new long[Math.max(1, totalTicks * 4)];
+        frameCount = 0;
+        divergences = 0;
+        firstDivergence = -1;
+        tick = 0;
+        mode = Mode.REPLAYING;
+
+        if (totalTicks == 0) {
+            finishReplay(input);
+        }
+    }
+
+    private void applyEvents(final Input input) {
+        while (peekRecord() == RECORD_EVENTS) {
+            final int mark = buffer.position();
+            buffer.get();
+            final int recordTick = getVarint();
+            if (recordTick != tick) {
+                buffer.position(mark);
+                break;
+            }
+
+            final int changes = getVarint();
+            for (int i = 0; i < changes; ++i) {
+                final int event = getVarint();
+                input.setKey(event >>> 1, (event & 1) != 0);
+            }
+        }
+    }
+
+    private void verifyChecksum(final long hash) {
+        if (peekRecord() != RECORD_CHECKSUM) return;
+
+        final int mark = buffer.position();
+        buffer.get();
+        final int recordTick = getVarint();
+        if (recordTick != tick) {
+            buffer.position(mark);
+            return;
+        }
+
+        final long expected = buffer.getLong();
+        if (expected != hash) {
+            if (firstDivergence == -1) {
+                firstDivergence = tick;
+                System.err.printf("Replay diverged at tick %s!%n", tick);
+            }
+            divergences += 1;
+        }
+    }
+
+    private byte peekRecord() {
+        if (!buffer.hasRemaining()) return RECORD_END;
+        return buffer.get(buffer.position());
+    }
+
+    private void finishReplay(final Input input) {
+        mode = Mode.IDLE;
+        input.setDeviceIgnored(false);
+        input.releaseAll();
+        System.out.println(summary());
+    }
+
+    private void stop(final Input input) {
+        switch (mode) {
+            case RECORDING: {
+                stopRecording();
+            } break;
+
+            case REPLAYING: {
+                mode = Mode.IDLE;
+                System.out.println("Replay aborted.");
+            } break;
+
+            default: break;
+        }
+        input.setDeviceIgnored(false);
+        input.releaseAll();
+    }
+
+    // ticks, divergences and the tick/frame time distribution of the last replay
+    public String summary() {
+        return String.format("replay: %s ticks, %s checksum mismatches%s%n  tick  %s%n  frame %s",
+            tick, divergences, firstDivergence == -1 ? "" : " (first at tick " + firstDivergence + ")",
+            percentiles(tickNanos, tick), percentiles(frameNanos, frameCount));
+    }
+
+    public boolean diverged() {
+        return divergences > 0;
+    }
+
+    private static String percentiles(final long[] samples, final int count) {
+        if (count == 0) return "-";
+
+        final long[] sorted = Arrays.copyOf(samples, count);
+        Arrays.sort(sorted);
+        return String.format("p50 %.3f ms, p95 %.3f ms, p99 %.3f ms, max %.3f ms",
+            sorted[count / 2] / 1000000.0d, sorted[(int) (count * 0.95d)] / 1000000.0d,
+            sorted[(int) (count * 0.99d)] / 1000000.0d, sorted[count - 1] / 1000000.0d);
+    }
+
+    private void ensureCapacity(final int bytes) {
+        if (buffer.remaining() < bytes) {
+            final ByteBuffer bigger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + bytes));
+            buffer.flip();
+            bigger.put(buffer);
+            buffer = bigger;
+        }
+    }
+
+    private void putVarint(int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    private int getVarint() {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+}
@@ -0,0 +1,472 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.locks.*;
+
+// Versioned binary snapshot of the whole game (tile layers, player, camera, npcs).
+//
+// File layout (big endian):
+//
+//     [0, HEADER_BYTES)            header: magic, version, world size, chunk layout, world seed, sprite and animation names
+//     [HEADER_BYTES, dynamic)      one fixed size record per chunk of CHUNK_SIZE * CHUNK_SIZE cells
+//     [dynamic, end)               everything that is not a tile: game state, camera, player, npcs, triggers
+//
+// Since the header is padded and the chunk records have a fixed size, a chunk always lives at the same
+// offset. Only chunks that changed since the last save (see markDirty()) are encoded and written back,
+// the rest of the file is left alone. Encoding happens on the main thread into a reused buffer (it is
+// a plain memory copy), the file io happens on a background thread so a save never stalls a frame.
+// Loading works the other way around: the io thread reads the file, the next tick applies it.
+//
+// Sprites and animations are stored by name, so their runtime ids may differ between versions.
+public final class SaveSystem {
+
+    public static final int MAGIC   = 0x47534156; // "GSAV"
+    public static final int VERSION = 3; // 2: seed of generated worlds, their cooked chunks
+                                         // 3: npc scripts, fired triggers and trigger script variables
+
+    public static final int CHUNK_SIZE = 16;
+    private static final int TILE_BYTES   = 2 + 2 + 1; // sprite, animation, flags
+    private static final int CELL_BYTES   = TILE_BYTES * 2; // ground + overlay
+    private static final int CHUNK_BYTES  = CHUNK_SIZE * CHUNK_SIZE * CELL_BYTES;
+    private static final int HEADER_BYTES = 8192;
+
+    private static final int JOB_NONE = 0;
+    private static final int JOB_SAVE = 1;
+    private static final int JOB_LOAD = 2;
+
+    private final Game game;
+    private final Path file;
+
+    private int worldW = 0;
+    private int worldH = 0;
+    private int chunksX = 0;
+    private int chunksY = 0;
+    private long[] dirty = new long[0];
+
+    // save: filled by the main thread, written by the io thread
+    private ByteBuffer saveBuffer = ByteBuffer.allocate(HEADER_BYTES);
+    private long[] regionFilePos = new long[64];
+    private int[] regionOffset   = new int[64];
+    private int[] regionLength   = new int[64];
+    private int regionCount = 0;
+    private long fileEnd = 0;
+
+    // load: read by the io thread, applied by the main thread
+    private ByteBuffer loadBuffer = ByteBuffer.allocate(0);
+    private int[] spriteMap = new int[256];
+    private int[] animMap   = new int[256];
+
+    private volatile int job = JOB_NONE;
+    private volatile boolean loadReady = false;
+    private volatile boolean saveFailed = false; // the file is stale, the next save must write everything
+    private final Thread ioThread;
+
+    // stats
+    public volatile double lastIoMillis = 0;
+    public volatile long lastSaveBytes = 0;
+    public volatile String lastError = null;
+
+    public SaveSystem(final Game game, final Path file) {
+        assert game != null;
+        assert file != null;
+
+        this.game = game;
+        this.file = file;
+
+        ioThread = new Thread(this::ioLoop);
+        ioThread.setName("save_io_thread");
+        ioThread.setDaemon(true);
+        ioThread.start();
+    }
+
+    // Called whenever a new world has been populated. Everything is dirty, the file does not know it yet.
+    public void resize(final int worldW, final int worldH) {
+        assert worldW > 0 && worldH > 0;
+
+        this.worldW  = worldW;
+        this.worldH  = worldH;
+        this.chunksX = (worldW + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        this.chunksY = (worldH + CHUNK_SIZE - 1) / CHUNK_SIZE;
+
+        final int words = (chunksX * chunksY + 63) >>> 6;
+        if (dirty.length < words) {
+            dirty = new long[words];
+        }
+        markAllDirty();
+    }
+
+    public void markDirty(final int cx, final int cy) {
+        final int chunk = (cy / CHUNK_SIZE) * chunksX + (cx / CHUNK_SIZE);
+        dirty[chunk >>> 6] |= 1L << chunk;
+    }
+
+    public void markAllDirty() {
+        final int chunks = chunksX * chunksY;
+        Arrays.fill(dirty, 0);
+        for (int chunk = 0; chunk < chunks; ++chunk) {
+            dirty[chunk >>> 6] |= 1L << chunk;
+        }
+    }
+
+    public boolean isBusy() {
+        return job != JOB_NONE;
+    }
+
+    // Returns false if a save or load is still in progress.
+    public boolean save() {
+        if (job != JOB_NONE) return false;
+
+        if (saveFailed) {
+            saveFailed = false;
+            markAllDirty();
+        }
+
+        final EntityStore store = game.getEntityStore();
+        final TileGrid grid = game.getTileGrid();
+        final int chunks = chunksX * chunksY;
+
+        int dirtyChunks = 0;
+        for (int chunk = 0; chunk < chunks; ++chunk) {
+            if ((dirty[chunk >>> 6] & (1L << chunk)) != 0) dirtyChunks += 1;
+        }
+
+        final int required = HEADER_BYTES + dirtyChunks * CHUNK_BYTES + game.snapshotStateBytes();
+        if (saveBuffer.capacity() < required) {
+            saveBuffer = ByteBuffer.allocate(required * 2);
+        }
+        if (regionOffset.length < dirtyChunks + 2) {
+            regionFilePos = new long[dirtyChunks + 2];
+            regionOffset  = new int[dirtyChunks + 2];
+            regionLength  = new int[dirtyChunks + 2];
+        }
+        final ByteBuffer buf = saveBuffer;
+        buf.clear();
+        regionCount = 0;
+
+        final long dynamicOffset = HEADER_BYTES + (long) chunks * CHUNK_BYTES;
+
+        header: {
+            buf.putInt(MAGIC);
+            buf.putInt(VERSION);
+            buf.putInt(worldW);
+            buf.putInt(worldH);
+            buf.putInt(CHUNK_SIZE);
+            buf.putLong(dynamicOffset);
+            buf.putLong(game.getWorldSeed());
+            putNames(buf, game.getSprites().size(), game.getSprites(), null);
+            putNames(buf, game.getAnimations().size(), null, game.getAnimations());
+            assert buf.position() <= HEADER_BYTES : "Too many names for the save header!";
+            addRegion(0, 0, buf.position());
+            buf.position(HEADER_BYTES);
+        }
+
+        for (int chunk = 0; chunk < chunks; ++chunk) {
+            if ((dirty[chunk >>> 6] & (1L << chunk)) == 0) continue;
+
+            final int start = buf.position();
+            final int cx0 = (chunk % chunksX) * CHUNK_SIZE;
+            final int cy0 = (chunk / chunksX) * CHUNK_SIZE;
+            for (int cy = cy0; cy < cy0 + CHUNK_SIZE; ++cy) {
+                for (int cx = cx0; cx < cx0 + CHUNK_SIZE; ++cx) {
+                    putTile(buf, store, grid.getTile(cx, cy));
+                    putTile(buf, store, grid.getOverlay(cx, cy));
+                }
+            }
+            addRegion(HEADER_BYTES + (long) chunk * CHUNK_BYTES, start, CHUNK_BYTES);
+        }
+
+        dynamic: {
+            final int start = buf.position();
+            game.writeSnapshotState(buf);
+            addRegion(dynamicOffset, start, buf.position() - start);
+            fileEnd = dynamicOffset + (buf.position() - start);
+        }
+
+        Arrays.fill(dirty, 0);
+        job = JOB_SAVE;
+        LockSupport.unpark(ioThread);
+        return true;
+    }
+
+    // Returns false if a save or load is still in progress. The world is replaced in a later poll().
+    public boolean load() {
+        if (job != JOB_NONE) return false;
+
+        job = JOB_LOAD;
+        LockSupport.unpark(ioThread);
+        return true;
+    }
+
+    // Must be called once per tick on the main thread. Returns true if a loaded snapshot has been applied.
+    public boolean poll() {
+        if (!loadReady) return false;
+
+        try {
+            apply(loadBuffer);
+        } finally {
+            loadReady = false;
+            job = JOB_NONE;
+        }
+        return true;
+    }
+
+    // Everything is checked before the world is touched: a truncated or stale file is rejected and the
+    // current world stays as it is.
+    private void apply(final ByteBuffer buf) {
+        buf.position(0);
+        if (buf.limit() < HEADER_BYTES || buf.getInt() != MAGIC) {
+            reject("Not a save file!");
+            return;
+        }
+        final int version = buf.getInt();
+        if (version != VERSION) {
+            reject("Unsupported save file version " + version + "!");
+            return;
+        }
+
+        final int w = buf.getInt();
+        final int h = buf.getInt();
+        final int chunkSize = buf.getInt();
+        final long dynamicOffset = buf.getLong();
+        final long seed = buf.getLong();
+        if (chunkSize != CHUNK_SIZE || w <= 0 || h <= 0) {
+            reject("Corrupt save file!");
+            return;
+        }
+        final long cw = (w + (long) CHUNK_SIZE - 1) / CHUNK_SIZE;
+        final long ch = (h + (long) CHUNK_SIZE - 1) / CHUNK_SIZE;
+        if (dynamicOffset != HEADER_BYTES + cw * ch * CHUNK_BYTES || dynamicOffset > buf.limit()) {
+            reject("Corrupt save file (chunks do not match the world size)!");
+            return;
+        }
+
+        final int spriteCount = readNames(buf, true);
+        if (spriteCount < 0) return;
+        final int animCount = readNames(buf, false);
+        if (animCount < 0) return;
+
+        buf.position(HEADER_BYTES);
+        for (long i = 0; i < cw * ch * CHUNK_SIZE * CHUNK_SIZE * 2; ++i) {
+            final int sprite = buf.getShort();
+            final int anim   = buf.getShort();
+            buf.get();
+            if (sprite < -1 || sprite >= spriteCount || anim < -1 || anim >= animCount) {
+                reject("Corrupt save file (unknown sprite or animation in chunk " + (i / (CHUNK_SIZE * CHUNK_SIZE * 2)) + ")!");
+                return;
+            }
+        }
+
+        buf.position((int) dynamicOffset);
+        final String error = game.checkSnapshotState(buf, w, h, seed, spriteCount);
+        if (error != null) {
+            reject("Corrupt save file (" + error + ")!");
+            return;
+        }
+
+        game.beginWorld(w, h, seed);
+
+        final EntityStore store = game.getEntityStore();
+        for (int chunk = 0; chunk < cw * ch; ++chunk) {
+            buf.position(HEADER_BYTES + chunk * CHUNK_BYTES);
+            final int cx0 = (int) (chunk % cw) * CHUNK_SIZE;
+            final int cy0 = (int) (chunk / cw) * CHUNK_SIZE;
+            for (int cy = cy0; cy < cy0 + CHUNK_SIZE; ++cy) {
+                for (int cx = cx0; cx < cx0 + CHUNK_SIZE; ++cx) {
+                    getTile(buf, store, cx, cy, w, h);
+                    getTile(buf, store, cx, cy, w, h);
+                }
+            }
+        }
+
+        game.endWorld(w, h);
+
+        buf.position((int) dynamicOffset);
+        game.readSnapshotState(buf, spriteMap);
+
+        // the world matches the file exactly now
+        Arrays.fill(dirty, 0);
+    }
+
+    private void reject(final String error) {
+        lastError = error;
+        System.err.printf("Failed to load '%s': %s%n", file, error);
+    }
+
+    private void putTile(final ByteBuffer buf, final EntityStore store, final int tile) {
+        if (tile == TileGrid.NO_TILE) {
+            buf.putShort((short) -1);
+            buf.putShort((short) -1);
+            buf.put((byte) 0);
+            return;
+        }
+        buf.putShort((short) store.sprite[tile]);
+        buf.putShort((short) store.anim[tile]);
+        buf.put((byte) (store.flags[tile] & EntityStore.FLAG_PASSABLE));
+    }
+
+    private void getTile(final ByteBuffer buf, final EntityStore store, final int cx, final int cy, final int w, final int h) {
+        final int sprite = buf.getShort();
+        final int anim   = buf.getShort();
+        final int flags  = buf.get();
+        if (sprite == -1 || cx >= w || cy >= h) return;
+
+        final int id = store.create(cx * Game.TILE_SIZE, cy * Game.TILE_SIZE, Game.TILE_SIZE, Game.TILE_SIZE, spriteMap[sprite], flags & EntityStore.FLAG_PASSABLE);
+        if (anim != -1) {
+            store.setAnimation(id, animMap[anim]);
+        }
+    }
+
+    // names are ascii, written char by char so saving does not allocate
+    private static void putNames(final ByteBuffer buf, final int count, final SpriteTable sprites, final AnimationTable animations) {
+        buf.putShort((short) count);
+        for (int i = 0; i < count; ++i) {
+            final String name = sprites != null ? sprites.nameOf(i) : animations.nameOf(i);
+            buf.putShort((short) name.length());
+            for (int c = 0; c < name.length(); ++c) {
+                assert name.charAt(c) < 128;
+                buf.put((byte) name.charAt(c));
+            }
+        }
+    }
+
+    // Maps the names in the file to the runtime ids (into spriteMap or animMap) and returns how many there
+    // are, -1 if the names are corrupt or unknown. Only allocates for names we do not know yet.
+    private int readNames(final ByteBuffer buf, final boolean sprites) {
+        final int count = buf.getShort();
+        if (count < 0) {
+            reject("Corrupt save file (name count)!");
+            return -1;
+        }
+
+        int[] map = sprites ? spriteMap : animMap;
+        if (map.length < count) {
+            map = new int[count];
+        }
+        for (int i = 0; i < count; ++i) {
+            if (buf.position() + 2 > HEADER_BYTES) {
+                reject("Corrupt save file (names do not fit the header)!");
+                return -1;
+            }
+            final int length = buf.getShort();
+            final int start  = buf.position();
+            if (length < 0 || start + length > HEADER_BYTES) {
+                reject("Corrupt save file (names do not fit the header)!");
+                return -1;
+            }
+            buf.position(start + length);
+
+            map[i] = sprites ? EntityStore.NO_SPRITE : AnimationTable.NO_ANIMATION;
+            final int known = sprites ? game.getSprites().size() : game.getAnimations().size();
+            for (int id = 0; id < known && map[i] < 0; ++id) {
+                final String name = sprites ? game.getSprites().nameOf(id) : game.getAnimations().nameOf(id);
+                if (nameEquals(buf, start, length, name)) {
+                    map[i] = id;
+                }
+            }
+
+            if (map[i] < 0) {
+                final String name = new String(buf.array(), start, length, java.nio.charset.StandardCharsets.US_ASCII);
+                if (sprites) {
+                    map[i] = game.findSprite(name);
+                }
+                if (map[i] < 0) {
+                    reject("Unknown " + (sprites ? "sprite" : "animation") + " '" + name + "' in save file!");
+                    return -1;
+                }
+            }
+        }
+
+        if (sprites) {
+            spriteMap = map;
+        } else {
+            animMap = map;
+        }
+        return count;
+    }
+
+    private static boolean nameEquals(final ByteBuffer buf, final int start, final int length, final String name) {
+        if (name.length() != length) return false;
+        for (int c = 0; c < length; ++c) {
+            if (buf.get(start + c) != name.charAt(c)) return false;
+        }
+        return true;
+    }
+
+    private void addRegion(final long filePos, final int offset, final int length) {
+        regionFilePos[regionCount] = filePos;
+        regionOffset[regionCount]  = offset;
+        regionLength[regionCount]  = length;
+        regionCount += 1;
+    }
+
+    private void ioLoop() {
+        while (true) {
+            final int current = job;
+            if (current == JOB_NONE || (current == JOB_LOAD && loadReady)) {
+                LockSupport.park(this);
+                continue;
+            }
+
+            final long start = System.nanoTime();
+            try {
+                if (current == JOB_SAVE) {
+                    writeRegions();
+                } else {
+                    readFile();
+                }
+                lastError = null;
+            } catch (final IOException ex) {
+                lastError = ex.toString();
+                ex.printStackTrace(System.err);
+            }
+            lastIoMillis = (System.nanoTime() - start) / 1000000.0d;
+
+            if (current == JOB_LOAD && lastError == null) {
+                loadReady = true; // the main thread resets the job once applied
+            } else {
+                if (current == JOB_SAVE && lastError != null) {
+                    saveFailed = true;
+                }
+                job = JOB_NONE;
+            }
+        }
+    }
+
+    private void writeRegions() throws IOException {
+        try (final FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            final ByteBuffer view = saveBuffer.duplicate();
+            long written = 0;
+            for (int i = 0; i < regionCount; ++i) {
+                view.limit(regionOffset[i] + regionLength[i]);
+                view.position(regionOffset[i]);
+                long pos = regionFilePos[i];
+                while (view.hasRemaining()) {
+                    pos += channel.write(view, pos);
+                }
+                written += regionLength[i];
+            }
+            channel.truncate(fileEnd);
+            lastSaveBytes = written;
+        }
+    }
+
+    private void readFile() throws IOException {
+        try (final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            final long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Save file too big!");
+            }
+            if (loadBuffer.capacity() < size) {
+                loadBuffer = ByteBuffer.allocate((int) size);
+            }
+            loadBuffer.clear();
+            loadBuffer.limit((int) size);
+            while (loadBuffer.hasRemaining()) {
+                if (channel.read(loadBuffer) < 0) break;
+            }
+            loadBuffer.flip();
+        }
+    }
+}
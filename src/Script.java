@@ -0,0 +1,160 @@
+import java.util.*;
+
+// A compiled behaviour script (see ScriptCompiler for the language) and the interpreter running it.
+//
+// Scripts are compiled once, when they are loaded, into code for a small register machine: every
+// instruction is four ints (opcode and three operands) and works directly on registers, so 'a = b + 1'
+// is a single instruction instead of the push/push/add/store of a stack machine. Conditions compile
+// into compare-and-jump instructions. The registers of a script are a plain int[] owned by whoever runs
+// it (one per npc, one per trigger): the first ones hold the variables of the script, which keep their
+// values from one run to the next, the rest are temporaries. run() allocates nothing and never touches
+// anything but those registers and the host, so different npcs can run the same script on different
+// threads at the same time.
+//
+// Everything a script can do to the game goes through the functions of its Host. The same function
+// means the same thing everywhere (an npc and a trigger both know where the player is), functions that
+// make no sense for a host (a trigger cannot move()) simply return 0 there.
+public final class Script {
+
+    public interface Host {
+        // 'a' and 'b' are the arguments (0 if the function takes less), 'context' is what was passed to run()
+        int call(final int function, final int a, final int b, final int context);
+    }
+
+    // functions, see FUNCTION_NAMES for what they are called in a script
+    public static final int FN_MOVE     = 0;  // move(dir): step towards dir (north, south, west, east), 1 if that is possible
+    public static final int FN_WAIT     = 1;  // wait(ticks): do not run the script for that many ticks
+    public static final int FN_FREE     = 2;  // free(dir): 1 if the neighbour cell is free to walk on
+    public static final int FN_RAND     = 3;  // rand(n): 0 to n - 1, from the random numbers of the host (deterministic)
+    public static final int FN_X        = 4;  // x(), y(): cell of the npc or the trigger that fired
+    public static final int FN_Y        = 5;
+    public static final int FN_PLAYER_X = 6;  // player_x(), player_y(): cell of the player
+    public static final int FN_PLAYER_Y = 7;
+    public static final int FN_SAY      = 8;  // say("text"): shows the text in a dialogue box
+    public static final int FN_WARP     = 9;  // warp(x, y): puts the player onto that cell, 1 if it was free
+    public static final int FN_FLASH    = 10; // flash(): flashes the screen
+
+    static final String[] FUNCTION_NAMES = { "move", "wait", "free", "rand", "x", "y", "player_x", "player_y", "say", "warp", "flash" };
+    static final int[] FUNCTION_ARGS     = {  1,      1,      1,      1,      0,   0,   0,          0,          1,     2,      0       };
+
+    // opcodes, operands are a, b, c. r[] are registers, jump targets are indices into the code.
+    static final int OP_LOADK = 0;  // r[a] = b
+    static final int OP_MOV   = 1;  // r[a] = r[b]
+    static final int OP_ADD   = 2;  // r[a] = r[b] + r[c]
+    static final int OP_SUB   = 3;
+    static final int OP_MUL   = 4;
+    static final int OP_DIV   = 5;  // dividing by zero gives 0
+    static final int OP_MOD   = 6;
+    static final int OP_ADDK  = 7;  // r[a] = r[b] + c
+    static final int OP_NEG   = 8;  // r[a] = -r[b]
+    static final int OP_NOT   = 9;  // r[a] = r[b] == 0 ? 1 : 0
+    static final int OP_EQ    = 10; // r[a] = r[b] == r[c] ? 1 : 0
+    static final int OP_NE    = 11;
+    static final int OP_LT    = 12;
+    static final int OP_LE    = 13;
+    static final int OP_JMP   = 14; // goto a
+    static final int OP_JZ    = 15; // if r[b] == 0 goto a
+    static final int OP_JNZ   = 16;
+    static final int OP_JEQ   = 17; // if r[b] == r[c] goto a
+    static final int OP_JNE   = 18;
+    static final int OP_JLT   = 19;
+    static final int OP_JLE   = 20;
+    static final int OP_CALL  = 21; // r[a] = host.call(b, r[c], r[c + 1])
+    static final int OP_RET   = 22;
+
+    // A script that loops this often in one run is stopped there (and continues from the top next time),
+    // a broken script must not hang the game.
+    public static final int MAX_LOOPS_PER_RUN = 10000;
+
+    private final String name;
+    private final int[] code;
+    private final int registers;
+    private final int[] initial; // values of the variables before the first run
+    private final String[] strings;
+
+    Script(final String name, final int[] code, final int registers, final int[] initial, final String[] strings) {
+        assert name != null && code != null && initial != null && strings != null;
+        assert registers >= initial.length;
+
+        this.name      = name;
+        this.code      = code;
+        this.registers = registers;
+        this.initial   = initial;
+        this.strings   = strings;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    // how big the int[] passed to run() has to be
+    public int registerCount() {
+        return registers;
+    }
+
+    public int instructionCount() {
+        return code.length / 4;
+    }
+
+    // the text of a say() call, 'index' is what the host got as argument
+    public String stringAt(final int index) {
+        return strings[index];
+    }
+
+    // Sets the variables to their initial values, must be done once before the first run().
+    public void init(final int[] r) {
+        assert r.length >= registers;
+
+        Arrays.fill(r, 0, registers, 0);
+        System.arraycopy(initial, 0, r, 0, initial.length);
+    }
+
+    // Runs the script from the top. Returns false if it was stopped because it looped too often.
+    public boolean run(final Host host, final int context, final int[] r) {
+        final int[] code = this.code;
+        int loops = MAX_LOOPS_PER_RUN;
+        int pc = 0;
+        while (true) {
+            final int a = code[pc + 1];
+            final int b = code[pc + 2];
+            final int c = code[pc + 3];
+            switch (code[pc]) {
+                case OP_LOADK: r[a] = b; break;
+                case OP_MOV:   r[a] = r[b]; break;
+                case OP_ADD:   r[a] = r[b] + r[c]; break;
+                case OP_SUB:   r[a] = r[b] - r[c]; break;
+                case OP_MUL:   r[a] = r[b] * r[c]; break;
+                case OP_DIV:   r[a] = r[c] == 0 ? 0 : r[b] / r[c]; break;
+                case OP_MOD:   r[a] = r[c] == 0 ? 0 : r[b] % r[c]; break;
+                case OP_ADDK:  r[a] = r[b] + c; break;
+                case OP_NEG:   r[a] = -r[b]; break;
+                case OP_NOT:   r[a] = r[b] == 0 ? 1 : 0; break;
+                case OP_EQ:    r[a] = r[b] == r[c] ? 1 : 0; break;
+                case OP_NE:    r[a] = r[b] != r[c] ? 1 : 0; break;
+                case OP_LT:    r[a] = r[b] <  r[c] ? 1 : 0; break;
+                case OP_LE:    r[a] = r[b] <= r[c] ? 1 : 0; break;
+
+                case OP_JMP: {
+                    // only loops jump backwards
+                    if (a < pc && --loops < 0) return false;
+                    pc = a;
+                } continue;
+
+                case OP_JZ:  if (r[b] == 0)    { pc = a; continue; } break;
+                case OP_JNZ: if (r[b] != 0)    { pc = a; continue; } break;
+                case OP_JEQ: if (r[b] == r[c]) { pc = a; continue; } break;
+                case OP_JNE: if (r[b] != r[c]) { pc = a; continue; } break;
+                case OP_JLT: if (r[b] <  r[c]) { pc = a; continue; } break;
+                case OP_JLE: if (r[b] <= r[c]) { pc = a; continue; } break;
+
+                case OP_CALL: r[a] = host.call(b, r[c], r[c + 1], context); break;
+                case OP_RET:  return true;
+
+                default: {
+                    assert false : "Unknown opcode!";
+                } return true;
+            }
+            pc += 4;
+        }
+    }
+}
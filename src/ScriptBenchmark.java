@@ -0,0 +1,263 @@
+// Headless benchmark for npc scripts (see Script).
+//
+// Puts the same patrolling npcs onto the overworld twice: once with the behaviour written in Java, once
+// running PATROL, which does the same thing as a script. Both kinds are Entities with the same movement
+// code, only decide() differs, so the difference is what the interpreter costs. Reports the time per npc
+// and tick for both, how much of the 16.6 ms of a tick that is, and checks that both end up in the same
+// places.
+//
+//     java -cp build Main bench-script [npcs] [ticks]
+public final class ScriptBenchmark {
+
+    static final String PATROL =
+        "var home = -1\n" +
+        "var dir = east\n" +
+        "\n" +
+        "if home == -1\n" +
+        "    home = x()\n" +
+        "end\n" +
+        "\n" +
+        "if dir == east and x() >= home + 8 or dir == west and x() <= home\n" +
+        "    if dir == east\n" +
+        "        dir = west\n" +
+        "    else\n" +
+        "        dir = east\n" +
+        "    end\n" +
+        "    wait(rand(60))\n" +
+        "    return\n" +
+        "end\n" +
+        "\n" +
+        "if not move(dir)\n" +
+        "    home = x() # blocked, patrol from here\n" +
+        "    wait(rand(30))\n" +
+        "end\n";
+
+    private ScriptBenchmark() {
+    }
+
+    public static void run(final int npcs, final int ticks) {
+        assert npcs > 0 && ticks > 0;
+
+        final Game game = Game.createHeadless();
+        final Script script;
+        try {
+            script = ScriptCompiler.compile("PATROL", PATROL);
+        } catch (final ScriptCompiler.CompileError ex) {
+            throw new AssertionError(ex.getMessage());
+        }
+        System.out.printf("%s npcs, %s ticks, script: %s instructions, %s registers%n", npcs, ticks, script.instructionCount(), script.registerCount());
+
+        final Patroller[] java     = new Patroller[npcs];
+        final Patroller[] scripted = new Patroller[npcs];
+        for (int i = 0; i < npcs; ++i) {
+            java[i]     = new JavaPatroller(game);
+            scripted[i] = new ScriptPatroller(game, script);
+        }
+
+        final double javaNanos   = measure(game, java, ticks);
+        final long   javaHash    = stateHash(java);
+        final double scriptNanos = measure(game, scripted, ticks);
+        final long   scriptHash  = stateHash(scripted);
+
+        final double budget = 1000.0d / Game.TICK_RATE;
+        System.out.printf("java:   %7.1f ns per npc and tick, %6.3f ms per tick (%5.1f%% of %.1f ms)%n", javaNanos, javaNanos * npcs / 1000000.0d, javaNanos * npcs / 10000.0d / budget, budget);
+        System.out.printf("script: %7.1f ns per npc and tick, %6.3f ms per tick (%5.1f%% of %.1f ms), %.2fx the time of java%n", scriptNanos, scriptNanos * npcs / 1000000.0d, scriptNanos * npcs / 10000.0d / budget, budget, scriptNanos / javaNanos);
+        System.out.printf("state %016x %016x %s%n", javaHash, scriptHash, javaHash == scriptHash ? "(identical)" : "(DIVERGED)");
+    }
+
+    // Spawns the npcs on the same cells every time, the first half of the ticks warms up the jit.
+    private static double measure(final Game game, final Patroller[] npcs, final int ticks) {
+        game.reloadOverworld();
+        final TileGrid grid = game.getTileGrid();
+        final Vector2f v2 = new Vector2f(0, 0);
+        int seed = 1;
+        for (int i = 0; i < npcs.length; ++i) {
+            int cx;
+            int cy;
+            do {
+                seed = Patroller.next(seed);
+                cx = Math.floorMod(seed, grid.getWidth());
+                cy = Math.floorMod(seed >>> 16, grid.getHeight());
+            } while (!grid.isPassable(cx, cy));
+
+            v2.set(cx * Game.TILE_SIZE, cy * Game.TILE_SIZE);
+            npcs[i].spawn(v2);
+            npcs[i].rng = seed;
+        }
+
+        for (int tick = 0; tick < ticks / 2; ++tick) {
+            for (final Patroller npc : npcs) npc.update();
+        }
+        final long start = System.nanoTime();
+        for (int tick = ticks / 2; tick < ticks; ++tick) {
+            for (final Patroller npc : npcs) npc.update();
+        }
+        return (System.nanoTime() - start) / (double) (ticks - ticks / 2) / npcs.length;
+    }
+
+    private static long stateHash(final Patroller[] npcs) {
+        long hash = 1469598103934665603L;
+        for (final Patroller npc : npcs) {
+            hash = (hash ^ Float.floatToIntBits(npc.x())) * 1099511628211L;
+            hash = (hash ^ Float.floatToIntBits(npc.y())) * 1099511628211L;
+            npc.despawn();
+        }
+        return hash;
+    }
+
+    // Walks from cell to cell like the npcs of the WanderSystem, decide() picks the next step.
+    private abstract static class Patroller extends Entity {
+
+        int rng = 1;
+        int waiting = 0;
+        int moveDir = -1;
+        private int remaining = 0;
+        private int dir = 0;
+
+        Patroller(final Game game) {
+            super(game, Game.TILE_SIZE, Game.TILE_SIZE);
+        }
+
+        @Override
+        protected void onSpawn() {
+            waiting = 0;
+            remaining = 0;
+        }
+
+        @Override
+        public void update() {
+            if (remaining > 0) {
+                switch (dir) {
+                    case 0: moveBy(0, -1); break;
+                    case 1: moveBy(0,  1); break;
+                    case 2: moveBy(-1, 0); break;
+                    case 3: moveBy( 1, 0); break;
+                }
+                remaining -= 1;
+                return;
+            }
+            if (waiting > 0) {
+                waiting -= 1;
+                return;
+            }
+
+            moveDir = -1;
+            decide();
+            if (moveDir == -1 || !isFree(moveDir)) return;
+
+            dir = moveDir;
+            remaining = Game.TILE_SIZE;
+        }
+
+        abstract void decide();
+
+        final int cellX() {
+            return (int) x() / Game.TILE_SIZE;
+        }
+
+        final int cellY() {
+            return (int) y() / Game.TILE_SIZE;
+        }
+
+        final boolean isFree(final int d) {
+            final TileGrid grid = game.getTileGrid();
+            switch (d) {
+                case 0: return grid.isPassable(cellX(), cellY() - 1);
+                case 1: return grid.isPassable(cellX(), cellY() + 1);
+                case 2: return grid.isPassable(cellX() - 1, cellY());
+                case 3: return grid.isPassable(cellX() + 1, cellY());
+                default: return false;
+            }
+        }
+
+        final int random(final int n) {
+            rng = next(rng);
+            return n > 0 ? ((rng >>> 8) % n) : 0;
+        }
+
+        static int next(int seed) {
+            seed ^= seed << 13;
+            seed ^= seed >>> 17;
+            seed ^= seed << 5;
+            return seed;
+        }
+    }
+
+    // PATROL written by hand
+    private static final class JavaPatroller extends Patroller {
+
+        private int home = -1;
+        private int heading = 3;
+
+        JavaPatroller(final Game game) {
+            super(game);
+        }
+
+        @Override
+        protected void onSpawn() {
+            super.onSpawn();
+            home = -1;
+            heading = 3;
+        }
+
+        @Override
+        void decide() {
+            if (home == -1) {
+                home = cellX();
+            }
+
+            if (heading == 3 && cellX() >= home + 8 || heading == 2 && cellX() <= home) {
+                heading = heading == 3 ? 2 : 3;
+                waiting = random(60);
+                return;
+            }
+
+            moveDir = heading;
+            if (!isFree(heading)) {
+                home = cellX();
+                waiting = random(30);
+            }
+        }
+    }
+
+    private static final class ScriptPatroller extends Patroller implements Script.Host {
+
+        private final Script script;
+        private final int[] registers;
+
+        ScriptPatroller(final Game game, final Script script) {
+            super(game);
+            this.script = script;
+            this.registers = new int[script.registerCount()];
+        }
+
+        @Override
+        protected void onSpawn() {
+            super.onSpawn();
+            script.init(registers);
+        }
+
+        @Override
+        void decide() {
+            script.run(this, 0, registers);
+        }
+
+        @Override
+        public int call(final int function, final int a, final int b, final int context) {
+            switch (function) {
+                case Script.FN_MOVE: {
+                    if (a < 0 || a > 3) return 0;
+                    moveDir = a;
+                    return isFree(a) ? 1 : 0;
+                }
+
+                case Script.FN_WAIT: waiting = Math.max(a, 0); return 0;
+                case Script.FN_FREE: return isFree(a) ? 1 : 0;
+                case Script.FN_RAND: return random(a);
+                case Script.FN_X:    return cellX();
+                case Script.FN_Y:    return cellY();
+                default:             return 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,769 @@
+import java.util.*;
+
+// Compiles the behaviour scripts in res/ (*.script) into Scripts.
+//
+// The language is tiny on purpose. Everything is an int, a script is run from the top once per tick (an
+// npc) or whenever it fires (a trigger):
+//
+//     # comment
+//     var steps = 4                 variables keep their value between runs, declared at the top level
+//                                   with a number or a direction as initial value
+//     steps = steps - 1             assignment
+//     move(east)                    calls, see Script.FN_* for the functions
+//     if steps == 0 and free(west)  if / elif / else / end, conditions short circuit
+//         say("Halt!")
+//     elif not free(east)
+//         return                    ends the run
+//     end
+//     while rand(4) != 0            while / end
+//         wait(1)
+//     end
+//
+// Operators by precedence: or, and, not, comparisons (== != < <= > >=), + -, * / %, unary -. The
+// directions north, south, west and east are constants (the order of Game.Dir). Strings only exist as
+// the argument of say().
+//
+// Errors are reported with file and line, the caller decides what happens to the thing that wanted the
+// script (see Game.fetchScript()).
+public final class ScriptCompiler {
+
+    public static final class CompileError extends Exception {
+
+        private static final long serialVersionUID = 1L;
+
+        public CompileError(final String message) {
+            super(message);
+        }
+    }
+
+    // tokens
+    private static final int T_NUMBER  = 0;
+    private static final int T_NAME    = 1;
+    private static final int T_STRING  = 2;
+    private static final int T_SYMBOL  = 3;
+    private static final int T_NEWLINE = 4;
+    private static final int T_EOF     = 5;
+
+    // syntax tree
+    private static final int N_NUMBER = 0;  // value
+    private static final int N_STRING = 1;  // value = index into the strings
+    private static final int N_VAR    = 2;  // value = register
+    private static final int N_BINARY = 3;  // op, a, b (arithmetic and comparisons)
+    private static final int N_NEG    = 4;  // a
+    private static final int N_NOT    = 5;  // a
+    private static final int N_AND    = 6;  // a, b
+    private static final int N_OR     = 7;  // a, b
+    private static final int N_CALL   = 8;  // value = function, args
+    private static final int N_ASSIGN = 9;  // value = register, a
+    private static final int N_IF     = 10; // a = condition, body, orElse
+    private static final int N_WHILE  = 11; // a = condition, body
+    private static final int N_RETURN = 12;
+
+    private static final class Node {
+        final int kind;
+        int value;
+        String op;
+        Node a;
+        Node b;
+        Node[] args;
+        ArrayList<Node> body;
+        ArrayList<Node> orElse;
+
+        Node(final int kind) {
+            this.kind = kind;
+        }
+    }
+
+    private static final String[] DIRECTIONS = { "north", "south", "west", "east" };
+
+    private final String file;
+
+    // tokenizer output
+    private final ArrayList<Integer> tokenTypes = new ArrayList<>();
+    private final ArrayList<String> tokenTexts = new ArrayList<>();
+    private final ArrayList<Integer> tokenLines = new ArrayList<>();
+    private int pos = 0;
+
+    private final HashMap<String, Integer> variables = new HashMap<>();
+    private final ArrayList<Integer> initial = new ArrayList<>();
+    private final ArrayList<String> strings = new ArrayList<>();
+
+    // code generation
+    private int[] code = new int[64];
+    private int codeLength = 0;
+    private int nextRegister = 0;
+    private int maxRegisters = 0;
+
+    private ScriptCompiler(final String file) {
+        this.file = file;
+    }
+
+    // 'file' is only used for the error messages and the name of the script
+    public static Script compile(final String file, final String source) throws CompileError {
+        assert file   != null;
+        assert source != null;
+
+        final ScriptCompiler compiler = new ScriptCompiler(file);
+        compiler.tokenize(source);
+        final ArrayList<Node> program = compiler.parseProgram();
+        return compiler.generate(program);
+    }
+
+    // ---- tokenizer ----
+
+    private void tokenize(final String source) throws CompileError {
+        int line = 1;
+        int i = 0;
+        while (i < source.length()) {
+            final char ch = source.charAt(i);
+            if (ch == '\n') {
+                addToken(T_NEWLINE, "\n", line);
+                line += 1;
+                i += 1;
+            } else if (ch == ' ' || ch == '\t' || ch == '\r') {
+                i += 1;
+            } else if (ch == '#') {
+                while (i < source.length() && source.charAt(i) != '\n') i += 1;
+            } else if (Character.isDigit(ch)) {
+                final int start = i;
+                while (i < source.length() && Character.isDigit(source.charAt(i))) i += 1;
+                addToken(T_NUMBER, source.substring(start, i), line);
+            } else if (Character.isLetter(ch) || ch == '_') {
+                final int start = i;
+                while (i < source.length() && (Character.isLetterOrDigit(source.charAt(i)) || source.charAt(i) == '_')) i += 1;
+                addToken(T_NAME, source.substring(start, i), line);
+            } else if (ch == '"') {
+                final int start = i + 1;
+                i = start;
+                while (i < source.length() && source.charAt(i) != '"' && source.charAt(i) != '\n') i += 1;
+                if (i == source.length() || source.charAt(i) != '"') throw error(line, "unterminated string");
+                addToken(T_STRING, source.substring(start, i), line);
+                i += 1;
+            } else {
+                final String two = i + 1 < source.length() ? source.substring(i, i + 2) : "";
+                if (two.equals("==") || two.equals("!=") || two.equals("<=") || two.equals(">=")) {
+                    addToken(T_SYMBOL, two, line);
+                    i += 2;
+                } else if ("+-*/%<>=(),".indexOf(ch) != -1) {
+                    addToken(T_SYMBOL, String.valueOf(ch), line);
+                    i += 1;
+                } else {
+                    throw error(line, "unexpected character '" + ch + "'");
+                }
+            }
+        }
+        addToken(T_NEWLINE, "\n", line);
+        addToken(T_EOF, "", line);
+    }
+
+    private void addToken(final int type, final String text, final int line) {
+        tokenTypes.add(type);
+        tokenTexts.add(text);
+        tokenLines.add(line);
+    }
+
+    private int type() {
+        return tokenTypes.get(pos);
+    }
+
+    private String text() {
+        return tokenTexts.get(pos);
+    }
+
+    private int line() {
+        return tokenLines.get(pos);
+    }
+
+    private boolean peek(final String text) {
+        return (type() == T_SYMBOL || type() == T_NAME) && text().equals(text);
+    }
+
+    private boolean accept(final String text) {
+        if (!peek(text)) return false;
+        pos += 1;
+        return true;
+    }
+
+    private void expect(final String text) throws CompileError {
+        if (!accept(text)) throw error(line(), "expected '" + text + "' but got '" + describe() + "'");
+    }
+
+    private void expectNewline() throws CompileError {
+        if (type() != T_NEWLINE) throw error(line(), "expected the end of the line but got '" + describe() + "'");
+        skipNewlines();
+    }
+
+    private void skipNewlines() {
+        while (type() == T_NEWLINE) pos += 1;
+    }
+
+    private String describe() {
+        return type() == T_NEWLINE ? "end of line" : type() == T_EOF ? "end of file" : text();
+    }
+
+    private CompileError error(final int line, final String message) {
+        return new CompileError(String.format("%s:%s: %s", file, line, message));
+    }
+
+    // ---- parser ----
+
+    private ArrayList<Node> parseProgram() throws CompileError {
+        final ArrayList<Node> program = new ArrayList<>();
+        skipNewlines();
+        while (type() != T_EOF) {
+            if (accept("var")) {
+                parseVar();
+            } else {
+                program.add(parseStatement());
+            }
+        }
+        return program;
+    }
+
+    private void parseVar() throws CompileError {
+        final int line = line();
+        if (type() != T_NAME) throw error(line, "expected a variable name");
+        final String name = text();
+        pos += 1;
+        if (variables.containsKey(name)) throw error(line, "variable '" + name + "' declared twice");
+        if (isReserved(name)) throw error(line, "'" + name + "' can not be used as a variable name");
+
+        int value = 0;
+        if (accept("=")) {
+            final boolean negative = accept("-");
+            final int dir = type() == T_NAME ? Arrays.asList(DIRECTIONS).indexOf(text()) : -1;
+            if (!negative && dir != -1) {
+                value = dir;
+                pos += 1;
+            } else {
+                if (type() != T_NUMBER) throw error(line(), "the initial value of a variable must be a number or a direction");
+                value = parseNumber();
+                if (negative) value = -value;
+            }
+        }
+        expectNewline();
+
+        variables.put(name, variables.size());
+        initial.add(value);
+    }
+
+    private ArrayList<Node> parseBlock(final String... terminators) throws CompileError {
+        final ArrayList<Node> block = new ArrayList<>();
+        while (true) {
+            if (type() == T_EOF) throw error(line(), "missing 'end'");
+            for (final String terminator : terminators) {
+                if (peek(terminator)) return block;
+            }
+            if (peek("var")) throw error(line(), "variables must be declared at the top level");
+            block.add(parseStatement());
+        }
+    }
+
+    private Node parseStatement() throws CompileError {
+        final int line = line();
+        if (accept("if")) {
+            return parseIf();
+        }
+
+        if (accept("while")) {
+            final Node node = new Node(N_WHILE);
+            node.a = parseExpression();
+            expectNewline();
+            node.body = parseBlock("end");
+            expect("end");
+            expectNewline();
+            return node;
+        }
+
+        if (accept("return")) {
+            expectNewline();
+            return new Node(N_RETURN);
+        }
+
+        if (peek("end") || peek("elif") || peek("else")) throw error(line, "'" + text() + "' without 'if' or 'while'");
+
+        if (type() == T_NAME && tokenTexts.get(pos + 1).equals("=") && tokenTypes.get(pos + 1) == T_SYMBOL) {
+            final String name = text();
+            final Integer register = variables.get(name);
+            if (register == null) throw error(line, "unknown variable '" + name + "'");
+            pos += 2;
+
+            final Node node = new Node(N_ASSIGN);
+            node.value = register;
+            node.a = parseExpression();
+            expectNewline();
+            return node;
+        }
+
+        final Node node = parseExpression();
+        if (node.kind != N_CALL) throw error(line, "expected a statement");
+        expectNewline();
+        return node;
+    }
+
+    // 'if' has been consumed, so has 'elif' (which is an if in the else branch)
+    private Node parseIf() throws CompileError {
+        final Node node = new Node(N_IF);
+        node.a = parseExpression();
+        expectNewline();
+        node.body = parseBlock("elif", "else", "end");
+        node.orElse = new ArrayList<>();
+        if (accept("elif")) {
+            node.orElse.add(parseIf());
+            return node; // the nested if consumed the 'end'
+        }
+        if (accept("else")) {
+            expectNewline();
+            node.orElse = parseBlock("end");
+        }
+        expect("end");
+        expectNewline();
+        return node;
+    }
+
+    private Node parseExpression() throws CompileError {
+        Node node = parseAnd();
+        while (accept("or")) {
+            final Node or = new Node(N_OR);
+            or.a = node;
+            or.b = parseAnd();
+            node = or;
+        }
+        return node;
+    }
+
+    private Node parseAnd() throws CompileError {
+        Node node = parseNot();
+        while (accept("and")) {
+            final Node and = new Node(N_AND);
+            and.a = node;
+            and.b = parseNot();
+            node = and;
+        }
+        return node;
+    }
+
+    private Node parseNot() throws CompileError {
+        if (accept("not")) {
+            final Node node = new Node(N_NOT);
+            node.a = parseNot();
+            return node;
+        }
+        return parseComparison();
+    }
+
+    private Node parseComparison() throws CompileError {
+        final Node node = parseSum();
+        if (type() == T_SYMBOL) {
+            final String op = text();
+            if (op.equals("==") || op.equals("!=") || op.equals("<") || op.equals("<=") || op.equals(">") || op.equals(">=")) {
+                pos += 1;
+                return binary(op, node, parseSum());
+            }
+        }
+        return node;
+    }
+
+    private Node parseSum() throws CompileError {
+        Node node = parseTerm();
+        while (type() == T_SYMBOL && (text().equals("+") || text().equals("-"))) {
+            final String op = text();
+            pos += 1;
+            node = binary(op, node, parseTerm());
+        }
+        return node;
+    }
+
+    private Node parseTerm() throws CompileError {
+        Node node = parseUnary();
+        while (type() == T_SYMBOL && (text().equals("*") || text().equals("/") || text().equals("%"))) {
+            final String op = text();
+            pos += 1;
+            node = binary(op, node, parseUnary());
+        }
+        return node;
+    }
+
+    private Node parseUnary() throws CompileError {
+        if (accept("-")) {
+            final Node operand = parseUnary();
+            if (operand.kind == N_NUMBER) {
+                operand.value = -operand.value;
+                return operand;
+            }
+            final Node node = new Node(N_NEG);
+            node.a = operand;
+            return node;
+        }
+        return parsePrimary();
+    }
+
+    private Node parsePrimary() throws CompileError {
+        final int line = line();
+        switch (type()) {
+            case T_NUMBER: {
+                final Node node = new Node(N_NUMBER);
+                node.value = parseNumber();
+                return node;
+            }
+
+            case T_STRING: {
+                throw error(line, "strings can only be passed to say()");
+            }
+
+            case T_NAME: {
+                final String name = text();
+                pos += 1;
+                if (accept("(")) {
+                    return parseCall(name, line);
+                }
+
+                for (int dir = 0; dir < DIRECTIONS.length; ++dir) {
+                    if (DIRECTIONS[dir].equals(name)) {
+                        final Node node = new Node(N_NUMBER);
+                        node.value = dir;
+                        return node;
+                    }
+                }
+
+                final Integer register = variables.get(name);
+                if (register == null) throw error(line, "unknown variable '" + name + "'");
+                final Node node = new Node(N_VAR);
+                node.value = register;
+                return node;
+            }
+
+            default: {
+                if (accept("(")) {
+                    final Node node = parseExpression();
+                    expect(")");
+                    return node;
+                }
+                throw error(line, "expected an expression but got '" + describe() + "'");
+            }
+        }
+    }
+
+    // the name and '(' have been consumed
+    private Node parseCall(final String name, final int line) throws CompileError {
+        final int function = Arrays.asList(Script.FUNCTION_NAMES).indexOf(name);
+        if (function == -1) throw error(line, "unknown function '" + name + "'");
+
+        final ArrayList<Node> args = new ArrayList<>();
+        if (!accept(")")) {
+            do {
+                if (function == Script.FN_SAY && type() == T_STRING) {
+                    final Node node = new Node(N_STRING);
+                    node.value = strings.size();
+                    strings.add(text());
+                    pos += 1;
+                    args.add(node);
+                } else {
+                    args.add(parseExpression());
+                }
+            } while (accept(","));
+            expect(")");
+        }
+        if (args.size() != Script.FUNCTION_ARGS[function]) {
+            throw error(line, String.format("%s() takes %s arguments, not %s", name, Script.FUNCTION_ARGS[function], args.size()));
+        }
+        if (function == Script.FN_SAY && args.get(0).kind != N_STRING) {
+            throw error(line, "say() takes a string");
+        }
+
+        final Node node = new Node(N_CALL);
+        node.value = function;
+        node.args = args.toArray(new Node[0]);
+        return node;
+    }
+
+    private int parseNumber() throws CompileError {
+        try {
+            final int value = Integer.parseInt(text());
+            pos += 1;
+            return value;
+        } catch (final NumberFormatException ex) {
+            throw error(line(), "number too big");
+        }
+    }
+
+    private static Node binary(final String op, final Node a, final Node b) {
+        final Node node = new Node(N_BINARY);
+        node.op = op;
+        node.a = a;
+        node.b = b;
+        return node;
+    }
+
+    private static boolean isReserved(final String name) {
+        switch (name) {
+            case "var": case "if": case "elif": case "else": case "end": case "while": case "return":
+            case "and": case "or": case "not":
+                return true;
+        }
+        return Arrays.asList(DIRECTIONS).contains(name) || Arrays.asList(Script.FUNCTION_NAMES).contains(name);
+    }
+
+    // ---- code generation ----
+
+    private Script generate(final ArrayList<Node> program) {
+        nextRegister = variables.size();
+        maxRegisters = nextRegister;
+        block(program);
+        emit(Script.OP_RET, 0, 0, 0);
+
+        final int[] init = new int[initial.size()];
+        for (int i = 0; i < init.length; ++i) {
+            init[i] = initial.get(i);
+        }
+        return new Script(file, Arrays.copyOf(code, codeLength), maxRegisters, init, strings.toArray(new String[0]));
+    }
+
+    private void block(final ArrayList<Node> block) {
+        for (final Node node : block) {
+            statement(node);
+            nextRegister = variables.size(); // temporaries only live for one statement
+        }
+    }
+
+    private void statement(final Node node) {
+        switch (node.kind) {
+            case N_ASSIGN: {
+                // 'x = x + 1' and friends write straight into the variable
+                final int result = expression(node.a);
+                final int last = codeLength - 4;
+                final boolean single = node.a.kind != N_AND && node.a.kind != N_OR; // those write their result twice
+                if (single && result >= variables.size() && last >= 0 && code[last + 1] == result && writesA(code[last])) {
+                    code[last + 1] = node.value;
+                } else if (result != node.value) {
+                    emit(Script.OP_MOV, node.value, result, 0);
+                }
+            } break;
+
+            case N_CALL: {
+                expression(node);
+            } break;
+
+            case N_IF: {
+                final ArrayList<Integer> toElse = new ArrayList<>();
+                jump(node.a, false, toElse);
+                block(node.body);
+                if (node.orElse.isEmpty()) {
+                    patch(toElse, codeLength);
+                } else {
+                    final int toEnd = emit(Script.OP_JMP, 0, 0, 0);
+                    patch(toElse, codeLength);
+                    block(node.orElse);
+                    code[toEnd + 1] = codeLength;
+                }
+            } break;
+
+            case N_WHILE: {
+                final int top = codeLength;
+                final ArrayList<Integer> toEnd = new ArrayList<>();
+                jump(node.a, false, toEnd);
+                block(node.body);
+                emit(Script.OP_JMP, top, 0, 0);
+                patch(toEnd, codeLength);
+            } break;
+
+            case N_RETURN: {
+                emit(Script.OP_RET, 0, 0, 0);
+            } break;
+
+            default: {
+                assert false : "Not a statement!";
+            } break;
+        }
+    }
+
+    // Emits the code computing the value of 'node', returns the register it ends up in.
+    private int expression(final Node node) {
+        switch (node.kind) {
+            case N_NUMBER:
+            case N_STRING: {
+                final int r = temporary();
+                emit(Script.OP_LOADK, r, node.value, 0);
+                return r;
+            }
+
+            case N_VAR: {
+                return node.value;
+            }
+
+            case N_NEG:
+            case N_NOT: {
+                final int operand = expression(node.a);
+                final int r = temporary();
+                emit(node.kind == N_NEG ? Script.OP_NEG : Script.OP_NOT, r, operand, 0);
+                return r;
+            }
+
+            case N_BINARY: {
+                final String op = node.op;
+                if ((op.equals("+") || op.equals("-")) && node.b.kind == N_NUMBER) {
+                    final int left = expression(node.a);
+                    final int r = temporary();
+                    emit(Script.OP_ADDK, r, left, op.equals("+") ? node.b.value : -node.b.value);
+                    return r;
+                }
+
+                int left  = expression(node.a);
+                int right = expression(node.b);
+                if (op.equals(">") || op.equals(">=")) {
+                    // a > b is b < a
+                    final int tmp = left;
+                    left  = right;
+                    right = tmp;
+                }
+                final int r = temporary();
+                final int opcode;
+                switch (op) {
+                    case "+":  opcode = Script.OP_ADD; break;
+                    case "-":  opcode = Script.OP_SUB; break;
+                    case "*":  opcode = Script.OP_MUL; break;
+                    case "/":  opcode = Script.OP_DIV; break;
+                    case "%":  opcode = Script.OP_MOD; break;
+                    case "==": opcode = Script.OP_EQ;  break;
+                    case "!=": opcode = Script.OP_NE;  break;
+                    case "<":  opcode = Script.OP_LT;  break;
+                    case "<=": opcode = Script.OP_LE;  break;
+                    case ">":  opcode = Script.OP_LT;  break;
+                    case ">=": opcode = Script.OP_LE;  break;
+                    default: throw new IllegalStateException(op);
+                }
+                emit(opcode, r, left, right);
+                return r;
+            }
+
+            case N_AND:
+            case N_OR: {
+                final int r = temporary();
+                final ArrayList<Integer> toFalse = new ArrayList<>();
+                emit(Script.OP_LOADK, r, 0, 0);
+                jump(node, false, toFalse);
+                emit(Script.OP_LOADK, r, 1, 0);
+                patch(toFalse, codeLength);
+                return r;
+            }
+
+            case N_CALL: {
+                // the arguments go into two consecutive registers, the result into the first one
+                final int base = temporary();
+                temporary();
+                for (int i = 0; i < node.args.length; ++i) {
+                    final int arg = expression(node.args[i]);
+                    if (arg != base + i) {
+                        emit(Script.OP_MOV, base + i, arg, 0);
+                    }
+                }
+                emit(Script.OP_CALL, base, node.value, base);
+                return base;
+            }
+
+            default: {
+                throw new IllegalStateException("Not an expression!");
+            }
+        }
+    }
+
+    // Emits a jump that is taken if the truth of 'node' equals 'when', the positions of the jumps whose
+    // target is still open are added to 'jumps'. Comparisons become a single compare-and-jump.
+    private void jump(final Node node, final boolean when, final ArrayList<Integer> jumps) {
+        switch (node.kind) {
+            case N_NOT: {
+                jump(node.a, !when, jumps);
+            } break;
+
+            case N_AND:
+            case N_OR: {
+                // 'a and b' is false as soon as a is, 'a or b' is true as soon as a is
+                final boolean shortCircuit = node.kind == N_OR;
+                if (when == shortCircuit) {
+                    jump(node.a, when, jumps);
+                    jump(node.b, when, jumps);
+                } else {
+                    final ArrayList<Integer> skip = new ArrayList<>();
+                    jump(node.a, shortCircuit, skip);
+                    jump(node.b, when, jumps);
+                    patch(skip, codeLength);
+                }
+            } break;
+
+            case N_BINARY: {
+                final String op = node.op;
+                final boolean compare = op.equals("==") || op.equals("!=") || op.equals("<") || op.equals("<=") || op.equals(">") || op.equals(">=");
+                if (!compare) {
+                    jumpOnValue(node, when, jumps);
+                    break;
+                }
+
+                final int left  = expression(node.a);
+                final int right = expression(node.b);
+                // the jump is taken when 'test' holds
+                final String test = when ? op : negate(op);
+                switch (test) {
+                    case "==": jumps.add(emit(Script.OP_JEQ, 0, left, right)); break;
+                    case "!=": jumps.add(emit(Script.OP_JNE, 0, left, right)); break;
+                    case "<":  jumps.add(emit(Script.OP_JLT, 0, left, right)); break;
+                    case "<=": jumps.add(emit(Script.OP_JLE, 0, left, right)); break;
+                    case ">":  jumps.add(emit(Script.OP_JLT, 0, right, left)); break;
+                    case ">=": jumps.add(emit(Script.OP_JLE, 0, right, left)); break;
+                }
+            } break;
+
+            default: {
+                jumpOnValue(node, when, jumps);
+            } break;
+        }
+    }
+
+    private void jumpOnValue(final Node node, final boolean when, final ArrayList<Integer> jumps) {
+        final int r = expression(node);
+        jumps.add(emit(when ? Script.OP_JNZ : Script.OP_JZ, 0, r, 0));
+    }
+
+    private static String negate(final String op) {
+        switch (op) {
+            case "==": return "!=";
+            case "!=": return "==";
+            case "<":  return ">=";
+            case "<=": return ">";
+            case ">":  return "<=";
+            case ">=": return "<";
+        }
+        throw new IllegalStateException(op);
+    }
+
+    // instructions whose only effect is writing register a
+    private static boolean writesA(final int opcode) {
+        return opcode <= Script.OP_LE || opcode == Script.OP_CALL;
+    }
+
+    private int temporary() {
+        final int r = nextRegister++;
+        maxRegisters = Math.max(maxRegisters, nextRegister);
+        return r;
+    }
+
+    // returns the position of the instruction, used to patch jump targets
+    private int emit(final int op, final int a, final int b, final int c) {
+        if (codeLength + 4 > code.length) {
+            code = Arrays.copyOf(code, code.length * 2);
+        }
+        final int at = codeLength;
+        code[at]     = op;
+        code[at + 1] = a;
+        code[at + 2] = b;
+        code[at + 3] = c;
+        codeLength += 4;
+        return at;
+    }
+
+    private void patch(final ArrayList<Integer> jumps, final int target) {
+        for (final int jump : jumps) {
+            code[jump + 1] = target;
+        }
+        jumps.clear();
+    }
+}
@@ -1,23 +1,14 @@
-import java.awt.*;
+// Tiles have no behaviour, so they do not get an Entity handle. They are plain rows in the EntityStore.
+public final class SimpleTile {
 
-public final class SimpleTile extends Entity {
-
-    private Image image = null;
-
-    public SimpleTile(final Game game, final Vector2f v2, final Image image, final boolean passable) {
-        super(game, v2, Game.TILE_SIZE, Game.TILE_SIZE);
-
-        assert image != null;
-        this.image = image;
-        this.passable = passable;
+    private SimpleTile() {
     }
 
-    @Override
-    public void update() {
-    }
+    public static int spawn(final Game game, final Vector2f v2, final int sprite, final boolean passable) {
+        assert game != null;
+        assert v2   != null;
+        assert sprite != EntityStore.NO_SPRITE;
 
-    @Override
-    public void render(final Graphics2D g) {
-        g.drawImage(image, (int) v2.x, (int) v2.y, w, h, null);
+        return game.getEntityStore().create(v2.x, v2.y, Game.TILE_SIZE, Game.TILE_SIZE, sprite, passable ? EntityStore.FLAG_PASSABLE : 0);
     }
 }
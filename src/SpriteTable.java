@@ -0,0 +1,203 @@
+import java.awt.*;
+import java.awt.image.*;
+import java.util.*;
+
+// Maps small integer ids to images, so the entity store only has to keep an int per entity.
+//
+// Sprites registered with an image out of the AssetCache can lose it again when the cache evicts it
+// (see drop()). get() then asks the loader thread for it and hands out an empty placeholder until it is
+// back. Every sprite that has been drawn in a frame stays pinned in the cache until a frame without it.
+//
+// get() does not return the registered image itself but a view of its pixels with the colors of the
+// palette, including whatever effect is active (see Palette). Views are made again when the palette
+// changes, they share the raster of the image so that only costs the small BufferedImage around it.
+public final class SpriteTable {
+
+    private static final Image PLACEHOLDER = new BufferedImage(1, 1, BufferedImage.TYPE_INT_ARGB);
+
+    private final AssetCache cache;
+    private final Palette palette;
+    private final HashMap<String, Integer> ids = new HashMap<>();
+    private Image[] images = new Image[16];
+    private Image[] views = new Image[16];
+    private int[] viewVersion = new int[16]; // palette version of the view, 0 if there is none
+    private String[] names = new String[16];
+    private boolean[] cached = new boolean[16]; // the image came out of the cache, the name is its file
+    private boolean[] pinned = new boolean[16];
+    private int[] usedFrame = new int[16];
+    private int frame = 1;
+    private int count = 0;
+    private int rebuilds = 0;
+
+    public SpriteTable(final AssetCache cache, final Palette palette) {
+        assert cache   != null;
+        assert palette != null;
+        this.cache = cache;
+        this.palette = palette;
+    }
+
+    public int register(final String name, final Image image) {
+        assert name  != null;
+        assert image != null;
+        assert !ids.containsKey(name) : "Sprite registered twice!";
+
+        if (count == images.length) {
+            images    = Arrays.copyOf(images, count * 2);
+            views     = Arrays.copyOf(views, count * 2);
+            viewVersion = Arrays.copyOf(viewVersion, count * 2);
+            names     = Arrays.copyOf(names, count * 2);
+            cached    = Arrays.copyOf(cached, count * 2);
+            pinned    = Arrays.copyOf(pinned, count * 2);
+            usedFrame = Arrays.copyOf(usedFrame, count * 2);
+        }
+
+        final int id = count;
+        images[id] = image;
+        names[id] = name;
+        cached[id] = cache.getIfLoaded(name) == image;
+        ids.put(name, id);
+        count += 1;
+        return id;
+    }
+
+    // Slices a sprite sheet (row major, frames of equal size) into separate sprites. This is done once
+    // at load time, the returned ids are then used to build animations.
+    public int[] registerSheet(final String name, final BufferedImage sheet, final int frameW, final int frameH) {
+        assert name  != null;
+        assert sheet != null;
+        assert frameW > 0 && sheet.getWidth()  % frameW == 0;
+        assert frameH > 0 && sheet.getHeight() % frameH == 0;
+
+        final int columns = sheet.getWidth()  / frameW;
+        final int rows    = sheet.getHeight() / frameH;
+        final int[] result = new int[columns * rows];
+        for (int row = 0; row < rows; ++row) {
+            for (int column = 0; column < columns; ++column) {
+                final int i = row * columns + column;
+                result[i] = register(name + "#" + i, sheet.getSubimage(column * frameW, row * frameH, frameW, frameH));
+            }
+        }
+        return result;
+    }
+
+    // Swaps the image behind an id (hot reloading), everything referencing the id sees the new one.
+    public void replace(final int id, final Image image) {
+        assert id >= 0 && id < count;
+        assert image != null;
+
+        images[id] = image;
+        viewVersion[id] = 0;
+    }
+
+    // Re-slices a sheet registered with registerSheet(). Returns false (and changes nothing) if the new
+    // sheet does not have the same amount of frames, the animations built from it would not fit anymore.
+    public boolean replaceSheet(final String name, final BufferedImage sheet, final int frameW, final int frameH) {
+        assert name  != null;
+        assert sheet != null;
+        assert frameW > 0 && sheet.getWidth()  % frameW == 0;
+        assert frameH > 0 && sheet.getHeight() % frameH == 0;
+
+        final int columns = sheet.getWidth()  / frameW;
+        final int rows    = sheet.getHeight() / frameH;
+        final int frames  = columns * rows;
+        if (idOf(name + "#" + (frames - 1)) == EntityStore.NO_SPRITE || idOf(name + "#" + frames) != EntityStore.NO_SPRITE) {
+            return false;
+        }
+
+        for (int row = 0; row < rows; ++row) {
+            for (int column = 0; column < columns; ++column) {
+                final int i = row * columns + column;
+                final int id = idOf(name + "#" + i);
+                images[id] = sheet.getSubimage(column * frameW, row * frameH, frameW, frameH);
+                viewVersion[id] = 0;
+            }
+        }
+        return true;
+    }
+
+    // returns EntityStore.NO_SPRITE if there is no sprite with that name
+    public int idOf(final String name) {
+        assert name != null;
+
+        final Integer id = ids.get(name);
+        return id == null ? EntityStore.NO_SPRITE : id;
+    }
+
+    public String nameOf(final int id) {
+        assert id >= 0 && id < count;
+        return names[id];
+    }
+
+    // The sprite as it is drawn, with the effects of the palette.
+    public Image get(final int id) {
+        assert id >= 0 && id < count;
+
+        usedFrame[id] = frame;
+        final Image image = images[id] != null ? images[id] : restore(id);
+        if (image == PLACEHOLDER) return image;
+
+        final int version = palette.version();
+        if (viewVersion[id] != version) {
+            views[id] = palette.view(image);
+            viewVersion[id] = version;
+            rebuilds += 1;
+        }
+        return views[id];
+    }
+
+    // Grows whenever get() had to make a view, which allocates (see Game.ALLOC_CHECK).
+    public int rebuilds() {
+        return rebuilds;
+    }
+
+    // The sprite with the colors of its file, for code that looks at the pixels (the minimap).
+    public Image getSource(final int id) {
+        assert id >= 0 && id < count;
+
+        usedFrame[id] = frame;
+        return images[id] != null ? images[id] : restore(id);
+    }
+
+    private Image restore(final int id) {
+        final Image image = cache.getIfLoaded(names[id]);
+        if (image == null) {
+            cache.requestLoad(names[id]);
+            return PLACEHOLDER;
+        }
+        images[id] = image;
+        viewVersion[id] = 0;
+        return image;
+    }
+
+    // The cache evicted 'file', lets go of our reference so the memory can actually be reclaimed.
+    public void drop(final String file) {
+        final int id = idOf(file);
+        if (id == EntityStore.NO_SPRITE || !cached[id]) return;
+
+        assert !pinned[id] : "Pinned sprite got evicted!";
+        images[id] = null;
+        views[id] = null; // shares the pixels
+        viewVersion[id] = 0;
+    }
+
+    // Must be called once per frame after rendering. Pins the sprites drawn in this frame, unpins the
+    // ones that were not.
+    public void endFrame() {
+        for (int id = 0; id < count; ++id) {
+            if (!cached[id]) continue;
+
+            final boolean used = usedFrame[id] == frame;
+            if (used && !pinned[id]) {
+                pinned[id] = cache.pin(names[id]);
+            } else if (!used && pinned[id]) {
+                cache.unpin(names[id]);
+                pinned[id] = false;
+            }
+        }
+        frame += 1;
+    }
+
+    public int size() {
+        return count;
+    }
+}
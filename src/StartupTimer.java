@@ -0,0 +1,60 @@
+import java.lang.management.*;
+
+// Wall clock timings of the startup phases, measured from the moment Main got loaded.
+//
+// Everything that happens before main() (jvm boot, class loading of the jdk itself) is not visible to
+// us, so the jvm uptime at the first frame is printed as well. The difference between the two is what
+// the class data sharing archive of the release build (see build.bat) gets rid of.
+public final class StartupTimer {
+
+    private static final int MAX_PHASES = 32;
+
+    private static final long startNanos = System.nanoTime();
+    private static final String[] phaseNames = new String[MAX_PHASES];
+    private static final long[] phaseNanos = new long[MAX_PHASES];
+    private static int phaseCount = 0;
+    private static long lastNanos = startNanos;
+
+    private static volatile double firstFrameMillis = -1;
+
+    private StartupTimer() {
+    }
+
+    // Does nothing but load this class, which starts the clock. Main calls this first thing.
+    public static void begin() {
+    }
+
+    // Ends the current phase. The time since the previous mark is accounted to 'name'.
+    public static synchronized void mark(final String name) {
+        assert name != null;
+
+        final long now = System.nanoTime();
+        if (phaseCount < MAX_PHASES) {
+            phaseNames[phaseCount] = name;
+            phaseNanos[phaseCount] = now - lastNanos;
+            phaseCount += 1;
+        }
+        lastNanos = now;
+    }
+
+    // Called once the first frame is on screen, every call after the first one is ignored.
+    public static synchronized void firstFrame() {
+        if (firstFrameMillis >= 0) return;
+
+        mark("first_frame");
+        firstFrameMillis = (System.nanoTime() - startNanos) / 1000000.0d;
+
+        final StringBuilder sb = new StringBuilder("startup:");
+        for (int i = 0; i < phaseCount; ++i) {
+            sb.append(String.format("%n  %-16s %8.1f ms", phaseNames[i], phaseNanos[i] / 1000000.0d));
+        }
+        sb.append(String.format("%n  %-16s %8.1f ms (since main)", "total", firstFrameMillis));
+        sb.append(String.format("%n  %-16s %8d ms", "jvm uptime", ManagementFactory.getRuntimeMXBean().getUptime()));
+        System.out.println(sb);
+    }
+
+    // -1 until the first frame has been shown
+    public static double getFirstFrameMillis() {
+        return firstFrameMillis;
+    }
+}
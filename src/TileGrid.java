@@ -0,0 +1,133 @@
+import java.util.*;
+
+// Tile aligned lookup structure, built from the EntityStore whenever a world has been loaded.
+//
+// Passability is packed into a bitmap (one bit per cell, 64 cells per long), which is what the
+// pathfinder and the movement checks read. Next to it we keep the id of the first tile in each cell,
+// so 'which tile is over there' is an array access instead of a scan over every entity.
+public final class TileGrid {
+
+    public static final int NO_TILE = -1;
+
+    private int width  = 0;
+    private int height = 0;
+    private long[] passable = new long[0];
+    private long[] blocked  = new long[0]; // scratch space for rebuild()
+    private int[] tiles = new int[0];
+    private int[] overlays = new int[0]; // second tile in a cell (tree, mountain ...)
+    private int version = 0; // incremented on every change, used to invalidate cached paths
+
+    public void rebuild(final EntityStore store, final int width, final int height) {
+        assert store != null;
+        assert width > 0 && height > 0;
+
+        this.width  = width;
+        this.height = height;
+
+        final int cells = width * height;
+        if (tiles.length < cells) {
+            tiles    = new int[cells];
+            overlays = new int[cells];
+            passable = new long[(cells + 63) >>> 6];
+            blocked  = new long[passable.length];
+        }
+        Arrays.fill(tiles, 0, cells, NO_TILE);
+        Arrays.fill(overlays, 0, cells, NO_TILE);
+
+        // a cell is passable if it has tiles and all of them are passable (e.g. a tree on top of grass is not)
+        Arrays.fill(passable, 0);
+        Arrays.fill(blocked, 0);
+        for (int i = 0, l = store.count; i < l; ++i) {
+            if ((store.flags[i] & EntityStore.KIND_MASK) != EntityStore.FLAG_ALIVE) continue;
+
+            final int cx = (int) store.x[i] / Game.TILE_SIZE;
+            final int cy = (int) store.y[i] / Game.TILE_SIZE;
+            if (cx < 0 || cy < 0 || cx >= width || cy >= height) continue;
+
+            final int cell = cy * width + cx;
+            if (tiles[cell] == NO_TILE) {
+                tiles[cell] = i;
+            } else if (overlays[cell] == NO_TILE) {
+                overlays[cell] = i;
+            }
+            if ((store.flags[i] & EntityStore.FLAG_PASSABLE) != 0) {
+                passable[cell >>> 6] |= 1L << cell;
+            } else {
+                blocked[cell >>> 6] |= 1L << cell;
+            }
+        }
+        for (int i = 0; i < passable.length; ++i) {
+            passable[i] &= ~blocked[i];
+        }
+
+        version += 1;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public boolean isInside(final int cx, final int cy) {
+        return cx >= 0 && cy >= 0 && cx < width && cy < height;
+    }
+
+    public boolean isPassable(final int cx, final int cy) {
+        if (!isInside(cx, cy)) return false;
+
+        final int cell = cy * width + cx;
+        return (passable[cell >>> 6] & (1L << cell)) != 0;
+    }
+
+    // cell must be inside the grid
+    public boolean isPassable(final int cell) {
+        assert cell >= 0 && cell < width * height;
+        return (passable[cell >>> 6] & (1L << cell)) != 0;
+    }
+
+    public void setPassable(final int cx, final int cy, final boolean value) {
+        assert isInside(cx, cy);
+
+        final int cell = cy * width + cx;
+        if (value) {
+            passable[cell >>> 6] |= 1L << cell;
+        } else {
+            passable[cell >>> 6] &= ~(1L << cell);
+        }
+        version += 1;
+    }
+
+    // Replaces the tiles of a single cell (hot reloading) without rebuilding the whole grid.
+    public void setCell(final EntityStore store, final int cx, final int cy, final int tile, final int overlay) {
+        assert store != null;
+        assert isInside(cx, cy);
+        assert tile != NO_TILE;
+
+        final int cell = cy * width + cx;
+        tiles[cell]    = tile;
+        overlays[cell] = overlay;
+
+        boolean value = (store.flags[tile] & EntityStore.FLAG_PASSABLE) != 0;
+        if (overlay != NO_TILE) {
+            value &= (store.flags[overlay] & EntityStore.FLAG_PASSABLE) != 0;
+        }
+        setPassable(cx, cy, value); // bumps the version
+    }
+
+    public int getTile(final int cx, final int cy) {
+        if (!isInside(cx, cy)) return NO_TILE;
+        return tiles[cy * width + cx];
+    }
+
+    public int getOverlay(final int cx, final int cy) {
+        if (!isInside(cx, cy)) return NO_TILE;
+        return overlays[cy * width + cx];
+    }
+}
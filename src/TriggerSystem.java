@@ -0,0 +1,190 @@
+import java.util.*;
+
+// Things that happen when the player steps onto a tile: warps, dialogue, random encounters, scripts.
+//
+// A trigger covers a rectangular region of cells. Every covered cell gets an entry in a per cell
+// chain (head index per cell, next index per entry), so finding the triggers of the cell the player
+// just stepped on is one array access no matter how many triggers the map has. The cell index is the
+// hash key, since the world is a dense grid the table is simply addressed by it directly.
+//
+// Stepping on a trigger does not run anything right away, it only records an event in a fixed size
+// ring buffer. dispatch() drains it at a well defined point of the tick (after every actor has been
+// updated), so a warp can not move the player while the actor sweep is still running. Events are two
+// ints, the listener is a single long lived object, nothing is allocated per event.
+public final class TriggerSystem {
+
+    public enum Kind {
+        WARP,      // a = target cell x, b = target cell y
+        DIALOGUE,  // text
+        ENCOUNTER, // a = chance per step in percent, text
+        SCRIPT;    // text = the script to run (see Script)
+    }
+
+    public interface Listener {
+        void onTrigger(final TriggerSystem triggers, final int trigger, final int cx, final int cy);
+    }
+
+    public static final int NO_TRIGGER = -1;
+
+    private static final int QUEUE_SIZE = 64; // power of two
+
+    private int width  = 0;
+    private int height = 0;
+
+    // triggers
+    private int count = 0;
+    private Kind[] kinds = new Kind[16];
+    private int[] argA = new int[16];
+    private int[] argB = new int[16];
+    private String[] texts = new String[16];
+    private boolean[] once = new boolean[16];
+    private boolean[] fired = new boolean[16];
+
+    // spatial index, see above
+    private int[] cellHead = new int[0];
+    private int entryCount = 0;
+    private int[] entryTrigger = new int[64];
+    private int[] entryNext = new int[64];
+
+    // event queue
+    private final int[] queueTrigger = new int[QUEUE_SIZE];
+    private final int[] queueCell = new int[QUEUE_SIZE];
+    private int queueHead = 0;
+    private int queueSize = 0;
+
+    private int seed = 1; // encounters, reset with the world so replays stay deterministic
+
+    public void reset(final int width, final int height) {
+        assert width > 0 && height > 0;
+
+        this.width  = width;
+        this.height = height;
+        if (cellHead.length < width * height) {
+            cellHead = new int[width * height];
+        }
+        Arrays.fill(cellHead, 0, width * height, NO_TRIGGER);
+        Arrays.fill(texts, 0, count, null);
+        count = 0;
+        entryCount = 0;
+        queueHead = 0;
+        queueSize = 0;
+        seed = 1;
+    }
+
+    public int add(final Kind kind, final int cx, final int cy, final int w, final int h, final int a, final int b, final String text, final boolean once) {
+        assert kind != null;
+        assert w > 0 && h > 0;
+
+        if (count == kinds.length) {
+            final int capacity = count * 2;
+            kinds = Arrays.copyOf(kinds, capacity);
+            argA  = Arrays.copyOf(argA, capacity);
+            argB  = Arrays.copyOf(argB, capacity);
+            texts = Arrays.copyOf(texts, capacity);
+            this.once = Arrays.copyOf(this.once, capacity);
+            fired = Arrays.copyOf(fired, capacity);
+        }
+
+        final int id = count;
+        kinds[id] = kind;
+        argA[id]  = a;
+        argB[id]  = b;
+        texts[id] = text;
+        this.once[id] = once;
+        fired[id] = false;
+        count += 1;
+
+        for (int y = Math.max(cy, 0), y1 = Math.min(cy + h, height); y < y1; ++y) {
+            for (int x = Math.max(cx, 0), x1 = Math.min(cx + w, width); x < x1; ++x) {
+                if (entryCount == entryTrigger.length) {
+                    entryTrigger = Arrays.copyOf(entryTrigger, entryCount * 2);
+                    entryNext    = Arrays.copyOf(entryNext, entryCount * 2);
+                }
+
+                final int cell = y * width + x;
+                entryTrigger[entryCount] = id;
+                entryNext[entryCount] = cellHead[cell];
+                cellHead[cell] = entryCount;
+                entryCount += 1;
+            }
+        }
+        return id;
+    }
+
+    // The player finished a step onto (cx, cy).
+    public void onStep(final int cx, final int cy) {
+        if (cx < 0 || cy < 0 || cx >= width || cy >= height) return;
+
+        final int cell = cy * width + cx;
+        for (int entry = cellHead[cell]; entry != NO_TRIGGER; entry = entryNext[entry]) {
+            final int trigger = entryTrigger[entry];
+            if (once[trigger] && fired[trigger]) continue;
+            if (kinds[trigger] == Kind.ENCOUNTER && nextRandom(100) >= argA[trigger]) continue;
+
+            if (queueSize == QUEUE_SIZE) {
+                assert false : "Trigger queue overflow!";
+                return;
+            }
+            final int slot = (queueHead + queueSize) & (QUEUE_SIZE - 1);
+            queueTrigger[slot] = trigger;
+            queueCell[slot] = cell;
+            queueSize += 1;
+            fired[trigger] = true;
+        }
+    }
+
+    public void dispatch(final Listener listener) {
+        assert listener != null;
+
+        while (queueSize > 0) {
+            final int trigger = queueTrigger[queueHead];
+            final int cell = queueCell[queueHead];
+            queueHead = (queueHead + 1) & (QUEUE_SIZE - 1);
+            queueSize -= 1;
+
+            listener.onTrigger(this, trigger, cell % width, cell / width);
+        }
+    }
+
+    public int count() {
+        return count;
+    }
+
+    public Kind kindOf(final int trigger) {
+        assert trigger >= 0 && trigger < count;
+        return kinds[trigger];
+    }
+
+    public int argA(final int trigger) {
+        assert trigger >= 0 && trigger < count;
+        return argA[trigger];
+    }
+
+    public int argB(final int trigger) {
+        assert trigger >= 0 && trigger < count;
+        return argB[trigger];
+    }
+
+    public String textOf(final int trigger) {
+        assert trigger >= 0 && trigger < count;
+        return texts[trigger];
+    }
+
+    // whether the trigger has fired since the world was loaded, a 'once' one does not fire again (saves)
+    public boolean hasFired(final int trigger) {
+        assert trigger >= 0 && trigger < count;
+        return fired[trigger];
+    }
+
+    public void setFired(final int trigger, final boolean value) {
+        assert trigger >= 0 && trigger < count;
+        fired[trigger] = value;
+    }
+
+    private int nextRandom(final int bound) {
+        seed ^= seed << 13;
+        seed ^= seed >>> 17;
+        seed ^= seed << 5;
+        return Math.floorMod(seed, bound);
+    }
+}
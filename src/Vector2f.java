@@ -7,4 +7,10 @@ public final class Vector2f {
         this.x = x;
         this.y = y;
     }
+
+    public Vector2f set(final float x, final float y) {
+        this.x = x;
+        this.y = y;
+        return this;
+    }
 }
@@ -0,0 +1,536 @@
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+// NPCs which wander around the world tile by tile, updated in parallel with deterministic results.
+//
+// Every tick runs in two phases on a WorkerGang:
+//   1. decide: every NPC advances its current move or picks a new neighbour cell to move to. This
+//      phase only reads shared state (grid, occupancy) and only writes to the NPCs own slots. Wanting
+//      to move somewhere is registered as a claim on the target cell, the lowest NPC index wins.
+//   2. commit: the winners take their cells, finished moves release their old cells.
+// Since both the claim (min) and the commit (distinct cells) do not depend on the order in which NPCs
+// are processed, the result is identical for any number of threads. NPCs are kept sorted by row, so
+// each worker walks over a compact region of the world.
+//
+// An npc spawned with a Script does not pick its moves at random, its script decides (see
+// spawnScripted()). The script runs in the decide phase, on whatever worker the npc belongs to: its
+// functions (see host) only read shared state and only write the slots of that npc, so the rules above
+// still hold.
+public final class WanderSystem {
+
+    private static final int RESORT_INTERVAL_TICKS = 32;
+    private static final int NO_CELL = -1;
+    private static final int NO_CLAIM = Integer.MAX_VALUE;
+
+    private final EntityStore store;
+    private final TileGrid grid;
+    private WorkerGang gang;
+
+    // per npc
+    private int count = 0;
+    private int[] entity    = new int[64];
+    private int[] rng       = new int[64];
+    private int[] cell      = new int[64]; // cell the npc is in (or leaving)
+    private int[] target    = new int[64]; // cell the npc is moving to, NO_CELL when idle
+    private int[] wanted    = new int[64]; // cell claimed this tick
+    private int[] release   = new int[64]; // cell to give up in the commit phase
+    private int[] dir       = new int[64];
+    private int[] remaining = new int[64];
+    private int[] order     = new int[64]; // npc indices sorted by row
+    private int[] sortScratch = new int[64];
+    private Script[] script   = new Script[64]; // null for npcs that wander at random
+    private int[][] registers = new int[64][];
+    private int[] waiting     = new int[64]; // ticks until the script runs again, see wait()
+    private int[] moveDir     = new int[64]; // set by move() while the script runs, -1 if it did not call it
+
+    // per cell
+    private int[] occupancy = new int[0]; // entity id or -1
+    private AtomicIntegerArray claims = new AtomicIntegerArray(0);
+    private int[] rowCounts = new int[0];
+
+    // cells the npcs must not enter, e.g. the ones the player is in
+    private int blockedA = NO_CELL;
+    private int blockedB = NO_CELL;
+    private int playerCell = NO_CELL; // where the player comes to rest, what player_x() and player_y() see
+
+    private long ticks = 0;
+
+    private final WorkerGang.Job decideJob = this::decide;
+    private final WorkerGang.Job commitJob = this::commit;
+
+    public WanderSystem(final EntityStore store, final TileGrid grid, final int threads) {
+        assert store != null;
+        assert grid  != null;
+
+        this.store = store;
+        this.grid  = grid;
+        setThreads(threads);
+        reset();
+    }
+
+    // threads == 1 forces serial execution (on the calling thread)
+    public void setThreads(final int threads) {
+        assert threads > 0;
+
+        if (gang != null) {
+            gang.shutdown();
+        }
+        gang = new WorkerGang(threads, "wander_worker");
+    }
+
+    public int getThreads() {
+        return gang.workers();
+    }
+
+    // Must be called after the grid has been rebuilt. The npcs are gone at this point (store cleared).
+    public void reset() {
+        final int cells = grid.getWidth() * grid.getHeight();
+        if (occupancy.length < cells) {
+            occupancy = new int[cells];
+            claims    = new AtomicIntegerArray(cells);
+        }
+        if (rowCounts.length < grid.getHeight() + 1) {
+            rowCounts = new int[grid.getHeight() + 1];
+        }
+        Arrays.fill(occupancy, -1);
+        Arrays.fill(script, 0, count, null);
+        Arrays.fill(registers, 0, count, null);
+        for (int i = 0; i < claims.length(); ++i) {
+            claims.set(i, NO_CLAIM);
+        }
+        count = 0;
+        ticks = 0;
+    }
+
+    public boolean spawn(final int cx, final int cy, final int sprite, final int seed) {
+        return spawnScripted(cx, cy, sprite, seed, null);
+    }
+
+    // An npc that does what 'script' tells it to instead of wandering around (null: it does wander).
+    public boolean spawnScripted(final int cx, final int cy, final int sprite, final int seed, final Script script) {
+        if (!grid.isPassable(cx, cy)) return false;
+
+        final int c = cy * grid.getWidth() + cx;
+        if (occupancy[c] != -1) return false;
+
+        if (count == entity.length) {
+            grow(count * 2);
+        }
+
+        final int n = count;
+        entity[n]    = store.create(cx * Game.TILE_SIZE, cy * Game.TILE_SIZE, Game.TILE_SIZE, Game.TILE_SIZE, sprite, EntityStore.FLAG_ACTOR);
+        rng[n]       = seed == 0 ? 0x9E3779B9 : seed; // xorshift must not start at 0
+        cell[n]      = c;
+        target[n]    = NO_CELL;
+        wanted[n]    = NO_CELL;
+        release[n]   = NO_CELL;
+        dir[n]       = 0;
+        remaining[n] = 0;
+        order[n]     = n;
+        occupancy[c] = entity[n];
+        setScript(n, script);
+        count += 1;
+        return true;
+    }
+
+    // Hot reloading: every npc running 'old' starts over with 'replacement', its variables reset.
+    public void replaceScript(final Script old, final Script replacement) {
+        assert old != null && replacement != null;
+
+        for (int n = 0; n < count; ++n) {
+            if (script[n] == old) {
+                setScript(n, replacement);
+            }
+        }
+    }
+
+    private void setScript(final int n, final Script s) {
+        script[n]  = s;
+        waiting[n] = 0;
+        moveDir[n] = -1;
+        if (s == null) {
+            registers[n] = null;
+        } else {
+            if (registers[n] == null || registers[n].length < s.registerCount()) {
+                registers[n] = new int[s.registerCount()];
+            }
+            s.init(registers[n]);
+        }
+    }
+
+    public int count() {
+        return count;
+    }
+
+    public boolean isOccupied(final int cx, final int cy) {
+        if (!grid.isInside(cx, cy)) return false;
+        return occupancy[cy * grid.getWidth() + cx] != -1;
+    }
+
+    public void setBlockedCells(final int a, final int b) {
+        blockedA = a;
+        blockedB = b;
+    }
+
+    // the same cell the scripts of triggers see, see Game.TriggerHandler
+    public void setPlayerCell(final int c) {
+        playerCell = c;
+    }
+
+    public void update() {
+        if (count == 0) return;
+
+        if (ticks % RESORT_INTERVAL_TICKS == 0) {
+            sortByRow();
+        }
+        ticks += 1;
+
+        gang.run(decideJob);
+        gang.run(commitJob);
+    }
+
+    // what write() needs at least for one npc, a wanderer
+    public static int bytesPerNpc() {
+        return 8 * 4 + 2;
+    }
+
+    // exactly what write() writes
+    public int snapshotBytes() {
+        int bytes = 4 + count * bytesPerNpc();
+        for (int n = 0; n < count; ++n) {
+            if (script[n] != null) {
+                bytes += script[n].getName().length() + 4 + 2 + script[n].registerCount() * 4;
+            }
+        }
+        return bytes;
+    }
+
+    // Sprite ids are written as they are, the reader maps them back (see SaveSystem). Scripts are written
+    // by name (the file they came from) with their variables, a wanderer has a name length of -1.
+    public void write(final java.nio.ByteBuffer buf) {
+        buf.putInt(count);
+        for (int n = 0; n < count; ++n) {
+            final int e = entity[n];
+            buf.putInt(cell[n]);
+            buf.putInt(target[n]);
+            buf.putInt(dir[n]);
+            buf.putInt(remaining[n]);
+            buf.putInt(rng[n]);
+            buf.putInt(store.sprite[e]);
+            buf.putFloat(store.x[e]);
+            buf.putFloat(store.y[e]);
+
+            final Script s = script[n];
+            if (s == null) {
+                buf.putShort((short) -1);
+                continue;
+            }
+            final String name = s.getName();
+            buf.putShort((short) name.length());
+            for (int c = 0; c < name.length(); ++c) {
+                assert name.charAt(c) < 128;
+                buf.put((byte) name.charAt(c));
+            }
+            buf.putInt(waiting[n]);
+            buf.putShort((short) s.registerCount());
+            for (int r = 0; r < s.registerCount(); ++r) {
+                buf.putInt(registers[n][r]);
+            }
+        }
+    }
+
+    // Returns what is wrong with the npcs at the position of 'buf', null if read() can take them into a
+    // world of 'cells' cells. 'scripts' finds a script by its name, null if there is none. Moves the
+    // position of 'buf'.
+    public static String check(final java.nio.ByteBuffer buf, final int cells, final int sprites, final java.util.function.Function<String, Script> scripts) {
+        if (buf.remaining() < 4) return "npcs are truncated";
+
+        final int amount = buf.getInt();
+        if (amount < 0 || amount > buf.remaining() / bytesPerNpc()) return "npcs are truncated";
+
+        for (int i = 0; i < amount; ++i) {
+            final int c      = buf.getInt();
+            final int t      = buf.getInt();
+            final int d      = buf.getInt();
+            final int left   = buf.getInt();
+            buf.getInt(); // rng
+            final int sprite = buf.getInt();
+            buf.getFloat();
+            buf.getFloat();
+            if (c < 0 || c >= cells || t != NO_CELL && (t < 0 || t >= cells)) return "npc " + i + " is outside of the world";
+            if (d < 0 || d > 3 || left < 0 || sprite < 0 || sprite >= sprites) return "npc " + i + " is corrupt";
+
+            if (buf.remaining() < 2) return "npcs are truncated";
+            final int nameLength = buf.getShort();
+            if (nameLength == -1) continue;
+            if (nameLength < 0 || buf.remaining() < nameLength + 4 + 2) return "npcs are truncated";
+            final String name = getName(buf, nameLength);
+            if (scripts.apply(name) == null) return "npc " + i + " runs the unknown script '" + name + "'";
+            final int wait = buf.getInt();
+            final int registerCount = buf.getShort();
+            if (wait < 0 || registerCount < 0) return "npc " + i + " is corrupt";
+            if (buf.remaining() < registerCount * 4) return "npcs are truncated";
+            buf.position(buf.position() + registerCount * 4);
+        }
+        return null;
+    }
+
+    private static String getName(final java.nio.ByteBuffer buf, final int length) {
+        final byte[] bytes = new byte[length];
+        buf.get(bytes);
+        return new String(bytes, java.nio.charset.StandardCharsets.US_ASCII);
+    }
+
+    // must be called right after reset(), with the grid of the world the npcs were saved in
+    public void read(final java.nio.ByteBuffer buf, final int[] spriteMap, final java.util.function.Function<String, Script> scripts) {
+        assert count == 0;
+
+        final int amount = buf.getInt();
+        for (int i = 0; i < amount; ++i) {
+            if (count == entity.length) {
+                grow(count * 2);
+            }
+
+            final int n = count;
+            cell[n]      = buf.getInt();
+            target[n]    = buf.getInt();
+            dir[n]       = buf.getInt();
+            remaining[n] = buf.getInt();
+            rng[n]       = buf.getInt();
+            final int sprite = spriteMap[buf.getInt()];
+            final float x = buf.getFloat();
+            final float y = buf.getFloat();
+
+            // the store wants tile aligned positions, moving npcs are put back where they were afterwards
+            final int w = grid.getWidth();
+            entity[n] = store.create((cell[n] % w) * Game.TILE_SIZE, (cell[n] / w) * Game.TILE_SIZE, Game.TILE_SIZE, Game.TILE_SIZE, sprite, EntityStore.FLAG_ACTOR);
+            store.x[entity[n]] = store.xPrev[entity[n]] = x;
+            store.y[entity[n]] = store.yPrev[entity[n]] = y;
+
+            wanted[n]  = NO_CELL;
+            release[n] = NO_CELL;
+            order[n]   = n;
+            occupancy[cell[n]] = entity[n];
+            if (target[n] != NO_CELL) {
+                occupancy[target[n]] = entity[n];
+            }
+
+            final int nameLength = buf.getShort();
+            if (nameLength == -1) {
+                setScript(n, null);
+            } else {
+                final Script s = scripts.apply(getName(buf, nameLength));
+                setScript(n, s);
+                waiting[n] = buf.getInt();
+                final int registerCount = buf.getShort();
+                if (registerCount == s.registerCount()) {
+                    for (int r = 0; r < registerCount; ++r) {
+                        registers[n][r] = buf.getInt();
+                    }
+                } else {
+                    // the script has been edited since the save, the npc starts over like after a hot reload
+                    buf.position(buf.position() + registerCount * 4);
+                }
+            }
+            count += 1;
+        }
+    }
+
+    // hash of every npc position in the order of the npcs, which is the same for serial and parallel
+    // runs, used to compare them
+    public long stateHash() {
+        long hash = 1469598103934665603L;
+        for (int n = 0; n < count; ++n) {
+            hash = (hash ^ Float.floatToIntBits(store.x[entity[n]])) * 1099511628211L;
+            hash = (hash ^ Float.floatToIntBits(store.y[entity[n]])) * 1099511628211L;
+        }
+        return hash;
+    }
+
+    private void decide(final int worker, final int workers) {
+        final int from = (int) ((long) count * worker / workers);
+        final int to   = (int) ((long) count * (worker + 1) / workers);
+        final int w = grid.getWidth();
+
+        for (int k = from; k < to; ++k) {
+            final int n = order[k];
+
+            if (remaining[n] > 0) {
+                final int e = entity[n];
+                switch (dir[n]) {
+                    case 0: store.y[e] -= 1; break;
+                    case 1: store.y[e] += 1; break;
+                    case 2: store.x[e] -= 1; break;
+                    case 3: store.x[e] += 1; break;
+                }
+                remaining[n] -= 1;
+                if (remaining[n] == 0) {
+                    release[n] = cell[n];
+                    cell[n]    = target[n];
+                    target[n]  = NO_CELL;
+                }
+                continue;
+            }
+
+            final int d;
+            if (script[n] != null) {
+                if (waiting[n] > 0) {
+                    waiting[n] -= 1;
+                    continue;
+                }
+                moveDir[n] = -1;
+                script[n].run(host, n, registers[n]);
+                d = moveDir[n];
+                if (d == -1) continue;
+            } else {
+                d = (nextRandom(n) >>> 8) % 8; // 4..7 = stand still for a tick
+                if (d > 3) continue;
+            }
+
+            int cx = cell[n] % w;
+            int cy = cell[n] / w;
+            switch (d) {
+                case 0: cy -= 1; break;
+                case 1: cy += 1; break;
+                case 2: cx -= 1; break;
+                case 3: cx += 1; break;
+            }
+            if (!grid.isPassable(cx, cy)) continue;
+
+            final int c = cy * w + cx;
+            if (occupancy[c] != -1 || c == blockedA || c == blockedB) continue;
+
+            dir[n]    = d;
+            wanted[n] = c;
+            int current = claims.get(c);
+            while (n < current && !claims.compareAndSet(c, current, n)) {
+                current = claims.get(c);
+            }
+        }
+    }
+
+    private int nextRandom(final int n) {
+        int r = rng[n];
+        r ^= r << 13;
+        r ^= r >>> 17;
+        r ^= r << 5;
+        rng[n] = r;
+        return r;
+    }
+
+    // true if npc 'n' could step into direction 'd' right now (0..3 like Game.Dir)
+    private boolean isFree(final int n, final int d) {
+        final int w = grid.getWidth();
+        int cx = cell[n] % w;
+        int cy = cell[n] / w;
+        switch (d) {
+            case 0: cy -= 1; break;
+            case 1: cy += 1; break;
+            case 2: cx -= 1; break;
+            case 3: cx += 1; break;
+            default: return false;
+        }
+        if (!grid.isPassable(cx, cy)) return false;
+
+        final int c = cy * w + cx;
+        return occupancy[c] == -1 && c != blockedA && c != blockedB;
+    }
+
+    private final Script.Host host = this::call;
+
+    // The functions of npc scripts, 'n' is the npc. Runs on the workers of the decide phase.
+    private int call(final int function, final int a, final int b, final int n) {
+        final int w = grid.getWidth();
+        switch (function) {
+            case Script.FN_MOVE: {
+                if (a < 0 || a > 3) return 0;
+                moveDir[n] = a; // the claim is made after the script is done, the last move() wins
+                return isFree(n, a) ? 1 : 0;
+            }
+
+            case Script.FN_WAIT: {
+                waiting[n] = Math.max(a, 0);
+                return 0;
+            }
+
+            case Script.FN_FREE: {
+                return isFree(n, a) ? 1 : 0;
+            }
+
+            case Script.FN_RAND: {
+                return a > 0 ? ((nextRandom(n) >>> 8) % a) : 0;
+            }
+
+            case Script.FN_X:        return cell[n] % w;
+            case Script.FN_Y:        return cell[n] / w;
+            case Script.FN_PLAYER_X: return playerCell == NO_CELL ? -1 : playerCell % w;
+            case Script.FN_PLAYER_Y: return playerCell == NO_CELL ? -1 : playerCell / w;
+
+            default: {
+                return 0; // say(), warp() ... are for triggers
+            }
+        }
+    }
+
+    private void commit(final int worker, final int workers) {
+        final int from = (int) ((long) count * worker / workers);
+        final int to   = (int) ((long) count * (worker + 1) / workers);
+
+        for (int k = from; k < to; ++k) {
+            final int n = order[k];
+
+            if (release[n] != NO_CELL) {
+                occupancy[release[n]] = -1;
+                release[n] = NO_CELL;
+            }
+
+            final int c = wanted[n];
+            if (c == NO_CELL) continue;
+            wanted[n] = NO_CELL;
+
+            // losers never see their own index here, no matter if the winner has reset the claim already
+            if (claims.get(c) == n) {
+                claims.set(c, NO_CLAIM);
+                occupancy[c] = entity[n];
+                target[n]    = c;
+                remaining[n] = Game.TILE_SIZE;
+            }
+        }
+    }
+
+    // counting sort by row, stable, so the order only depends on the positions
+    private void sortByRow() {
+        final int w = grid.getWidth();
+        final int h = grid.getHeight();
+        Arrays.fill(rowCounts, 0, h + 1, 0);
+        for (int n = 0; n < count; ++n) {
+            rowCounts[cell[n] / w + 1] += 1;
+        }
+        for (int row = 0; row < h; ++row) {
+            rowCounts[row + 1] += rowCounts[row];
+        }
+        for (int n = 0; n < count; ++n) {
+            sortScratch[rowCounts[cell[n] / w]++] = n;
+        }
+        final int[] tmp = order;
+        order = sortScratch;
+        sortScratch = tmp;
+    }
+
+    private void grow(final int capacity) {
+        entity      = Arrays.copyOf(entity, capacity);
+        rng         = Arrays.copyOf(rng, capacity);
+        cell        = Arrays.copyOf(cell, capacity);
+        target      = Arrays.copyOf(target, capacity);
+        wanted      = Arrays.copyOf(wanted, capacity);
+        release     = Arrays.copyOf(release, capacity);
+        dir         = Arrays.copyOf(dir, capacity);
+        remaining   = Arrays.copyOf(remaining, capacity);
+        order       = Arrays.copyOf(order, capacity);
+        sortScratch = Arrays.copyOf(sortScratch, capacity);
+        script      = Arrays.copyOf(script, capacity);
+        registers   = Arrays.copyOf(registers, capacity);
+        waiting     = Arrays.copyOf(waiting, capacity);
+        moveDir     = Arrays.copyOf(moveDir, capacity);
+    }
+}
@@ -0,0 +1,108 @@
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+
+// A fixed set of threads which all run the same job, each on its own slice of the work.
+//
+// The calling thread takes part as worker 0 and run() only returns once every worker is done, so a job
+// behaves like a parallel for loop with an implicit barrier at the end. Waiting is done with
+// park/unpark, nothing is allocated per run, which keeps it usable from inside the fixed tick.
+public final class WorkerGang {
+
+    public interface Job {
+        void run(final int worker, final int workers);
+    }
+
+    private final Thread[] threads;
+    private final AtomicInteger pending = new AtomicInteger(0);
+
+    private volatile Job job = null;
+    private volatile int generation = 0;
+    private volatile Thread caller = null;
+    private volatile boolean running = true;
+    private volatile Throwable failure = null;
+
+    public WorkerGang(final int workers, final String name) {
+        assert workers > 0;
+        assert name != null;
+
+        threads = new Thread[workers - 1];
+        for (int i = 0; i < threads.length; ++i) {
+            final int worker = i + 1;
+            threads[i] = new Thread(() -> workerLoop(worker));
+            threads[i].setName(name + "_" + worker);
+            threads[i].setDaemon(true);
+            threads[i].start();
+        }
+    }
+
+    public int workers() {
+        return threads.length + 1;
+    }
+
+    public void run(final Job job) {
+        assert job != null;
+        assert this.job == null : "WorkerGang is not reentrant!";
+
+        if (threads.length == 0) {
+            job.run(0, 1);
+            return;
+        }
+
+        this.job = job;
+        caller = Thread.currentThread();
+        pending.set(threads.length);
+        generation = generation + 1; // only the caller writes this
+        for (final Thread thread : threads) {
+            LockSupport.unpark(thread);
+        }
+
+        final Throwable ex;
+        try {
+            job.run(0, threads.length + 1);
+        } finally {
+            // also if our own share threw: the workers still use the job, and the next run must not
+            // find it (or their failure) left over
+            while (pending.get() != 0) {
+                LockSupport.park(this);
+            }
+            this.job = null;
+            ex = failure;
+            failure = null;
+        }
+
+        // rethrow on the calling thread, so a tripped assert in a worker is reported like any other
+        if (ex != null) {
+            if (ex instanceof Error) throw (Error) ex;
+            throw new RuntimeException(ex);
+        }
+    }
+
+    public void shutdown() {
+        running = false;
+        for (final Thread thread : threads) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    private void workerLoop(final int worker) {
+        int seen = 0;
+        while (running) {
+            if (generation == seen) {
+                LockSupport.park(this);
+                continue;
+            }
+            seen = generation;
+
+            try {
+                job.run(worker, threads.length + 1);
+            } catch (final Throwable ex) {
+                failure = ex;
+            } finally {
+                // never leave the caller waiting forever
+                if (pending.decrementAndGet() == 0) {
+                    LockSupport.unpark(caller);
+                }
+            }
+        }
+    }
+}
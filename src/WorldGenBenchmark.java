@@ -0,0 +1,49 @@
+// Headless benchmark for the world generator (see WorldGenerator).
+//
+// Generates the same world (same seed, same size) once per thread count and reports the time, the
+// speedup over the serial run and whether every generated cell is identical to it. This is the check
+// for the claim that the result does not depend on the number of threads.
+//
+//     java -cp build Main bench-gen [size] [seed]
+public final class WorldGenBenchmark {
+
+    private static final int RUNS = 5; // per thread count, the best one counts
+
+    private WorldGenBenchmark() {
+    }
+
+    public static void run(final int size, final long seed) {
+        assert size > 0;
+        assert seed != 0 : "Seed 0 stands for res/overworld.png!";
+
+        final int cores = Runtime.getRuntime().availableProcessors();
+        System.out.printf("%sx%s cells, seed %s, %s cores%n", size, size, seed, cores);
+
+        double serialMillis = 0;
+        long serialHash = 0;
+        for (int threads = 1; threads <= Math.max(cores, 2); threads *= 2) {
+            final WorldGenerator gen = new WorldGenerator(threads);
+
+            // the first run warms up the jit
+            double millis = Double.MAX_VALUE;
+            for (int run = 0; run <= RUNS; ++run) {
+                final long start = System.nanoTime();
+                gen.begin(seed, size, size);
+                gen.generateAll();
+                if (run > 0) {
+                    millis = Math.min(millis, (System.nanoTime() - start) / 1000000.0d);
+                }
+            }
+            final long hash = gen.hashGenerated();
+            gen.shutdown();
+
+            if (threads == 1) {
+                serialMillis = millis;
+                serialHash = hash;
+            }
+
+            System.out.printf("threads %2s: %8.2f ms, %5.2fx, world %016x %s%n",
+                threads, millis, serialMillis / millis, hash, hash == serialHash ? "(identical)" : "(DIVERGED)");
+        }
+    }
+}
@@ -0,0 +1,266 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+// Seeded procedural worlds, as an alternative to painting res/overworld.png.
+//
+// The generator produces the same colors the overworld loader understands (grass, water, trees,
+// mountains), one int per cell, in chunks of CHUNK_SIZE * CHUNK_SIZE cells. Every cell is a pure
+// function of (seed, x, y) built from layered value noise, which is what makes the result independent
+// of the order in which chunks are generated and of the number of threads doing it.
+//
+// Chunks are generated on a fork-join pool. Every tick the game prefetches the chunks some distance
+// around its cameras, workers fill them in the background, and cooks the ones close to the cameras
+// into tiles on the main thread (acquire()).
+public final class WorldGenerator {
+
+    public static final int CHUNK_SIZE = 32;
+
+    // colors of res/overworld.png
+    public static final int GRASS    = 0xFF007F0E;
+    public static final int WATER    = 0xFF0026FF;
+    public static final int TREE     = 0xFF3E5600;
+    public static final int MOUNTAIN = 0xFF605000;
+
+    private static final int STATE_NONE       = 0;
+    private static final int STATE_GENERATING = 1;
+    private static final int STATE_READY      = 2; // generated, not handed to the game yet
+    private static final int STATE_DONE       = 3; // handed to the game
+
+    private static final int SPAWN_RADIUS = 3; // cells around the center that are always grass
+
+    private final ForkJoinPool pool;
+
+    private long seed = 0;
+    private int width  = 0;
+    private int height = 0;
+    private int chunksX = 0;
+    private int chunksY = 0;
+    private int[] colors = new int[0];
+    private AtomicIntegerArray states = new AtomicIntegerArray(0);
+    private ChunkTask[] tasks = new ChunkTask[0];
+
+    public WorldGenerator(final int threads) {
+        assert threads > 0;
+        pool = new ForkJoinPool(threads, p -> {
+            final ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+            thread.setName("worldgen_thread_" + thread.getPoolIndex());
+            thread.setDaemon(true);
+            return thread;
+        }, null, false);
+    }
+
+    public void begin(final long seed, final int width, final int height) {
+        assert width > 0 && height > 0;
+
+        // wait for chunks of the previous world that are still being generated, they write into 'colors'
+        pool.awaitQuiescence(1, TimeUnit.MINUTES);
+
+        this.seed = seed;
+        this.width = width;
+        this.height = height;
+        this.chunksX = (width  + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        this.chunksY = (height + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        if (colors.length < width * height) {
+            colors = new int[width * height];
+        }
+
+        final int chunks = chunksX * chunksY;
+        if (tasks.length < chunks) {
+            tasks = new ChunkTask[chunks];
+            for (int i = 0; i < chunks; ++i) {
+                tasks[i] = new ChunkTask(i);
+            }
+        }
+        states = new AtomicIntegerArray(chunks);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getChunksX() {
+        return chunksX;
+    }
+
+    // color of a generated cell, only valid for chunks handed out by acquire()
+    public int colorAt(final int cx, final int cy) {
+        assert cx >= 0 && cy >= 0 && cx < width && cy < height;
+        return colors[cy * width + cx];
+    }
+
+    // Starts generating every chunk touching the area (world coordinates) in the background.
+    public void prefetch(final float x, final float y, final int w, final int h, final int marginCells) {
+        final int cx0 = Math.max(0, firstChunk(x, marginCells));
+        final int cy0 = Math.max(0, firstChunk(y, marginCells));
+        final int cx1 = Math.min(chunksX - 1, lastChunk(x + w, marginCells));
+        final int cy1 = Math.min(chunksY - 1, lastChunk(y + h, marginCells));
+        for (int cy = cy0; cy <= cy1; ++cy) {
+            for (int cx = cx0; cx <= cx1; ++cx) {
+                final int chunk = cy * chunksX + cx;
+                if (states.compareAndSet(chunk, STATE_NONE, STATE_GENERATING)) {
+                    tasks[chunk].reinitialize();
+                    pool.execute(tasks[chunk]);
+                }
+            }
+        }
+    }
+
+    // Returns the first chunk (row order) touching the area that has not been handed out yet, -1 if
+    // there is none. Waits for the chunk if a worker is still on it, or generates it right here if
+    // nobody prefetched it. Which chunks are handed out when only depends on the area, never on the
+    // timing of the workers, so the world stays deterministic (replays).
+    public int acquire(final float x, final float y, final int w, final int h, final int marginCells) {
+        final int cx0 = Math.max(0, firstChunk(x, marginCells));
+        final int cy0 = Math.max(0, firstChunk(y, marginCells));
+        final int cx1 = Math.min(chunksX - 1, lastChunk(x + w, marginCells));
+        final int cy1 = Math.min(chunksY - 1, lastChunk(y + h, marginCells));
+        for (int cy = cy0; cy <= cy1; ++cy) {
+            for (int cx = cx0; cx <= cx1; ++cx) {
+                final int chunk = cy * chunksX + cx;
+                if (states.get(chunk) == STATE_DONE) continue;
+
+                if (states.compareAndSet(chunk, STATE_NONE, STATE_GENERATING)) {
+                    tasks[chunk].reinitialize();
+                    tasks[chunk].invoke();
+                } else {
+                    tasks[chunk].join(); // returns right away if it is ready
+                }
+                states.set(chunk, STATE_DONE);
+                return chunk;
+            }
+        }
+        return -1;
+    }
+
+    public int getChunkCount() {
+        return chunksX * chunksY;
+    }
+
+    // whether acquire() has handed out the chunk, i.e. the game has cooked it into tiles (saves)
+    public boolean isHandedOut(final int chunk) {
+        return states.get(chunk) == STATE_DONE;
+    }
+
+    // for a world loaded from a save, whose tiles of this chunk are already there
+    public void markHandedOut(final int chunk) {
+        states.set(chunk, STATE_DONE);
+    }
+
+    // Generates the whole world with all workers and waits for it (see WorldGenBenchmark).
+    public void generateAll() {
+        prefetch(0, 0, width * Game.TILE_SIZE, height * Game.TILE_SIZE, 0);
+        pool.awaitQuiescence(1, TimeUnit.MINUTES);
+    }
+
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    private static int firstChunk(final float pos, final int marginCells) {
+        return Math.floorDiv((int) Math.floor(pos / Game.TILE_SIZE) - marginCells, CHUNK_SIZE);
+    }
+
+    private static int lastChunk(final float pos, final int marginCells) {
+        return Math.floorDiv((int) Math.floor(pos / Game.TILE_SIZE) + marginCells, CHUNK_SIZE);
+    }
+
+    // Hash over every generated cell, equal seeds must give equal hashes no matter how many threads.
+    public long hashGenerated() {
+        long hash = 17;
+        for (int i = 0, l = width * height; i < l; ++i) {
+            hash = hash * 31 + colors[i];
+        }
+        return hash;
+    }
+
+    private final class ChunkTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int chunk;
+
+        ChunkTask(final int chunk) {
+            this.chunk = chunk;
+        }
+
+        @Override
+        protected void compute() {
+            final int x0 = (chunk % chunksX) * CHUNK_SIZE;
+            final int y0 = (chunk / chunksX) * CHUNK_SIZE;
+            final int x1 = Math.min(width,  x0 + CHUNK_SIZE);
+            final int y1 = Math.min(height, y0 + CHUNK_SIZE);
+            for (int y = y0; y < y1; ++y) {
+                for (int x = x0; x < x1; ++x) {
+                    colors[y * width + x] = cell(seed, x, y, width, height);
+                }
+            }
+            states.set(chunk, STATE_READY);
+        }
+    }
+
+    // The tile kind of a single cell.
+    public static int cell(final long seed, final int x, final int y, final int width, final int height) {
+        final int dx = x - width  / 2;
+        final int dy = y - height / 2;
+        if (dx * dx + dy * dy <= SPAWN_RADIUS * SPAWN_RADIUS) {
+            return GRASS; // the player spawns in the center
+        }
+
+        final float elevation = fractal(seed, x, y, 48);
+        if (elevation < 0.38f) return WATER;
+        if (elevation > 0.66f) return MOUNTAIN;
+
+        final float forest = fractal(seed ^ 0x5DEECE66DL, x, y, 16);
+        if (forest > 0.57f) return TREE;
+        return GRASS;
+    }
+
+    // four octaves of value noise, the first one with a feature size of 'period' cells. Result in [0, 1)
+    private static float fractal(final long seed, final int x, final int y, final int period) {
+        float sum = 0;
+        float amplitude = 1;
+        float total = 0;
+        int p = period;
+        for (int octave = 0; octave < 4 && p > 0; ++octave) {
+            sum += amplitude * valueNoise(seed + octave, (float) x / p, (float) y / p);
+            total += amplitude;
+            amplitude *= 0.5f;
+            p /= 2;
+        }
+        return sum / total;
+    }
+
+    private static float valueNoise(final long seed, final float x, final float y) {
+        final int ix = (int) Math.floor(x);
+        final int iy = (int) Math.floor(y);
+        final float fx = smooth(x - ix);
+        final float fy = smooth(y - iy);
+
+        final float a = lattice(seed, ix,     iy);
+        final float b = lattice(seed, ix + 1, iy);
+        final float c = lattice(seed, ix,     iy + 1);
+        final float d = lattice(seed, ix + 1, iy + 1);
+        final float top    = a + (b - a) * fx;
+        final float bottom = c + (d - c) * fx;
+        return top + (bottom - top) * fy;
+    }
+
+    private static float smooth(final float t) {
+        return t * t * (3 - 2 * t);
+    }
+
+    private static float lattice(final long seed, final int x, final int y) {
+        long h = seed ^ (x * 0x9E3779B97F4A7C15L) ^ (y * 0xC2B2AE3D27D4EB4FL);
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return (h >>> 40) / (float) (1 << 24);
+    }
+}